@@ -0,0 +1,24 @@
+package com.matt;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, always with the GC profiler on so the allocation rate of each one is
+ * reported next to its rows and bytes per second.  Takes the same arguments as JMH's own main,
+ * for example "ReportBenchmark -p rowsPerSource=10000000".
+ */
+public final class BenchmarkMain {
+   
+   private BenchmarkMain() {}
+   
+   public static void main(String[] args) throws Exception {
+      new Runner(new OptionsBuilder()
+                       .parent(new CommandLineOptions(args))
+                       .addProfiler(GCProfiler.class)
+                       .build())
+            .run();
+   }
+}
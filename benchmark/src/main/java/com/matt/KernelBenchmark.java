@@ -0,0 +1,101 @@
+package com.matt;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times counting one full {@link RowBatch} of random rows into searchedYearsByType's table three
+ * ways: a row at a time through the report (as rows read from text are), and a batch at a time
+ * through the scalar and the Vector API {@link BucketKernel}s (as rows read from the cache are).
+ * Rows counted per second are reported through the {@link Throughput} counters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class KernelBenchmark {
+   
+   @Param({"20", "1"})
+   public int bucketSize;
+   
+   @Param({"2024"})
+   public int stopYear;
+   
+   private final RowBatch batch = new RowBatch();
+   private final SearchRecord record = new SearchRecord();
+   private final DataSource source = new DataSource("benchmark", SearchSystem.HR, false);
+   private final int[] columnOfSlot = new int[RowBatch.UNKNOWN_SLOT + 1];
+   private Report report;
+   private BucketKernel scalar;
+   private BucketKernel vector;
+   private CountTable table;
+   
+   @AuxCounters(AuxCounters.Type.OPERATIONS)
+   @State(Scope.Thread)
+   public static class Throughput {
+      public long rows;
+   }
+   
+   @Setup(Level.Trial)
+   public void fillBatch() {
+      report = ReportSpec.searchedYearsByType("benchmark-kernel.csv", bucketSize, stopYear).compile();
+      scalar = new ScalarBucketKernel();
+      vector = BucketKernel.create();
+      if (vector instanceof ScalarBucketKernel) {
+         throw new IllegalStateException("The Vector API kernel isn't available; build with ../vector and run with --add-modules jdk.incubator.vector");
+      }
+      table = CountTable.yearBuckets(bucketSize, stopYear, 4);
+      
+      //Same columns as searchedYearsByType: birth, death, any, and other (residence, marriage, other)
+      int[] columns = {0, 1, 3, 2, 3, 3, -1};
+      System.arraycopy(columns, 0, columnOfSlot, 0, columns.length);
+      
+      //Mostly years from the last few centuries, some stars, and a third without an end year
+      SplittableRandom random = new SplittableRandom(1L);
+      batch.size = RowBatch.CAPACITY;
+      for (int i = 0; i < batch.size; i++) {
+         batch.slots[i] = random.nextInt(DateType.values().length);
+         batch.starts[i] = (random.nextInt(20) == 0 ? SearchRecord.STAR_YEAR : random.nextInt(1500, 2030));
+         int end = batch.starts[i] + random.nextInt(0, 60);
+         batch.ends[i] = (random.nextInt(3) == 0 ? SearchRecord.NO_YEAR : random.nextInt(20) == 0 ? SearchRecord.STAR_YEAR : end);
+         batch.counts[i] = random.nextInt(1, 1000);
+      }
+   }
+   
+   @Benchmark
+   public void rowAtATime(Throughput counters) {
+      for (int i = 0; i < batch.size; i++) {
+         batch.copyRow(i, record);
+         report.accept(source, record);
+      }
+      counters.rows += batch.size;
+   }
+   
+   @Benchmark
+   public void scalarKernel(Throughput counters) {
+      scalar.addYearBuckets(batch, columnOfSlot, bucketSize, stopYear, table.starRow(), table.columnCount(), table.cells());
+      counters.rows += batch.size;
+   }
+   
+   @Benchmark
+   public void vectorKernel(Throughput counters) {
+      vector.addYearBuckets(batch, columnOfSlot, bucketSize, stopYear, table.starRow(), table.columnCount(), table.cells());
+      counters.rows += batch.size;
+   }
+}
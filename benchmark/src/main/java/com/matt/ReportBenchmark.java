@@ -0,0 +1,130 @@
+package com.matt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times each report on its own over a full set of generated sources, plus all of them together
+ * in a single plan.  Besides operations per second, rows and bytes read per second are reported
+ * through the {@link Throughput} counters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReportBenchmark {
+   
+   @Param({"searchedYearsByType", "birthYearSearchesBySystem", "yearTypesSearchedBySystem",
+           "livingPersonSearchesBySystem", "dateRangeLengths"})
+   public String report;
+   
+   @Param({"1000000"})
+   public long rowsPerSource;
+   
+   @Param({"1"})
+   public int threads;
+   
+   private Path directory;
+   private SourceCatalog catalog;
+   private long rows;
+   private long bytes;
+   
+   /**
+    * Rows and bytes read, reported by JMH as rates per second.
+    */
+   @AuxCounters(AuxCounters.Type.OPERATIONS)
+   @State(Scope.Thread)
+   public static class Throughput {
+      public long rows;
+      public long bytes;
+   }
+   
+   @Setup(Level.Trial)
+   public void generateSources() throws IOException {
+      directory = Files.createTempDirectory("report-benchmark");
+      SyntheticDataGenerator.generate(directory, rowsPerSource, rowsPerSource * 100, 1, 1L);
+      catalog = SourceCatalog.fromDirectory(directory.toString());
+      
+      rows = rowsPerSource * catalog.sources().size();
+      bytes = 0;
+      for (DataSource source: catalog.sources()) {
+         bytes += Files.size(Paths.get(source.path()));
+      }
+      //The reports always write into output/
+      Files.createDirectories(Paths.get("output"));
+   }
+   
+   @TearDown(Level.Trial)
+   public void deleteSources() throws IOException {
+      try (Stream<Path> files = Files.walk(directory)) {
+         files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+   }
+   
+   @Benchmark
+   public void singleReport(Throughput counters) {
+      ReportPlan plan = new ReportPlan(catalog).threads(threads);
+      String outputFile = "benchmark-" + report + ".csv";
+      switch (report) {
+         case "searchedYearsByType":
+            plan.searchedYearsByType(outputFile, 20, 2024);
+            break;
+         case "birthYearSearchesBySystem":
+            plan.birthYearSearchesBySystem(outputFile, 20, 2024);
+            break;
+         case "yearTypesSearchedBySystem":
+            plan.yearTypesSearchedBySystem(outputFile);
+            break;
+         case "livingPersonSearchesBySystem":
+            plan.livingPersonSearchesBySystem(outputFile, 1965, 1980, 2024);
+            break;
+         case "dateRangeLengths":
+            plan.dateRangeLengths(outputFile, 1, 105);
+            break;
+         default:
+            throw new IllegalArgumentException("Unknown report " + report);
+      }
+      plan.run();
+      counters.rows += rows;
+      counters.bytes += bytes;
+   }
+   
+   /**
+    * Every report in one plan, as Application runs them.  Only depends on rowsPerSource and
+    * threads, so it is the same for every value of the report parameter.
+    */
+   @Benchmark
+   public void allReportsInOnePlan(Throughput counters) {
+      new ReportPlan(catalog).threads(threads)
+            .searchedYearsByType("benchmark-all-years.csv", 20, 2024)
+            .birthYearSearchesBySystem("benchmark-all-birth.csv", 20, 2024)
+            .yearTypesSearchedBySystem("benchmark-all-types.csv")
+            .livingPersonSearchesBySystem("benchmark-all-living.csv", 1965, 1980, 2024)
+            .dateRangeLengths("benchmark-all-lengths.csv", 1, 105)
+            .run();
+      counters.rows += rows;
+      counters.bytes += bytes;
+   }
+}
@@ -0,0 +1,158 @@
+package com.matt;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+
+/**
+ * Writes made-up data sources in the same "type;start;end",count layout as the Splunk exports,
+ * for all six sources (every system, with and without deaths), so the reports can be tested and
+ * benchmarked at any size.  The same seed and sizes always produce the same files.
+ * <br><br>
+ * The rows roughly follow the shape of the real exports: birth years are searched most, years
+ * cluster in the 1800s, about a third of searches are a single year, and the counts have a long
+ * tail, with a few rows making up much of the total.  Since each row carries a count, the number
+ * of logical rows (the sum of the counts) can run into the billions while the files stay small
+ * enough to generate quickly.
+ * <br><br>
+ * Usage: SyntheticDataGenerator directory rowsPerSource [logicalRowsPerSource] [shardsPerSource] [seed]
+ */
+public final class SyntheticDataGenerator {
+   private static final long DEFAULT_SEED = 20230614L;
+   
+   private static final DateType[] TYPES = DateType.values();
+   //Relative weights for each type, in DateType order: birth, death, residence, any, marriage, other
+   private static final double[] TYPE_WEIGHTS = {0.40, 0.15, 0.10, 0.20, 0.08, 0.07};
+   
+   //Tail of the count distribution; lower means a few rows hold more of the total
+   private static final double COUNT_PARETO_ALPHA = 1.3;
+   
+   private SyntheticDataGenerator() {}
+   
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.out.println("Usage: SyntheticDataGenerator directory rowsPerSource [logicalRowsPerSource] [shardsPerSource] [seed]");
+         System.exit(1);
+      }
+      Path directory = Paths.get(args[0]);
+      long rows = Long.parseLong(args[1]);
+      long logicalRows = (args.length > 2 ? Long.parseLong(args[2]) : rows * 100);
+      int shards = (args.length > 3 ? Integer.parseInt(args[3]) : 1);
+      long seed = (args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_SEED);
+      
+      long written = generate(directory, rows, logicalRows, shards, seed);
+      System.out.println("Wrote " + written + " logical rows per source (on average) to " + directory);
+   }
+   
+   /**
+    * Writes all six sources into the given directory.
+    *
+    * @param directory Folder to write the sources into.  Created if it doesn't exist.
+    * @param rowsPerSource Number of lines to write for each source (split across its shards)
+    * @param logicalRowsPerSource Roughly what the counts of each source should add up to
+    * @param shardsPerSource Number of files to split each source into.  With 1, files are named
+    *                        just like the default sources; otherwise each gets a -NNN suffix.
+    * @param seed Seed for the random rows
+    * @return The average of what each source's counts actually add up to
+    */
+   public static long generate(Path directory, long rowsPerSource, long logicalRowsPerSource, int shardsPerSource, long seed) throws IOException {
+      Files.createDirectories(directory);
+      double meanCount = Math.max(1.0, (double) logicalRowsPerSource / Math.max(1, rowsPerSource));
+      long totalLogical = 0;
+      int sourceIndex = 0;
+      
+      for (boolean withDeaths: new boolean[] {false, true}) {
+         for (SearchSystem system: SearchSystem.values()) {
+            SplittableRandom random = new SplittableRandom(seed * 31 + sourceIndex++);
+            for (int shard = 0; shard < shardsPerSource; shard++) {
+               long shardRows = rowsPerSource / shardsPerSource + (shard < rowsPerSource % shardsPerSource ? 1 : 0);
+               String name = "allSearchYears" + system.fileName() + (withDeaths ? "WithDeaths" : "")
+                             + (shardsPerSource > 1 ? String.format("-%03d", shard) : "") + ".csv";
+               try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(directory.resolve(name)), 1 << 16)) {
+                  totalLogical += writeSource(out, random, shardRows, meanCount, withDeaths);
+               }
+            }
+         }
+      }
+      return totalLogical / sourceIndex;
+   }
+   
+   /**
+    * @return What the counts of the rows written add up to
+    */
+   private static long writeSource(OutputStream out, SplittableRandom random, long rows, double meanCount, boolean withDeaths) throws IOException {
+      StringBuilder line = new StringBuilder(64);
+      out.write("\"dateConstraint\",count\n".getBytes(StandardCharsets.US_ASCII));
+      long logical = 0;
+      
+      for (long i = 0; i < rows; i++) {
+         DateType type = pickType(random, withDeaths);
+         int year = pickYear(random);
+         
+         line.setLength(0);
+         line.append('"').append(type.label()).append(';');
+         double shape = random.nextDouble();
+         if (shape < 0.35) {
+            //Single year
+            line.append(year);
+         } else if (shape < 0.70) {
+            //Range, usually a few years long
+            int length = (int) Math.min(200, -Math.log(1 - random.nextDouble()) * 5);
+            line.append(year).append(';').append(year + length);
+         } else if (shape < 0.80) {
+            line.append(year).append(";*");
+         } else if (shape < 0.90) {
+            line.append("*;").append(year);
+         } else if (shape < 0.95) {
+            line.append("*;*");
+         } else {
+            line.append(year).append(';').append(year);
+         }
+         
+         long count = pickCount(random, meanCount);
+         logical += count;
+         line.append("\",").append(count).append('\n');
+         
+         for (int c = 0; c < line.length(); c++) {
+            out.write(line.charAt(c));
+         }
+      }
+      return logical;
+   }
+   
+   private static DateType pickType(SplittableRandom random, boolean withDeaths) {
+      //The "with deaths" exports only hold queries that included a death date, so lean on that type
+      if (withDeaths && random.nextDouble() < 0.5) return DateType.DEATH;
+      double pick = random.nextDouble();
+      for (int i = 0; i < TYPES.length; i++) {
+         pick -= TYPE_WEIGHTS[i];
+         if (pick < 0) return TYPES[i];
+      }
+      return DateType.OTHER;
+   }
+   
+   /**
+    * @return A year clustered around the mid 1800s, between 1000 and 2030
+    */
+   private static int pickYear(SplittableRandom random) {
+      //Sum of uniforms is close enough to a bell curve here
+      double sum = 0;
+      for (int i = 0; i < 4; i++) sum += random.nextDouble();
+      int year = (int) (1860 + (sum - 2) * 120);
+      return Math.max(1000, Math.min(2030, year));
+   }
+   
+   /**
+    * @return A count from a Pareto distribution with roughly the given mean, capped to keep single rows sensible
+    */
+   private static long pickCount(SplittableRandom random, double meanCount) {
+      double minimum = meanCount * (COUNT_PARETO_ALPHA - 1) / COUNT_PARETO_ALPHA;
+      double count = minimum / Math.pow(1 - random.nextDouble(), 1 / COUNT_PARETO_ALPHA);
+      return Math.max(1, (long) Math.min(count, meanCount * 10_000));
+   }
+}
@@ -0,0 +1,95 @@
+package com.matt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the table writers, in each output format, on a year table with a row for every year
+ * (bucket size 1), filled with large random counts.  Each operation waits for its file to be
+ * written.  Rows and bytes written per second are reported through the {@link Throughput} counters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriterBenchmark {
+   
+   @Param({"2024"})
+   public int stopYear;
+   
+   @Param({"csv", "jsonl", "fstb"})
+   public String format;
+   
+   private CountTable table;
+   private List<String> replacements;
+   private String outputFile;
+   private String replacedOutputFile;
+   private long bytes;
+   private long replacedBytes;
+   
+   @AuxCounters(AuxCounters.Type.OPERATIONS)
+   @State(Scope.Thread)
+   public static class Throughput {
+      public long rows;
+      public long bytes;
+   }
+   
+   @Setup(Level.Trial)
+   public void fillTable() throws IOException {
+      table = CountTable.yearBuckets(1, stopYear, 4);
+      SplittableRandom random = new SplittableRandom(1L);
+      replacements = new ArrayList<>();
+      for (int row = 0; row < table.rowCount(); row++) {
+         replacements.add("row" + row);
+         for (int column = 0; column < table.columnCount(); column++) {
+            table.set(row, column, random.nextLong(1L << 40));
+         }
+      }
+      
+      outputFile = "benchmark-writer." + format;
+      replacedOutputFile = "benchmark-writer-replaced." + format;
+      Files.createDirectories(Paths.get("output"));
+      DataHandler.writeTableToFile(table, outputFile, "year,birth,death,any,other");
+      DataHandler.writeTableToFileWithReplacements(table, replacedOutputFile, "row,birth,death,any,other", replacements);
+      DataHandler.awaitWrites();
+      bytes = Files.size(Paths.get("output", outputFile));
+      replacedBytes = Files.size(Paths.get("output", replacedOutputFile));
+   }
+   
+   @Benchmark
+   public void writeTableToFile(Throughput counters) {
+      DataHandler.writeTableToFile(table, outputFile, "year,birth,death,any,other");
+      DataHandler.awaitWrites();
+      counters.rows += table.rowCount();
+      counters.bytes += bytes;
+   }
+   
+   @Benchmark
+   public void writeTableToFileWithReplacements(Throughput counters) {
+      DataHandler.writeTableToFileWithReplacements(table, replacedOutputFile, "row,birth,death,any,other", replacements);
+      DataHandler.awaitWrites();
+      counters.rows += table.rowCount();
+      counters.bytes += replacedBytes;
+   }
+}
@@ -15,17 +15,86 @@ public class Application {
    private static final int BIRTH_YEAR_LIVING_CUTOFF = 1965; //1965
    private static final int OTHER_YEAR_LIVING_CUTOFF = 1980; //1980
    
-   public static void main(String[] args) {
+   public static void main(String[] args) throws IOException {
       
-      DataHandler.searchedYearsByType("searchYearsAcrossAllSystems.csv", DEFAULT_BUCKET_SIZE, DEFAULT_STOP_YEAR);
-      DataHandler.birthYearSearchesBySystem("birthYearsBySystem.csv", DEFAULT_BUCKET_SIZE, DEFAULT_STOP_YEAR);
-      DataHandler.yearTypesSearchedBySystem("yearTypesBySystem.csv");
-      DataHandler.livingPersonSearchesBySystem("livingPersonsBySystem.csv", BIRTH_YEAR_LIVING_CUTOFF, OTHER_YEAR_LIVING_CUTOFF, DEFAULT_STOP_YEAR);
-      //DataHandler.dateRangeLengths("dateRangeLengths.csv", 1, 105);
+      //Start with --processes=N to split the sources between N worker processes (see ReportPlan.processes)
+      int processes = 1;
+      if (args.length > 0 && args[0].startsWith("--processes=")) {
+         processes = Integer.parseInt(args[0].substring("--processes=".length()));
+         args = Arrays.copyOfRange(args, 1, args.length);
+      }
       
-      DataHandler.livingPersonSearchesBySystem("livingPersonSearchesStrictYears.csv", 1980, 2000, DEFAULT_STOP_YEAR);
-      DataHandler.searchedYearsByType("searchYeearsShortBucket.csv", 4, DEFAULT_STOP_YEAR);
+      //Or start with --serve=PORT to answer reports over HTTP instead of writing them (see QueryServer)
+      if (args.length > 0 && args[0].startsWith("--serve=")) {
+         int port = Integer.parseInt(args[0].substring("--serve=".length()));
+         String[] sourceArgs = Arrays.copyOfRange(args, 1, args.length);
+         new QueryServer(() -> catalogFor(sourceArgs), port).resultCache(new ResultCache()).start();
+         return;
+      }
       
+      SourceCatalog sources = catalogFor(args);
+      
+      //Parsed copies of the sources are kept in cache/, so reruns on unchanged sources skip parsing,
+      //and finished results in results/, so reruns with nothing changed skip reading the sources at all
+      ReportPlan plan = new ReportPlan(sources)
+            .cache(new ColumnarCache())
+            .resultCache(new ResultCache())
+            .processes(processes)
+            .summary("runSummary.txt")
+            .topDatePatterns("topDatePatterns.csv", 100)
+            //Every exact pattern, spilling to disk past 64 MB of sums per thread
+            .searchCountsBy("searchCountsByPattern.csv", 64L << 20, GroupKey.SYSTEM, GroupKey.TYPE, GroupKey.START, GroupKey.END)
+            .report(new ReportSpec("distinctPatternsByType", "distinctPatternsByType.csv")
+                  .rows(ReportSpec.Dimension.dateTypes())
+                  .columns(ReportSpec.Dimension.systems())
+                  .countDistinctPatterns());
+      RangeLengthSketches rangeLengths = plan.sketchRangeLengths();
+      SearchCube cube = plan.buildCube();
+      
+      //Every report below is rolled up from the cube, so trying other parameters doesn't re-read the sources
+      cube.searchedYearsByType("searchYearsAcrossAllSystems.csv", DEFAULT_BUCKET_SIZE, DEFAULT_STOP_YEAR);
+      cube.birthYearSearchesBySystem("birthYearsBySystem.csv", DEFAULT_BUCKET_SIZE, DEFAULT_STOP_YEAR);
+      cube.yearTypesSearchedBySystem("yearTypesBySystem.csv");
+      cube.livingPersonSearchesBySystem("livingPersonsBySystem.csv", BIRTH_YEAR_LIVING_CUTOFF, OTHER_YEAR_LIVING_CUTOFF, DEFAULT_STOP_YEAR);
+      //cube.dateRangeLengths("dateRangeLengths.csv", 1, 105);
+      
+      cube.livingPersonSearchesBySystem("livingPersonSearchesStrictYears.csv", 1980, 2000, DEFAULT_STOP_YEAR);
+      cube.searchedYearsByType("searchYeearsShortBucket.csv", 4, DEFAULT_STOP_YEAR);
+      //Living person counts for every pair of cutoffs from 1940 to 2010, to help choose the two above
+      cube.livingPersonCutoffSweep("livingPersonCutoffSweep.csv", yearsBetween(1940, 2010, 5), yearsBetween(1940, 2010, 5),
+                                   new int[] {DEFAULT_STOP_YEAR});
+      rangeLengths.writeQuantiles("rangeLengthQuantiles.csv", 0.5, 0.9, 0.99);
+      
+      //Output files are written in the background, so make sure they all made it out
+      DataHandler.awaitWrites();
+      
+   }
+   
+   /**
+    * @return Every step years from first up to last (included)
+    */
+   private static int[] yearsBetween(int first, int last, int step) {
+      int[] years = new int[(last - first) / step + 1];
+      for (int i = 0; i < years.length; i++) {
+         years[i] = first + i * step;
+      }
+      return years;
+   }
+   
+   /**
+    * Pass a directory to read every data source file in it (such as daily shards) instead of the defaults,
+    * or "-" and a source name (like "TreeWithDeaths") to read a single source piped in through standard input,
+    * or --raw-logs and a log file or folder of them to sum up raw search logs instead of exports.
+    */
+   private static SourceCatalog catalogFor(String[] args) {
+      if (args.length > 1 && args[0].equals(DataSource.STDIN_PATH)) {
+         return SourceCatalog.stdin(args[1]);
+      } else if (args.length > 1 && args[0].equals("--raw-logs")) {
+         return SourceCatalog.rawLogs(args[1]);
+      } else if (args.length > 0) {
+         return SourceCatalog.fromDirectory(args[0]);
+      }
+      return SourceCatalog.defaults();
    }
    
 }
@@ -0,0 +1,67 @@
+package com.matt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes tables in a compact binary form, for tools that chart them without parsing text.
+ * Numbers are written with {@link ByteOutput#putVarLong(long)}, so small counts take a byte or two.
+ * <br><br>
+ * Layout:<br>
+ * int magic ("FSTB"), byte version<br>
+ * varint column count (including the row name column), then each column name<br>
+ * varint row count, then for each row: its name, then each of its counts as a varint<br>
+ * <br>
+ * Names are a tag byte followed by the value: 0 for the star row (no value), 1 for a year
+ * (varint), or 2 for text (varint length, then UTF-8 bytes).  Column names are always text.
+ */
+final class BinaryTableFormat implements OutputFormat {
+   static final String EXTENSION = ".fstb";
+   
+   private static final int MAGIC = 0x46535442; //"FSTB"
+   private static final int VERSION = 1;
+   private static final byte STAR_LABEL = 0;
+   private static final byte YEAR_LABEL = 1;
+   private static final byte TEXT_LABEL = 2;
+   
+   @Override
+   public String name() {
+      return "binary";
+   }
+   
+   @Override
+   public void writeHeader(String[] columns, long rowCount, ByteOutput out) throws IOException {
+      out.putInt(MAGIC);
+      out.put((byte) VERSION);
+      out.putVarLong(columns.length);
+      for (String column: columns) {
+         putText(column, out);
+      }
+      out.putVarLong(rowCount);
+   }
+   
+   @Override
+   public void writeRows(CountTable table, String[] columns, List<String> rowLabels, ByteOutput out) throws IOException {
+      for (int row = 0; row < table.rowCount(); row++) {
+         if (rowLabels != null) {
+            putText(rowLabels.get(row), out);
+         } else if (row == table.starRow()) {
+            out.put(STAR_LABEL);
+         } else {
+            out.put(YEAR_LABEL);
+            out.putVarLong(table.rowStart(row));
+         }
+         for (int i = 0; i < table.columnCount(); i++) {
+            out.putVarLong(table.get(row, i));
+         }
+      }
+   }
+   
+   private static void putText(String text, ByteOutput out) throws IOException {
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      out.put(TEXT_LABEL);
+      out.putVarLong(bytes.length);
+      out.put(bytes);
+   }
+}
@@ -0,0 +1,47 @@
+package com.matt;
+
+/**
+ * Counts a whole {@link RowBatch} into a table of year buckets at once, for the year reports
+ * (such as {@link DataHandler#searchedYearsByType(String, int, int)}) reading cached sources.
+ * <br><br>
+ * {@link #create()} gives a kernel built on the Vector API (VectorBucketKernel, in the vector/
+ * source folder) when that is compiled in and the JVM was started with
+ * --add-modules jdk.incubator.vector, and a plain scalar one otherwise.  Both give exactly the
+ * same counts.  A kernel keeps scratch space between batches, so each thread needs its own.
+ */
+interface BucketKernel {
+   String VECTOR_KERNEL = "com.matt.VectorBucketKernel";
+   String VECTOR_MODULE = "jdk.incubator.vector";
+   
+   /**
+    * Adds the count of each row in the batch into the row of its start year's bucket, and again
+    * into the row of its end year's bucket if it has an end year, in the column for its type.
+    * Stars go in the star row.  Rows whose type has a negative column are left out.
+    * <br><br>
+    * Either every row is added or, if any of them has no place in the table, none are.
+    *
+    * @param batch Rows to count
+    * @param columnOfSlot Column for each type slot (see {@link RowBatch#slots}), or a negative number to leave the row out
+    * @param bucketSize Number of years in each row
+    * @param stop Largest year that gets a row of its own.  Later years are counted in its row.
+    * @param starRow Row for stars
+    * @param columnCount Number of columns in the table
+    * @param cells Counts of the table, row by column (see {@link CountTable#cells()})
+    * @throws IllegalArgumentException If any row would be counted outside the table, before anything is added
+    */
+   void addYearBuckets(RowBatch batch, int[] columnOfSlot, int bucketSize, int stop, int starRow, int columnCount, long[] cells);
+   
+   /**
+    * @return A new kernel, built on the Vector API if it is available, or a scalar one if not
+    */
+   static BucketKernel create() {
+      if (ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+         try {
+            return (BucketKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+         } catch (ReflectiveOperationException | LinkageError e) {
+            //Not compiled in, or not supported on this JVM, so fall back to the scalar kernel
+         }
+      }
+      return new ScalarBucketKernel();
+   }
+}
@@ -0,0 +1,128 @@
+package com.matt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes text and numbers straight into a re-used byte buffer, writing it out to a channel each
+ * time it fills up.  Numbers are written digit by digit, so no Strings are made per value.
+ * <br><br>
+ * Not thread safe.  One of these is meant to be kept and re-used for every file written on a thread.
+ */
+final class ByteOutput {
+   private final ByteBuffer buffer;
+   private final byte[] digits = new byte[20];
+   private WritableByteChannel channel = null;
+   private long bytesWritten = 0;
+   
+   ByteOutput(int capacity) {
+      this.buffer = ByteBuffer.allocate(capacity);
+   }
+   
+   /**
+    * Starts writing to a new channel.  Anything not yet flushed to the last channel is dropped.
+    */
+   void open(WritableByteChannel channel) {
+      this.channel = channel;
+      this.bytesWritten = 0;
+      buffer.clear();
+   }
+   
+   void put(byte value) throws IOException {
+      if (!buffer.hasRemaining()) drain();
+      buffer.put(value);
+   }
+   
+   void put(byte[] bytes) throws IOException {
+      int offset = 0;
+      while (offset < bytes.length) {
+         if (!buffer.hasRemaining()) drain();
+         int count = Math.min(buffer.remaining(), bytes.length - offset);
+         buffer.put(bytes, offset, count);
+         offset += count;
+      }
+   }
+   
+   /**
+    * Writes the string as UTF-8.
+    */
+   void put(String text) throws IOException {
+      for (int i = 0; i < text.length(); i++) {
+         if (text.charAt(i) >= 0x80) {
+            put(text.getBytes(StandardCharsets.UTF_8));
+            return;
+         }
+      }
+      for (int i = 0; i < text.length(); i++) {
+         put((byte) text.charAt(i));
+      }
+   }
+   
+   /**
+    * Writes the number as decimal digits, just as Long.toString would.
+    */
+   void putDecimal(long value) throws IOException {
+      if (value == Long.MIN_VALUE) {
+         put(Long.toString(value));
+         return;
+      }
+      if (value < 0) {
+         put((byte) '-');
+         value = -value;
+      }
+      int length = 0;
+      do {
+         digits[length++] = (byte) ('0' + value % 10);
+         value /= 10;
+      } while (value != 0);
+      while (length > 0) {
+         put(digits[--length]);
+      }
+   }
+   
+   /**
+    * Writes the number in as few bytes as it fits in: seven bits per byte, low bits first, with
+    * the top bit set on every byte but the last.  Negative numbers are zig-zag encoded first, so
+    * small negative numbers stay small too.
+    */
+   void putVarLong(long value) throws IOException {
+      long bits = (value << 1) ^ (value >> 63);
+      while ((bits & ~0x7FL) != 0) {
+         put((byte) ((bits & 0x7F) | 0x80));
+         bits >>>= 7;
+      }
+      put((byte) bits);
+   }
+   
+   void putInt(int value) throws IOException {
+      put((byte) (value >>> 24));
+      put((byte) (value >>> 16));
+      put((byte) (value >>> 8));
+      put((byte) value);
+   }
+   
+   /**
+    * Writes out everything still in the buffer.
+    */
+   void flush() throws IOException {
+      drain();
+   }
+   
+   /**
+    * @return Number of bytes written out since the channel was opened, including any not yet flushed
+    */
+   long bytesWritten() {
+      return bytesWritten + buffer.position();
+   }
+   
+   private void drain() throws IOException {
+      buffer.flip();
+      bytesWritten += buffer.remaining();
+      while (buffer.hasRemaining()) {
+         channel.write(buffer);
+      }
+      buffer.clear();
+   }
+}
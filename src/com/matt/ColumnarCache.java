@@ -0,0 +1,361 @@
+package com.matt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Keeps a compact binary copy of each data source, already parsed, so that later runs can skip
+ * parsing the text entirely.  Each source is converted the first time it is read (while its
+ * rows are also being handed to the reports), and read back from the copy on every run after
+ * that, as long as the source's size and last modified time haven't changed.  Standard input is
+ * never cached.
+ * <br><br>
+ * The cache files hold the rows in blocks of up to 65536 rows.  Each block is stored column by
+ * column: the date types as bytes, then the start years and end years as shorts (using the same
+ * star and missing year values as {@link SearchRecord}), then the counts as longs.
+ */
+public final class ColumnarCache {
+   public static final String DEFAULT_DIRECTORY = "cache/";
+   
+   private static final int MAGIC = 0x46534343; //"FSCC"
+   private static final int VERSION = 1;
+   private static final int BLOCK_ROWS = 1 << 16;
+   private static final int BYTES_PER_ROW = 1 + 2 + 2 + 8;
+   private static final byte UNKNOWN_TYPE = -1;
+   
+   private final String directory;
+   
+   public ColumnarCache() {
+      this(DEFAULT_DIRECTORY);
+   }
+   
+   /**
+    * @param directory Folder to keep the cache files in.  Created if it doesn't exist.
+    */
+   public ColumnarCache(String directory) {
+      this.directory = directory;
+   }
+   
+   /**
+    * Converts every source in the catalog that doesn't already have an up-to-date cache file.
+    */
+   public void ingest(SourceCatalog catalog) {
+      for (DataSource source: catalog.sources()) {
+         try (RecordSource reader = open(source)) {
+            SearchRecord record = new SearchRecord();
+            while (reader.next(record)) {
+               //Just reading through converts the source
+            }
+         } catch (IOException e) {
+            System.out.println("Exception occured during cache ingest with file " + source
+                               + "!\n" + e.getMessage());
+         }
+      }
+   }
+   
+   /**
+    * Opens the rows of the given source, skipping its header.  If the source has an up-to-date
+    * cache file, the rows are read from that.  Otherwise they are parsed from the source text,
+    * and a new cache file is written as they are read (and kept once the last row is read).
+    */
+   RecordSource open(DataSource source) throws IOException {
+      //Standard input has nothing to key a cache file on, so it is always read as it comes in
+      if (source.isStdin()) return source.openRecords();
+      
+      Path sourcePath = Paths.get(source.path());
+      long size = Files.size(sourcePath);
+      long modified = Files.getLastModifiedTime(sourcePath).toMillis();
+      File cacheFile = cacheFileFor(source);
+      
+      if (cacheFile.exists()) {
+         CachedReader cached = new CachedReader(cacheFile);
+         if (cached.matches(source, size, modified)) return cached;
+         cached.close();
+      }
+      
+      return new ConvertingReader(source.openRecords(), new CacheWriter(cacheFile, source, size, modified));
+   }
+   
+   /**
+    * @return Cache file for the source, named after the source file plus a hash of its full path
+    */
+   File cacheFileFor(DataSource source) {
+      File file = new File(source.path());
+      String key = Integer.toHexString(file.getAbsolutePath().hashCode());
+      return new File(directory, file.getName() + "." + key + ".cols");
+   }
+   
+   /**
+    * Reads rows back out of a cache file, one block of columns at a time.
+    */
+   private static final class CachedReader implements RecordSource {
+      private final DataInputStream in;
+      private final String path;
+      private final long size;
+      private final long modified;
+      
+      private byte[] block = new byte[0];
+      private final byte[] types = new byte[BLOCK_ROWS];
+      private final short[] starts = new short[BLOCK_ROWS];
+      private final short[] ends = new short[BLOCK_ROWS];
+      private final long[] counts = new long[BLOCK_ROWS];
+      private int rows = 0;
+      private int index = 0;
+      private boolean finished = false;
+      private long bytesRead = 0;
+      
+      CachedReader(File cacheFile) throws IOException {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 1 << 16));
+         try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a cache file: " + cacheFile);
+            size = in.readLong();
+            modified = in.readLong();
+            byte[] pathBytes = new byte[in.readInt()];
+            in.readFully(pathBytes);
+            path = new String(pathBytes, StandardCharsets.UTF_8);
+         } catch (IOException e) {
+            in.close();
+            throw e;
+         }
+      }
+      
+      boolean matches(DataSource source, long sourceSize, long sourceModified) {
+         return size == sourceSize && modified == sourceModified
+                && path.equals(new File(source.path()).getAbsolutePath());
+      }
+      
+      @Override
+      public boolean next(SearchRecord record) throws IOException {
+         if (index == rows) {
+            if (finished || !readBlock()) return false;
+         }
+         
+         byte type = types[index];
+         record.type = (type == UNKNOWN_TYPE ? null : DateType.fromOrdinal(type));
+         record.start = starts[index];
+         record.end = ends[index];
+         record.count = counts[index];
+         record.buffer = null;
+         index++;
+         return true;
+      }
+      
+      @Override
+      public boolean readsBatches() {
+         return true;
+      }
+      
+      @Override
+      public boolean nextBatch(RowBatch batch) throws IOException {
+         if (index == rows) {
+            if (finished || !readBlock()) return false;
+         }
+         
+         int size = Math.min(rows - index, RowBatch.CAPACITY);
+         for (int i = 0; i < size; i++) {
+            byte type = types[index + i];
+            batch.slots[i] = (type == UNKNOWN_TYPE ? RowBatch.UNKNOWN_SLOT : type);
+            batch.starts[i] = starts[index + i];
+            batch.ends[i] = ends[index + i];
+         }
+         System.arraycopy(counts, index, batch.counts, 0, size);
+         batch.size = size;
+         index += size;
+         return true;
+      }
+      
+      private boolean readBlock() throws IOException {
+         int blockRows;
+         try {
+            blockRows = in.readInt();
+         } catch (EOFException e) {
+            throw new IOException("Cache file ended without its end marker", e);
+         }
+         if (blockRows == 0) {
+            finished = true;
+            return false;
+         }
+         
+         int length = blockRows * BYTES_PER_ROW;
+         if (block.length < length) block = new byte[length];
+         in.readFully(block, 0, length);
+         bytesRead += Integer.BYTES + length;
+         
+         ByteBuffer columns = ByteBuffer.wrap(block, 0, length);
+         columns.get(types, 0, blockRows);
+         columns.asShortBuffer().get(starts, 0, blockRows);
+         columns.position(columns.position() + blockRows * 2);
+         columns.asShortBuffer().get(ends, 0, blockRows);
+         columns.position(columns.position() + blockRows * 2);
+         columns.asLongBuffer().get(counts, 0, blockRows);
+         
+         rows = blockRows;
+         index = 0;
+         return true;
+      }
+      
+      @Override
+      public long bytesRead() {
+         return bytesRead;
+      }
+      
+      @Override
+      public void close() throws IOException {
+         in.close();
+      }
+   }
+   
+   /**
+    * Writes rows into a new cache file, one block of columns at a time.  The file is written
+    * under a temporary name and only moved into place once it is committed, so a half written
+    * cache file is never read.
+    */
+   private static final class CacheWriter {
+      private final File cacheFile;
+      private final File tempFile;
+      private final FileChannel channel;
+      
+      private final byte[] types = new byte[BLOCK_ROWS];
+      private final short[] starts = new short[BLOCK_ROWS];
+      private final short[] ends = new short[BLOCK_ROWS];
+      private final long[] counts = new long[BLOCK_ROWS];
+      private final ByteBuffer block = ByteBuffer.allocate(4 + BLOCK_ROWS * BYTES_PER_ROW);
+      private int rows = 0;
+      private boolean usable = true;
+      
+      CacheWriter(File cacheFile, DataSource source, long size, long modified) throws IOException {
+         this.cacheFile = cacheFile;
+         this.tempFile = new File(cacheFile.getPath() + ".tmp");
+         Files.createDirectories(cacheFile.getAbsoluteFile().getParentFile().toPath());
+         this.channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+         
+         byte[] pathBytes = new File(source.path()).getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+         ByteBuffer header = ByteBuffer.allocate(28 + pathBytes.length);
+         header.putInt(MAGIC).putInt(VERSION).putLong(size).putLong(modified).putInt(pathBytes.length).put(pathBytes);
+         header.flip();
+         writeFully(header);
+      }
+      
+      void append(SearchRecord record) throws IOException {
+         if (!usable) return;
+         //Years that don't fit in a short can't be cached, so this source will just be read as text each time
+         if (record.start > Short.MAX_VALUE || record.end > Short.MAX_VALUE) {
+            usable = false;
+            return;
+         }
+         
+         types[rows] = (record.type == null ? UNKNOWN_TYPE : (byte) record.type.ordinal());
+         starts[rows] = (short) record.start;
+         ends[rows] = (short) record.end;
+         counts[rows] = record.count;
+         rows++;
+         if (rows == BLOCK_ROWS) flushBlock();
+      }
+      
+      void commit() throws IOException {
+         if (!usable) {
+            abort();
+            return;
+         }
+         if (rows > 0) flushBlock();
+         ByteBuffer end = ByteBuffer.allocate(4).putInt(0);
+         end.flip();
+         writeFully(end);
+         channel.force(false);
+         channel.close();
+         Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      
+      void abort() throws IOException {
+         channel.close();
+         Files.deleteIfExists(tempFile.toPath());
+      }
+      
+      private void flushBlock() throws IOException {
+         block.clear();
+         block.putInt(rows);
+         block.put(types, 0, rows);
+         block.asShortBuffer().put(starts, 0, rows);
+         block.position(block.position() + rows * 2);
+         block.asShortBuffer().put(ends, 0, rows);
+         block.position(block.position() + rows * 2);
+         block.asLongBuffer().put(counts, 0, rows);
+         block.position(block.position() + rows * 8);
+         block.flip();
+         writeFully(block);
+         rows = 0;
+      }
+      
+      private void writeFully(ByteBuffer buffer) throws IOException {
+         while (buffer.hasRemaining()) {
+            channel.write(buffer);
+         }
+      }
+   }
+   
+   /**
+    * Reads rows from the source text, writing each one into a new cache file on the way through.
+    * The cache file is only kept if every row was read.
+    */
+   private static final class ConvertingReader implements RecordSource {
+      private final RecordSource text;
+      private final CacheWriter writer;
+      private boolean finished = false;
+      
+      ConvertingReader(RecordSource text, CacheWriter writer) {
+         this.text = text;
+         this.writer = writer;
+      }
+      
+      @Override
+      public boolean next(SearchRecord record) throws IOException {
+         if (!text.next(record)) {
+            finished = true;
+            return false;
+         }
+         writer.append(record);
+         return true;
+      }
+      
+      @Override
+      public long bytesRead() {
+         return text.bytesRead();
+      }
+      
+      @Override
+      public void rejectMalformedTo(RejectSink rejects, DataSource source) {
+         text.rejectMalformedTo(rejects, source);
+      }
+      
+      @Override
+      public long malformedRows() {
+         return text.malformedRows();
+      }
+      
+      @Override
+      public void close() throws IOException {
+         try {
+            text.close();
+         } finally {
+            if (finished) {
+               writer.commit();
+            } else {
+               writer.abort();
+            }
+         }
+      }
+   }
+}
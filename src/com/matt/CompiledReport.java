@@ -0,0 +1,414 @@
+package com.matt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+import com.matt.ReportSpec.Dimension;
+import com.matt.ReportSpec.Filter;
+
+/**
+ * A {@link ReportSpec} compiled into a report.  Everything about a row that only depends on its
+ * source and date type (the static dimensions and filters) is worked out up front, for every
+ * combination of source variant, system, and type, into a single lookup table.  Each row then
+ * only costs one lookup, plus whatever its row dimension needs from its years.  There is a
+ * subclass with its own scan loop for each kind of row dimension, so no row pays for checks
+ * that its report doesn't need.
+ */
+abstract class CompiledReport extends Report {
+   private static final int SYSTEMS = SearchSystem.values().length;
+   private static final int TYPE_SLOTS = DateType.values().length + 1;
+   private static final int UNKNOWN_TYPE_SLOT = TYPE_SLOTS - 1;
+   
+   //Codes in the columns lookup for rows that aren't counted
+   private static final int FILTERED = -1;
+   private static final int UNKNOWN_TYPE = -2;
+   private static final int UNCOUNTED_TYPE = -3;
+   
+   protected final ReportSpec spec;
+   protected final CountTable table;
+   protected final int bucketSize;
+   protected final int stop;
+   protected final int starIndex;
+   //Row and column for each (variant, system, type slot), or one of the codes above in columns
+   protected final int[] rows;
+   protected final int[] columns;
+   protected final Filter[] rowFilters;
+   //Sketch of the distinct patterns in each cell of the table (made when first needed), or null if they aren't counted
+   protected final DistinctSketch[] distinct;
+   
+   private CompiledReport(ReportSpec spec) {
+      super(spec.name(), spec.outputFile());
+      this.spec = spec;
+      Dimension rowDimension = spec.rowDimension();
+      Dimension columnDimension = spec.columnDimension();
+      this.bucketSize = rowDimension.bucketSize;
+      this.stop = rowDimension.stop;
+      this.table = newTable(columnDimension.size());
+      this.starIndex = table.starRow();
+      this.distinct = (spec.countsDistinctPatterns() ? new DistinctSketch[table.rowCount() * table.columnCount()] : null);
+      
+      this.rows = new int[2 * SYSTEMS * TYPE_SLOTS];
+      this.columns = new int[rows.length];
+      for (int variant = 0; variant < 2; variant++) {
+         for (int system = 0; system < SYSTEMS; system++) {
+            for (int slot = 0; slot < TYPE_SLOTS; slot++) {
+               DateType type = (slot == UNKNOWN_TYPE_SLOT ? null : DateType.fromOrdinal(slot));
+               int key = (variant * SYSTEMS + system) * TYPE_SLOTS + slot;
+               rows[key] = (rowDimension.isStatic() ? indexIn(rowDimension, variant, system, type) : 0);
+               columns[key] = indexIn(columnDimension, variant, system, type);
+               
+               //Filtered rows are left out quietly, so that takes priority over skipping them
+               for (Filter filter: spec.filters()) {
+                  if (filter.isStatic() && !filter.passes(variant, system, type)) {
+                     columns[key] = FILTERED;
+                  }
+               }
+               if (columns[key] >= 0 && rows[key] < 0) {
+                  columns[key] = rows[key];
+               }
+            }
+         }
+      }
+      
+      this.rowFilters = spec.filters().stream().filter(filter -> !filter.isStatic()).toArray(Filter[]::new);
+   }
+   
+   /**
+    * @return A new, empty report built to the given spec, with the scan loop for its row dimension
+    */
+   static CompiledReport compile(ReportSpec spec) {
+      switch (spec.rowDimension().kind) {
+         case YEAR:
+            return new YearBuckets(spec);
+         case MOST_RECENT_YEAR:
+            return new MostRecentYearBuckets(spec);
+         case RANGE_LENGTH:
+            return new RangeLengths(spec);
+         case TIME:
+            return new TimeBuckets(spec);
+         default:
+            return new StaticRows(spec);
+      }
+   }
+   
+   /**
+    * @return An empty table with the report's rows and the given number of columns
+    */
+   private CountTable newTable(int columnCount) {
+      return (spec.rowDimension().hasLabels()
+              ? new CountTable(spec.rowDimension().size(), columnCount)
+              : CountTable.yearBuckets(bucketSize, stop, columnCount));
+   }
+   
+   /**
+    * @return Index within a static dimension for rows of the given variant, system, and type, or a code
+    */
+   private static int indexIn(Dimension dimension, int variant, int system, DateType type) {
+      switch (dimension.kind) {
+         case DATE_TYPE:
+            if (type == null) return UNKNOWN_TYPE;
+            int index = dimension.indexOf(type);
+            return (index < 0 ? UNCOUNTED_TYPE : index);
+         case SYSTEM:
+            return system;
+         case VARIANT:
+            return variant;
+         default:
+            return 0;
+      }
+   }
+   
+   /**
+    * @return Key into the rows and columns lookups for the given row
+    */
+   protected static int keyFor(DataSource source, SearchRecord record) {
+      return keyFor(source) + (record.type == null ? UNKNOWN_TYPE_SLOT : record.type.ordinal());
+   }
+   
+   /**
+    * @return Key into the rows and columns lookups for the given source's rows of the first type slot
+    *         (add the type slot for the rest)
+    */
+   protected static int keyFor(DataSource source) {
+      int variant = (source.withDeaths() ? 1 : 0);
+      return (variant * SYSTEMS + source.system().ordinal()) * TYPE_SLOTS;
+   }
+   
+   /**
+    * @return Column to count the row in, or a negative number if it isn't counted (after skipping it if need be)
+    */
+   protected final int columnFor(int key, DataSource source, SearchRecord record) {
+      int column = columns[key];
+      if (column < 0) {
+         if (column == UNKNOWN_TYPE) {
+            skip(SkipReason.UNKNOWN_TYPE, source, record);
+         } else if (column == UNCOUNTED_TYPE) {
+            skip(SkipReason.UNCOUNTED_TYPE, source, record);
+         }
+         return FILTERED;
+      }
+      for (Filter filter: rowFilters) {
+         if (!filter.passes(record)) return FILTERED;
+      }
+      return column;
+   }
+   
+   /**
+    * Adds the row's date pattern to the distinct patterns of the given cell.  Only call when they are counted.
+    */
+   protected final void addDistinct(int row, int column, DataSource source, SearchRecord record) {
+      int cell = row * table.columnCount() + column;
+      if (distinct[cell] == null) distinct[cell] = new DistinctSketch();
+      int pattern = source.system().ordinal() * TYPE_SLOTS + (record.type == null ? UNKNOWN_TYPE_SLOT : record.type.ordinal());
+      long years = ((long) record.start << 32) | (record.end & 0xFFFFFFFFL);
+      distinct[cell].add(DistinctSketch.mix(DistinctSketch.mix(years) + pattern));
+   }
+   
+   @Override
+   boolean verifiesSources() {
+      return spec.verifiesSources();
+   }
+   
+   @Override
+   Report newPartial() {
+      return compile(spec);
+   }
+   
+   @Override
+   void merge(Report partial) {
+      CompiledReport other = (CompiledReport) partial;
+      table.merge(other.table);
+      if (distinct == null) return;
+      for (int cell = 0; cell < distinct.length; cell++) {
+         if (other.distinct[cell] == null) continue;
+         if (distinct[cell] == null) distinct[cell] = new DistinctSketch();
+         distinct[cell].merge(other.distinct[cell]);
+      }
+   }
+   
+   @Override
+   String stateKey() {
+      return spec.key();
+   }
+   
+   @Override
+   void writeState(DataOutput out) throws IOException {
+      table.writeTo(out);
+      if (distinct == null) return;
+      for (DistinctSketch sketch: distinct) {
+         out.writeBoolean(sketch != null);
+         if (sketch != null) sketch.writeTo(out);
+      }
+   }
+   
+   @Override
+   void readState(DataInput in) throws IOException {
+      table.readFrom(in);
+      if (distinct == null) return;
+      for (int cell = 0; cell < distinct.length; cell++) {
+         if (!in.readBoolean()) continue;
+         distinct[cell] = new DistinctSketch();
+         distinct[cell].readFrom(in);
+      }
+   }
+   
+   @Override
+   void write() {
+      List<String> columnLabels = spec.columnDimension().labels();
+      String header = countsHeader();
+      CountTable output = table;
+      if (distinct != null) {
+         //The distinct pattern estimates go in a column after all the counts, for each column
+         output = newTable(2 * table.columnCount());
+         for (int row = 0; row < table.rowCount(); row++) {
+            for (int column = 0; column < table.columnCount(); column++) {
+               DistinctSketch sketch = distinct[row * table.columnCount() + column];
+               output.add(row, column, table.get(row, column));
+               output.add(row, table.columnCount() + column, sketch == null ? 0 : sketch.estimate());
+            }
+         }
+         for (String label: columnLabels) {
+            header += "," + label + "Distinct";
+         }
+      }
+      if (spec.rowDimension().hasLabels()) {
+         DataHandler.writeTableToFileWithReplacements(output, outputFile, header, spec.rowDimension().labels());
+      } else {
+         DataHandler.writeTableToFile(output, outputFile, header);
+      }
+   }
+   
+   @Override
+   CountTable counts() {
+      //Distinct pattern estimates can't be scaled up from a sample like counts can
+      return (distinct == null ? table : null);
+   }
+   
+   @Override
+   String countsHeader() {
+      return spec.rowDimension().name + "," + String.join(",", spec.columnDimension().labels());
+   }
+   
+   @Override
+   List<String> countsRowLabels() {
+      return (spec.rowDimension().hasLabels() ? spec.rowDimension().labels() : null);
+   }
+   
+   /**
+    * Rows that only depend on the source and date type.
+    */
+   private static final class StaticRows extends CompiledReport {
+      StaticRows(ReportSpec spec) {
+         super(spec);
+      }
+      
+      @Override
+      void accept(DataSource source, SearchRecord record) {
+         int key = keyFor(source, record);
+         int column = columnFor(key, source, record);
+         if (column < 0) return;
+         table.add(rows[key], column, record.count);
+         if (distinct != null) addDistinct(rows[key], column, source, record);
+      }
+   }
+   
+   /**
+    * Rows of years, counting both the start and end year of each row.
+    */
+   private static final class YearBuckets extends CompiledReport {
+      private final BucketKernel kernel = BucketKernel.create();
+      private final int[] columnOfSlot = new int[TYPE_SLOTS];
+      private final SearchRecord skipped = new SearchRecord();
+      
+      YearBuckets(ReportSpec spec) {
+         super(spec);
+      }
+      
+      @Override
+      boolean acceptsBatches() {
+         //The kernel only knows about columns and years, so anything more needs each row
+         return distinct == null && rowFilters.length == 0;
+      }
+      
+      @Override
+      void acceptBatch(DataSource source, RowBatch batch) {
+         int key = keyFor(source);
+         boolean skips = false;
+         for (int slot = 0; slot < TYPE_SLOTS; slot++) {
+            columnOfSlot[slot] = columns[key + slot];
+            skips |= columnOfSlot[slot] < FILTERED;
+         }
+         //The kernel adds all of the batch or none of it, and skipping can't fail, so nothing is ever half counted
+         kernel.addYearBuckets(batch, columnOfSlot, bucketSize, stop, starIndex, table.columnCount(), table.cells());
+         
+         //Rows of types that aren't counted are still skipped one by one, so they're logged like any other
+         for (int i = 0; skips && i < batch.size; i++) {
+            if (columnOfSlot[batch.slots[i]] < FILTERED) {
+               batch.copyRow(i, skipped);
+               columnFor(key + batch.slots[i], source, skipped);
+            }
+         }
+      }
+      
+      @Override
+      void accept(DataSource source, SearchRecord record) {
+         int column = columnFor(keyFor(source, record), source, record);
+         if (column < 0) return;
+         
+         //Design choice: Add the Any, From, and To as all the same thing. (treat From just like Any)
+         int startRow = (record.start == SearchRecord.STAR_YEAR ? starIndex : Math.min(record.start, stop) / bucketSize);
+         table.add(startRow, column, record.count);
+         if (distinct != null) addDistinct(startRow, column, source, record);
+         if (record.end != SearchRecord.NO_YEAR) {
+            int endRow = (record.end == SearchRecord.STAR_YEAR ? starIndex : Math.min(record.end, stop) / bucketSize);
+            table.add(endRow, column, record.count);
+            if (distinct != null) addDistinct(endRow, column, source, record);
+         }
+      }
+   }
+   
+   /**
+    * Rows of years, counting only the most recent year of each row.
+    */
+   private static final class MostRecentYearBuckets extends CompiledReport {
+      MostRecentYearBuckets(ReportSpec spec) {
+         super(spec);
+      }
+      
+      @Override
+      void accept(DataSource source, SearchRecord record) {
+         int column = columnFor(keyFor(source, record), source, record);
+         if (column < 0) return;
+         
+         int year = LivingPersonsBySystemReport.mostRecentYear(record);
+         if (year < 0) {
+            skip(SkipReason.NO_YEAR, source, record);
+            return;
+         }
+         int row = Math.min(year, stop) / bucketSize;
+         table.add(row, column, record.count);
+         if (distinct != null) addDistinct(row, column, source, record);
+      }
+   }
+   
+   /**
+    * Rows of range lengths.
+    */
+   private static final class RangeLengths extends CompiledReport {
+      RangeLengths(ReportSpec spec) {
+         super(spec);
+      }
+      
+      @Override
+      void accept(DataSource source, SearchRecord record) {
+         if (record.end == SearchRecord.NO_YEAR) return;
+         int column = columnFor(keyFor(source, record), source, record);
+         if (column < 0) return;
+         
+         int row;
+         if (record.start == SearchRecord.STAR_YEAR || record.end == SearchRecord.STAR_YEAR) {
+            row = starIndex;
+         } else {
+            row = Math.min(record.end - record.start, stop) / bucketSize;
+         }
+         if (row < 0) {
+            skip(SkipReason.NEGATIVE_RANGE, source, record);
+            return;
+         }
+         table.add(row, column, record.count);
+         if (distinct != null) addDistinct(row, column, source, record);
+      }
+   }
+   
+   /**
+    * Rows of the hours or days searches were made in.
+    */
+   private static final class TimeBuckets extends CompiledReport {
+      private final long from;
+      private final int rowCount;
+      
+      TimeBuckets(ReportSpec spec) {
+         super(spec);
+         this.from = spec.rowDimension().from;
+         this.rowCount = spec.rowDimension().size();
+      }
+      
+      @Override
+      void accept(DataSource source, SearchRecord record) {
+         int column = columnFor(keyFor(source, record), source, record);
+         if (column < 0) return;
+         
+         if (record.time == SearchRecord.NO_TIME) {
+            skip(SkipReason.NO_TIME, source, record);
+            return;
+         }
+         long row = Math.floorDiv(record.time - from, bucketSize);
+         //Searches outside the report's days are left out quietly, like a filter
+         if (row < 0 || row >= rowCount) return;
+         table.add((int) row, column, record.count);
+         if (distinct != null) addDistinct((int) row, column, source, record);
+      }
+   }
+}
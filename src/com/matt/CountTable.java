@@ -0,0 +1,140 @@
+package com.matt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A dense table of counts, held in a single flat long[] (row by column) so adding to a cell
+ * never boxes a value, and sums are safe well past the range of an int.
+ * <br><br>
+ * Tables of years are made with {@link #yearBuckets(int, int, int)}, which gives one row per
+ * bucket of years plus a fixed last row for searches that used a star instead of a year.
+ */
+final class CountTable {
+   private final int rowCount;
+   private final int columnCount;
+   private final long[] counts;
+   private final int bucketSize;
+   private final int starRow;
+   
+   private CountTable(int rowCount, int columnCount, int bucketSize, int starRow) {
+      this.rowCount = rowCount;
+      this.columnCount = columnCount;
+      this.counts = new long[rowCount * columnCount];
+      this.bucketSize = bucketSize;
+      this.starRow = starRow;
+   }
+   
+   /**
+    * Creates a table where each row is just an index, meant to be written out with
+    * {@link DataHandler#writeTableToFileWithReplacements(CountTable, String, String, java.util.List)}.
+    *
+    * @param rowCount Number of rows
+    * @param columnCount Number of count columns in each row
+    */
+   CountTable(int rowCount, int columnCount) {
+      this(rowCount, columnCount, 1, -1);
+   }
+   
+   /**
+    * Creates a table with one row for every bucketSize years up to and including stopYear,
+    * plus a final row for stars.
+    *
+    * @param bucketSize Number of years in each row
+    * @param stopYear Largest year (or length) that gets a row of its own
+    * @param columnCount Number of count columns in each row
+    */
+   static CountTable yearBuckets(int bucketSize, int stopYear, int columnCount) {
+      int bucketCount = (stopYear / bucketSize) + 1;
+      return new CountTable(bucketCount + 1, columnCount, bucketSize, bucketCount);
+   }
+   
+   /**
+    * @return A new, empty table with the same rows as this one (buckets and all), and the given number of columns
+    */
+   CountTable withColumns(int columnCount) {
+      return new CountTable(rowCount, columnCount, bucketSize, starRow);
+   }
+   
+   void add(int row, int column, long amount) {
+      counts[row * columnCount + column] += amount;
+   }
+   
+   long get(int row, int column) {
+      return counts[row * columnCount + column];
+   }
+   
+   void set(int row, int column, long value) {
+      counts[row * columnCount + column] = value;
+   }
+   
+   /**
+    * @return The table's counts, row by column, for kernels that add up many rows at once (see {@link BucketKernel})
+    */
+   long[] cells() {
+      return counts;
+   }
+   
+   /**
+    * Adds every count in the other table into this one.  Both tables must have the same shape.
+    */
+   void merge(CountTable other) {
+      if (other.rowCount != rowCount || other.columnCount != columnCount) {
+         throw new IllegalArgumentException("Cannot merge a " + other.rowCount + "x" + other.columnCount
+                                            + " table into a " + rowCount + "x" + columnCount + " table");
+      }
+      for (int i = 0; i < counts.length; i++) {
+         counts[i] += other.counts[i];
+      }
+   }
+   
+   /**
+    * Writes the shape and counts of this table, to be read back with {@link #readFrom(DataInput)}.
+    */
+   void writeTo(DataOutput out) throws IOException {
+      out.writeInt(rowCount);
+      out.writeInt(columnCount);
+      for (long count: counts) {
+         out.writeLong(count);
+      }
+   }
+   
+   /**
+    * Replaces the counts in this table with ones written by {@link #writeTo(DataOutput)}.
+    * The table written must have the same shape as this one.
+    */
+   void readFrom(DataInput in) throws IOException {
+      int rows = in.readInt();
+      int columns = in.readInt();
+      if (rows != rowCount || columns != columnCount) {
+         throw new IOException("Cannot read a " + rows + "x" + columns + " table into a "
+                               + rowCount + "x" + columnCount + " table");
+      }
+      for (int i = 0; i < counts.length; i++) {
+         counts[i] = in.readLong();
+      }
+   }
+   
+   int rowCount() {
+      return rowCount;
+   }
+   
+   int columnCount() {
+      return columnCount;
+   }
+   
+   /**
+    * @return Index of the row for stars, or -1 if this table does not have one
+    */
+   int starRow() {
+      return starRow;
+   }
+   
+   /**
+    * @return First year (or length) of the bucket the given row holds, or -1 for the star row
+    */
+   int rowStart(int row) {
+      return row == starRow ? -1 : row * bucketSize;
+   }
+}
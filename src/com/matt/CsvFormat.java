@@ -0,0 +1,34 @@
+package com.matt;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes tables as csv, with a header line, then one line per row: the row's name followed by
+ * each of its counts.
+ */
+final class CsvFormat implements OutputFormat {
+   
+   @Override
+   public String name() {
+      return "csv";
+   }
+   
+   @Override
+   public void writeHeader(String[] columns, long rowCount, ByteOutput out) throws IOException {
+      out.put(String.join(",", columns));
+      out.put((byte) '\n');
+   }
+   
+   @Override
+   public void writeRows(CountTable table, String[] columns, List<String> rowLabels, ByteOutput out) throws IOException {
+      for (int row = 0; row < table.rowCount(); row++) {
+         OutputFormat.putRowLabel(table, row, rowLabels, out);
+         for (int i = 0; i < table.columnCount(); i++) {
+            out.put((byte) ',');
+            out.putDecimal(table.get(row, i));
+         }
+         out.put((byte) '\n');
+      }
+   }
+}
@@ -1,13 +1,15 @@
 package com.matt;
 
-import java.io.*;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Entry points for each of the reports.  Each method here reads through all the data sources
+ * on its own; to build several reports from a single read of the sources, register them on a
+ * {@link ReportPlan} instead.
+ */
 public class DataHandler {
-   private static final String STAR = "*";
-   private static final String PATH_TO_OUTPUT_FOLDER = "output/";
+   static final String STAR = "*";
+   static final String PATH_TO_OUTPUT_FOLDER = "output/";
    
    private static final String DATA_SOURCE_HR_A = "resource/allSearchYearsHR.csv";
    private static final String DATA_SOURCE_TREE_A = "resource/allSearchYearsTree.csv";
@@ -18,10 +20,13 @@ public class DataHandler {
    private static final String DATA_SOURCE_TREE_B = "resource/allSearchYearsTreeWithDeaths.csv";
    private static final String DATA_SOURCE_LLS_B = "resource/allSearchYearsLLSWithDeaths.csv";
    
-   private static final String[] DATA_SOURCES_A = { DATA_SOURCE_HR_A, DATA_SOURCE_TREE_A, DATA_SOURCE_LLS_A};
-   private static final String[] DATA_SOURCES_B = {DATA_SOURCE_HR_B, DATA_SOURCE_TREE_B, DATA_SOURCE_LLS_B};
-   private static final String[] ALL_DATA_SOURCES = { DATA_SOURCE_HR_A, DATA_SOURCE_TREE_A, DATA_SOURCE_LLS_A,
-                                                      DATA_SOURCE_HR_B, DATA_SOURCE_TREE_B, DATA_SOURCE_LLS_B};
+   static final DataSource[] ALL_DATA_SOURCES = {
+         new DataSource(DATA_SOURCE_HR_A, SearchSystem.HR, false),
+         new DataSource(DATA_SOURCE_TREE_A, SearchSystem.TREE, false),
+         new DataSource(DATA_SOURCE_LLS_A, SearchSystem.LLS, false),
+         new DataSource(DATA_SOURCE_HR_B, SearchSystem.HR, true),
+         new DataSource(DATA_SOURCE_TREE_B, SearchSystem.TREE, true),
+         new DataSource(DATA_SOURCE_LLS_B, SearchSystem.LLS, true)};
    
    
    /**
@@ -35,58 +40,14 @@ public class DataHandler {
     * @param stopLength The length beyond which all results are grouped together (Helps deal with outliers)
     */
    public static void dateRangeLengths(String outputFile, int bucketSize, int stopLength) {
-      
-      //Initialize the data structure to hold the sums
-      ArrayList<List<Integer>> table = new ArrayList<>();
-      int bucketCount = (stopLength / bucketSize) + 1;
-      for (int i = 0; i < bucketCount; i++) {
-         table.add(Arrays.asList(i * bucketSize, 0));
-      }
-      table.add(Arrays.asList(-1, 0));
-      int starIndex = table.size() - 1;
-      
-      for (String dataSource: ALL_DATA_SOURCES) {
-         try (BufferedReader reader = new BufferedReader(new FileReader(dataSource))) {
-            
-            String line;
-            reader.readLine(); //Clear out headers
-            while (( line = reader.readLine() ) != null) {
-               
-               String[] parts = line.split(",");
-               
-               int rowCount = Integer.parseInt(parts[1]);
-               String[] dateParts = parts[0].replaceAll("\"", "").split(";");
-               String dateType = dateParts[0];
-               if (dateParts.length != 3)
-                  continue;
-               
-               int rowIndex;
-               if (dateParts[1].equals(STAR) || dateParts[2].equals(STAR)) {
-                  rowIndex = starIndex;
-               }
-               else {
-                  int rangeLength = Integer.parseInt(dateParts[2]) - Integer.parseInt(dateParts[1]);
-                  rowIndex = Math.min(rangeLength, stopLength) / bucketSize;
-               }
-               if (rowIndex < 0)
-                  continue;
-               
-               //Actually add the data to the table
-               List<Integer> entry = table.get(rowIndex);
-               //Design choice: Add the Any, From, and To as all the same thing. (treat From just like Any)
-               entry.set(1, entry.get(1) + rowCount);
-               
-            }
-         }
-         catch (Exception e) {
-            System.out.println("Exception occured during \"dateRangeLengths\" READ with file " + dataSource
-                               + "!\n" + e.getMessage());
-            e.printStackTrace();
-         }
-      }
-      
-      writeTableToFile(table, outputFile, "length,count");
-      
+      dateRangeLengths(outputFile, bucketSize, stopLength, ScanMode.EXACT);
+   }
+   
+   /**
+    * Same as {@link #dateRangeLengths(String, int, int)}, read the given way (see {@link ScanMode}).
+    */
+   public static void dateRangeLengths(String outputFile, int bucketSize, int stopLength, ScanMode mode) {
+      mode.run(new ReportPlan().dateRangeLengths(outputFile, bucketSize, stopLength));
    }
    
    /**
@@ -101,87 +62,14 @@ public class DataHandler {
     * @param stopYear The year after which all results are grouped together (Helps deal with outliers)
     */
    public static void searchedYearsByType(String outputFile, int bucketSize, int stopYear) {
-      verifyDataSources();
-      
-      //Initialize the data structure to hold the sums
-      ArrayList<List<Integer>> table = new ArrayList<>();
-      int bucketCount = (stopYear / bucketSize) + 1;
-      for (int i = 0; i < bucketCount; i++) {
-         table.add(Arrays.asList(i * bucketSize, 0, 0, 0, 0));
-      }
-      table.add(Arrays.asList(-1, 0, 0, 0, 0));
-      int starIndex = table.size() - 1;
-      
-      //Part 1: Read in data from the sources
-      for (String dataSource: ALL_DATA_SOURCES) {
-         try (BufferedReader reader = new BufferedReader(new FileReader(dataSource))) {
-            
-            String line;
-            reader.readLine(); //Clear out headers
-            while (( line = reader.readLine() ) != null) {
-               
-               String[] parts = line.split(",");
-               
-               int rowCount = Integer.parseInt(parts[1]);
-               String[] dateParts = parts[0].replaceAll("\"", "").split(";");
-               String dateType = dateParts[0];
-               
-               int yearBucketIndex = (dateParts[1].equals(STAR)
-                                      ? starIndex
-                                      : (Math.min(Integer.parseInt(dateParts[1]), stopYear) / bucketSize));
-               int yearBucketIndex2 = -1;
-               if (dateParts.length > 2) {
-                  yearBucketIndex2 = (dateParts[2].equals(STAR)
-                                      ? starIndex
-                                      : (Math.min(Integer.parseInt(dateParts[2]), stopYear) / bucketSize));
-               }
-               
-               //Handle the second entry: Turn year type into year type index
-               int columnIndex;
-               switch (dateType) {
-                  case "birth":
-                     columnIndex = 1;
-                     break;
-                  case "death":
-                     columnIndex = 2;
-                     break;
-                  case "any":
-                     columnIndex = 3;
-                     break;
-                  case "residence":
-                  case "other":
-                  case "marriage":
-                     columnIndex = 4;
-                     break;
-                  default:
-                     System.out.println("Skipping line: Could not find index for type "
-                                        + dateType + " within " + dataSource + " at year index "
-                                        + yearBucketIndex + "!");
-                     continue;
-               }
-               
-               //Actually add the data to the table
-               List<Integer> entry = table.get(yearBucketIndex);
-               //Design choice: Add the Any, From, and To as all the same thing. (treat From just like Any)
-               entry.set(columnIndex, entry.get(columnIndex) + rowCount);
-               
-               if (yearBucketIndex2 != -1) {
-                  //Actually add the data to the table
-                  List<Integer> entry2 = table.get(yearBucketIndex2);
-                  //Design choice: Add the Any, From, and To as all the same thing. (treat From just like Any)
-                  entry2.set(columnIndex, entry2.get(columnIndex) + rowCount);
-               }
-               
-            }
-         } catch (Exception e) {
-            System.out.println("Exception occured during \"searchedYearsAcrossAllSystems\" READ with file " + dataSource
-                               + "!\n" + e.getMessage());
-            e.printStackTrace();
-         }
-      }
-      
-      writeTableToFile(table, outputFile, "year,birth,death,any,other");
-      
+      searchedYearsByType(outputFile, bucketSize, stopYear, ScanMode.EXACT);
+   }
+   
+   /**
+    * Same as {@link #searchedYearsByType(String, int, int)}, read the given way (see {@link ScanMode}).
+    */
+   public static void searchedYearsByType(String outputFile, int bucketSize, int stopYear, ScanMode mode) {
+      mode.run(new ReportPlan().searchedYearsByType(outputFile, bucketSize, stopYear));
    }
    
    /**
@@ -195,83 +83,14 @@ public class DataHandler {
     * @param stopYear The year after which all results are grouped together (Helps deal with outliers)
     */
    public static void birthYearSearchesBySystem(String outputFile, int bucketSize, int stopYear) {
-      verifyDataSources();
-      
-      //Initialize the data structure to hold the sums
-      ArrayList<List<Integer>> table = new ArrayList<>();
-      int bucketCount = (stopYear / bucketSize) + 1;
-      for (int i = 0; i < bucketCount; i++) {
-         table.add(Arrays.asList(i * bucketSize, 0, 0, 0));
-      }
-      table.add(Arrays.asList(-1, 0, 0, 0));
-      int starIndex = table.size() - 1;
-      
-      //Part 1: Read in data from the sources
-      for (String dataSource: ALL_DATA_SOURCES) {
-         
-         int columnIndex = -1;
-         switch(dataSource) {
-            case DATA_SOURCE_HR_A:
-            case DATA_SOURCE_HR_B:
-               columnIndex = 1;
-               break;
-            case DATA_SOURCE_TREE_A:
-            case DATA_SOURCE_TREE_B:
-               columnIndex = 2;
-               break;
-            case DATA_SOURCE_LLS_A:
-            case DATA_SOURCE_LLS_B:
-               columnIndex = 3;
-               break;
-         }
-         
-         try (BufferedReader reader = new BufferedReader(new FileReader(dataSource))) {
-            
-            String line;
-            reader.readLine(); //Clear out headers
-            while (( line = reader.readLine() ) != null) {
-               
-               String[] parts = line.split(",");
-               
-               int rowCount = Integer.parseInt(parts[1]);
-               String[] dateParts = parts[0].replaceAll("\"", "").split(";");
-               String dateType = dateParts[0];
-               
-               //Skip any records that are not birth years
-               if (!dateType.equals("birth")) continue;
-               
-               int yearBucketIndex = (dateParts[1].equals(STAR)
-                                      ? starIndex
-                                      : (Math.min(Integer.parseInt(dateParts[1]), stopYear) / bucketSize));
-               int yearBucketIndex2 = -1;
-               if (dateParts.length > 2) {
-                  yearBucketIndex2 = (dateParts[2].equals(STAR)
-                                      ? starIndex
-                                      : (Math.min(Integer.parseInt(dateParts[2]), stopYear) / bucketSize));
-               }
-               
-               //Actually add the data to the table
-               List<Integer> entry = table.get(yearBucketIndex);
-               //Design choice: Add the Any, From, and To as all the same thing. (treat From just like Any)
-               entry.set(columnIndex, entry.get(columnIndex) + rowCount);
-               
-               if (yearBucketIndex2 != -1) {
-                  //Actually add the data to the table
-                  List<Integer> entry2 = table.get(yearBucketIndex2);
-                  //Design choice: Add the Any, From, and To as all the same thing. (treat From just like Any)
-                  entry2.set(columnIndex, entry2.get(columnIndex) + rowCount);
-               }
-               
-            }
-         } catch (Exception e) {
-            System.out.println("Exception occured during \"searchedYearsAcrossAllSystems\" READ with file " + dataSource
-                               + "!\n" + e.getMessage());
-            e.printStackTrace();
-         }
-      }
-      
-      writeTableToFile(table, outputFile, "year,hr,tree,lls");
-      
+      birthYearSearchesBySystem(outputFile, bucketSize, stopYear, ScanMode.EXACT);
+   }
+   
+   /**
+    * Same as {@link #birthYearSearchesBySystem(String, int, int)}, read the given way (see {@link ScanMode}).
+    */
+   public static void birthYearSearchesBySystem(String outputFile, int bucketSize, int stopYear, ScanMode mode) {
+      mode.run(new ReportPlan().birthYearSearchesBySystem(outputFile, bucketSize, stopYear));
    }
    
    /**
@@ -283,67 +102,14 @@ public class DataHandler {
     * @param outputFile Filename to have results saved to.  Make sure this is a .csv filename.
     */
    public static void yearTypesSearchedBySystem(String outputFile) {
-      verifyDataSources();
-      
-      ArrayList<String> yearTypes = new ArrayList<String>(Arrays.asList("birth", "death", "residence", "any", "marriage", "other"));
-      
-      //Initialize the data structure to hold the sums
-      ArrayList<List<Integer>> table = new ArrayList<>();
-      int numOfRows = yearTypes.size();
-      for (int i = 0; i < numOfRows; i++) {
-         table.add(Arrays.asList(i, 0, 0, 0));
-      }
-      
-      //Part 1: Read in data from the sources
-      for (String dataSource: ALL_DATA_SOURCES) {
-         
-         int columnIndex = -1;
-         switch(dataSource) {
-            case DATA_SOURCE_HR_A:
-            case DATA_SOURCE_HR_B:
-               columnIndex = 1;
-               break;
-            case DATA_SOURCE_TREE_A:
-            case DATA_SOURCE_TREE_B:
-               columnIndex = 2;
-               break;
-            case DATA_SOURCE_LLS_A:
-            case DATA_SOURCE_LLS_B:
-               columnIndex = 3;
-               break;
-         }
-         
-         try (BufferedReader reader = new BufferedReader(new FileReader(dataSource))) {
-            
-            String line;
-            reader.readLine(); //Clear out headers
-            while (( line = reader.readLine() ) != null) {
-               
-               String[] parts = line.split(",");
-               int rowCount = Integer.parseInt(parts[1]);
-               String[] dateParts = parts[0].replaceAll("\"", "").split(";");
-               String dateType = dateParts[0];
-               
-               int rowIndex = yearTypes.indexOf(dateType);
-               if (rowIndex == -1) {
-                  System.out.println("Cannot find row index for type " + parts[1] + ".  Skipping..");
-                  continue;
-               }
-               
-               List<Integer> entry = table.get(rowIndex);
-               //Design choice: Add the Any, From, and To as all the same thing. (treat From just like Any)
-               entry.set(columnIndex, entry.get(columnIndex) + rowCount);
-               
-            }
-         } catch (Exception e) {
-            System.out.println("Exception occured during \"searchedYearsAcrossAllSystems\" READ with file " + dataSource
-                               + "!\n" + e.getMessage());
-            e.printStackTrace();
-         }
-      }
-      
-      writeTableToFileWithReplacements(table, outputFile, "yearType,hr,tree,lls", yearTypes);
-      
+      yearTypesSearchedBySystem(outputFile, ScanMode.EXACT);
+   }
+   
+   /**
+    * Same as {@link #yearTypesSearchedBySystem(String)}, read the given way (see {@link ScanMode}).
+    */
+   public static void yearTypesSearchedBySystem(String outputFile, ScanMode mode) {
+      mode.run(new ReportPlan().yearTypesSearchedBySystem(outputFile));
    }
    
    /**
@@ -359,253 +125,107 @@ public class DataHandler {
     * @param stopYear Years after this year will not be counted.  Generally, this is the current year.
     */
    public static void livingPersonSearchesBySystem(String outputFile, int birthCutoff, int otherCutoff, int stopYear) {
-      verifyDataSources();
-      
-      ArrayList<String> systems = new ArrayList<String>(Arrays.asList("hr", "tree", "lls", "total"));
-      
-      //Initialize the data structure to hold the sums
-      ArrayList<List<Integer>> table = new ArrayList<>();
-      int numOfRows = systems.size();
-      for (int i = 0; i < numOfRows; i++) {
-         table.add(Arrays.asList(i, 0, 0));
-      }
-      int totalSearches = 0;
-      int totalLivingSearches = 0;
-      
-      for (String dataSource: DATA_SOURCES_A) {
-         
-         int rowIndex = -1;
-         switch (dataSource) {
-            case DATA_SOURCE_HR_A:
-               rowIndex = 0;
-               break;
-            case DATA_SOURCE_TREE_A:
-               rowIndex = 1;
-               break;
-            case DATA_SOURCE_LLS_A:
-               rowIndex = 2;
-               break;
-         }
-         List<Integer> tableRow = table.get(rowIndex);
-         
-         try (BufferedReader reader = new BufferedReader(new FileReader(dataSource))) {
-            
-            String line;
-            reader.readLine(); //Clear out headers
-            while (( line = reader.readLine() ) != null) {
-               
-               String[] parts = line.split(",");
-               
-               int rowCount = Integer.parseInt(parts[1]);
-               String[] dateParts = parts[0].replaceAll("\"", "").split(";");
-               String dateType = dateParts[0];
-               
-               //This part is decently complicated.  This is because we care about the most recent date being searched.
-               //The most recent date is the date if it's not a range, and the end date if it's not a range.
-               //But if the range ends in a star, the real end date being searched is 10 years after the start.
-               //But if the range starts in a star, the end date is the given.
-               int rowYear = -11;
-               if (!dateParts[1].equals(STAR)) {
-                  rowYear = Integer.parseInt(dateParts[1]);
-               }
-               if (dateParts.length > 2) {
-                  if (dateParts[2].equals(STAR)) {
-                     rowYear += 10;
-                  } else {
-                     rowYear = Math.max(Integer.parseInt(dateParts[2]), rowYear);
-                  }
-               }
-               if (rowYear < 0) {
-                  //This is usually because both ends of the range are stars.
-                  System.out.println("Somehow, Row Date ended up less than zero.\nRow Date: " + rowYear + "\nLine: " + line);
-                  continue;
-               }
-               
-               int currentSystemTotalSearches = tableRow.get(1);
-               int currentSystemTotalLivingSearches = tableRow.get(2);
-               
-               currentSystemTotalSearches += rowCount;
-               totalSearches += rowCount;
-               
-               //Add them in to the living persons total depending on the date type
-               switch (dateType) {
-                  case "birth":
-                     if (rowYear >= birthCutoff && rowYear <= stopYear) {
-                        currentSystemTotalLivingSearches += rowCount;
-                        totalLivingSearches += rowCount;
-                     }
-                     break;
-                  case "residence":
-                  case "any":
-                  case "other":
-                  case "marriage":
-                     if (rowYear >= otherCutoff && rowYear <= stopYear) {
-                        currentSystemTotalLivingSearches += rowCount;
-                        totalLivingSearches += rowCount;
-                     }
-                     break;
-                  default:
-                     System.out.println("Skipping line: Could not find index for type "
-                                        + dateType + " within " + dataSource + " at year "
-                                        + rowYear + "!");
-                     continue;
-               }
-               
-               //Save the new count
-               tableRow.set(1, currentSystemTotalSearches);
-               tableRow.set(2, currentSystemTotalLivingSearches);
-            }
-         } catch (Exception e) {
-            System.out.println("Exception occured during \"searchedYearsAcrossAllSystems\" READ with file " + dataSource
-                               + "!\n" + e.getMessage());
-            e.printStackTrace();
-         }
-      }
-      
-      
-      //Add in all the searches that originally included a death year into the total
-      // (but not into the number of living person searches)
-      for (String dataSource: DATA_SOURCES_B) {
-         
-         int rowIndex = -1;
-         switch (dataSource) {
-            case DATA_SOURCE_HR_B:
-               rowIndex = 0;
-               break;
-            case DATA_SOURCE_TREE_B:
-               rowIndex = 1;
-               break;
-            case DATA_SOURCE_LLS_B:
-               rowIndex = 2;
-               break;
-         }
-         List<Integer> tableRow = table.get(rowIndex);
-         
-         try (BufferedReader reader = new BufferedReader(new FileReader(dataSource))) {
-            
-            String line;
-            reader.readLine(); //Clear out headers
-            while (( line = reader.readLine() ) != null) {
-               
-               String[] parts = line.split(",");
-               String[] dateParts = parts[0].replaceAll("\"", "").split(";");
-               
-               int rowCount = Integer.parseInt(parts[1]);
-               String dateType = dateParts[0];
-               
-               //Add this row to the totals, without checking for living searches
-               totalSearches += rowCount;
-               tableRow.set(1, tableRow.get(1) + rowCount);
-            }
-         } catch (Exception e) {
-            System.out.println("Exception occured during \"searchedYearsAcrossAllSystems\" READ with file " + dataSource
-                               + "!\n" + e.getMessage());
-            e.printStackTrace();
-         }
-      }
-      
-      
-      List<Integer> lastRow = table.get(systems.size()-1);
-      lastRow.set(1, totalSearches);
-      lastRow.set(2, totalLivingSearches);
-      
-      writeTableToFileWithReplacements(table, outputFile, "system,total,living", systems);
+      livingPersonSearchesBySystem(outputFile, birthCutoff, otherCutoff, stopYear, ScanMode.EXACT);
+   }
+   
+   /**
+    * Same as {@link #livingPersonSearchesBySystem(String, int, int, int)}, read the given way (see {@link ScanMode}).
+    */
+   public static void livingPersonSearchesBySystem(String outputFile, int birthCutoff, int otherCutoff, int stopYear, ScanMode mode) {
+      mode.run(new ReportPlan().livingPersonSearchesBySystem(outputFile, birthCutoff, otherCutoff, stopYear));
+   }
+   
+   /**
+    * Creates a dataset of the exact date patterns (system, type, start, and end) that are searched
+    * for the most, largest first, without any bucketing.  Recommended chart type: Bar Graph.
+    * <br><br>
+    * Memory stays fixed no matter how many distinct patterns there are, so counts may be a little
+    * too high once there are more than a few thousand times topCount patterns; maxOvercount gives
+    * the most each count could be over by (0 when it is exact).
+    * <br><br>
+    * Output is in the format: "system/dates,count,maxOvercount", with dates as "type;start;end"
+    *
+    * @param outputFile Filename to have results saved to.  Make sure this is a .csv filename.
+    * @param topCount Number of patterns to list
+    */
+   public static void topDatePatterns(String outputFile, int topCount) {
+      new ReportPlan().topDatePatterns(outputFile, topCount).run();
+   }
+   
+   /**
+    * Creates a dataset with the exact number of searches for every combination of the given keys
+    * that was searched at least once, such as every (system, type, start, end) pattern, in key
+    * order.  Recommended chart type: Table, or Scatter Plot for start and end.
+    * <br><br>
+    * There can be far more combinations than fit in memory, so at most memoryBudget bytes of sums
+    * are held at once (per thread reading the sources); past that, sorted sums are spilled to the
+    * spill/ folder and merged back together once every source has been read.
+    * <br><br>
+    * Output is in the format: "system/type/start/end,count" (with the keys that were asked for)
+    *
+    * @param outputFile Filename to have results saved to.  Make sure this is a .csv filename.
+    * @param memoryBudget Most bytes of sums to hold in memory on each thread
+    * @param keys Keys to group searches by
+    */
+   public static void searchCountsBy(String outputFile, long memoryBudget, GroupKey... keys) {
+      new ReportPlan().searchCountsBy(outputFile, memoryBudget, keys).run();
    }
    
    
    //----------------[ Helper Methods ]-------------------------
    
    /**
-    * Verifies that all the data source files exist.  If not, the ones that are
-    * missing will be printed to the console and the system will exit with
-    * code 7.  If all exist, then no action is taken.
+    * Waits for every output file handed off so far to finish being written.  Output files are
+    * written in the background (see {@link TableWriter}), so call this before the program ends
+    * or before reading any of them back.
+    *
+    * @throws java.io.UncheckedIOException If any of the files could not be written
     */
-   private static void verifyDataSources() {
-      boolean allFound = true;
-      //Without Death Sources
-      if (!(new File(DATA_SOURCE_HR_A).exists())) {
-         System.out.println("Cannot find HR file at " + DATA_SOURCE_HR_A);
-         allFound = false;
-      }
-      if (!(new File(DATA_SOURCE_TREE_A).exists())) {
-         System.out.println("Cannot find Tree file at " + DATA_SOURCE_TREE_A);
-         allFound = false;
-      }
-      if (!(new File(DATA_SOURCE_LLS_A).exists())) {
-         System.out.println("Cannot find LLS file at " + DATA_SOURCE_LLS_A);
-         allFound = false;
-      }
-      //With Death Sources
-      if (!(new File(DATA_SOURCE_HR_B).exists())) {
-         System.out.println("Cannot find HR file B at " + DATA_SOURCE_HR_B);
-         allFound = false;
-      }
-      if (!(new File(DATA_SOURCE_TREE_B).exists())) {
-         System.out.println("Cannot find Tree file B at " + DATA_SOURCE_TREE_B);
-         allFound = false;
-      }
-      if (!(new File(DATA_SOURCE_LLS_B).exists())) {
-         System.out.println("Cannot find LLS file B at " + DATA_SOURCE_LLS_B);
-         allFound = false;
-      }
-      
-      if (!allFound) System.exit(7);
+   public static void awaitWrites() {
+      TableWriter.awaitAll();
    }
    
    /**
-    * Writes the given table to the output file in csv format.
+    * Writes the given table to the output file, in the format matching its extension
+    * (csv unless it ends in .jsonl or .fstb, see {@link OutputFormat}).
     * Prepends the default output file folder path to filename.
+    * The first item of each line is the first year of that row's bucket, or a star for the star row.
+    * The file is written in the background; see {@link #awaitWrites()}.
     *
-    * @param table 2D array of integers to write
+    * @param table Table of counts to write.  Must not be changed afterwards.
     * @param outputFile Filename for output file
     * @param header Header string to be written onto the first line
     */
-   private static void writeTableToFile(List<List<Integer>> table, String outputFile, String header) {
-      try (FileWriter writer = new FileWriter(PATH_TO_OUTPUT_FOLDER + outputFile)) {
-         
-         writer.write(header + "\n");
-         for (List<Integer> line: table) {
-            writer.write(line.get(0) == -1 ? STAR : line.get(0) + "");
-            for (int i = 1; i < line.size(); i++) {
-               writer.write("," + line.get(i));
-            }
-            writer.write("\n");
-         }
-      } catch (Exception e) {
-         System.out.println("Exception occured during writing table to file " + outputFile
-                            + "!\n" + e.getMessage());
-      }
+   static void writeTableToFile(CountTable table, String outputFile, String header) {
+      TableWriter.submit(table, PATH_TO_OUTPUT_FOLDER + outputFile, header, null);
    }
    
    /**
-    * Acts just like the writeTableToFile method, but also treats the first
-    * item of each line as an index.  Instead of writing that item to the file,
-    * the string being written to the file will be the string at the index of the
-    * value of the first item in the replacements array.
+    * Acts just like the writeTableToFile method, but instead of starting each line with
+    * a year, starts it with the string in the replacements list at that row's index.
     * <br><br>
     * Example:<br>
-    * 2,155,2000 -> replacements[2],155,2000
+    * row 2: 155,2000 -> replacements[2],155,2000
     *
-    * @param table 2D array of integers to write
+    * @param table Table of counts to write.  Must not be changed afterwards.
     * @param outputFile Filename for output file
     * @param header Header string to be written onto the first line
-    * @param replacements List of Strings that are represented by the first item of each line
+    * @param replacements List of Strings that name each row of the table, or null to name them the way writeTableToFile does
     */
-   private static void writeTableToFileWithReplacements(List<List<Integer>> table, String outputFile, String header, ArrayList<String> replacements) {
-      try (FileWriter writer = new FileWriter(PATH_TO_OUTPUT_FOLDER + outputFile)) {
-         
-         writer.write(header + "\n");
-         for (List<Integer> line: table) {
-            writer.write(replacements.get(line.get(0)));
-            for (int i = 1; i < line.size(); i++) {
-               writer.write("," + line.get(i));
-            }
-            writer.write("\n");
-         }
-      } catch (Exception e) {
-         System.out.println("Exception occured during writing table to file " + outputFile
-                            + "!\n" + e.getMessage());
-      }
+   static void writeTableToFileWithReplacements(CountTable table, String outputFile, String header, List<String> replacements) {
+      TableWriter.submit(table, PATH_TO_OUTPUT_FOLDER + outputFile, header, replacements);
    }
    
+   /**
+    * Acts just like the writeTableToFileWithReplacements method, for a table too big to hold in
+    * memory at once.  Its rows are read and written a page at a time, in the background.
+    *
+    * @param table Pages of the table, with the name of each row.  Closed once written.
+    * @param outputFile Filename for output file
+    * @param header Header string to be written onto the first line
+    */
+   static void writePagedTableToFile(TableWriter.PagedTable table, String outputFile, String header) {
+      TableWriter.submit(table, PATH_TO_OUTPUT_FOLDER + outputFile, header);
+   }
+
 }
@@ -0,0 +1,108 @@
+package com.matt;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * One input file for the reports, along with the system it was pulled from and whether
+ * it holds the queries that included a death date (the "B" sources) or not (the "A" sources).
+ * <br><br>
+ * Sources can be plain files, gzipped files (ending in .gz), or standard input (a path of "-").
+ * A source can also be a raw search log (see {@link #rawLog(String)}), which holds searches from
+ * every system, both with and without death dates, so it has no system of its own.
+ */
+public final class DataSource {
+   /** Path used for a source that is piped in through standard input */
+   public static final String STDIN_PATH = "-";
+   
+   private final String path;
+   private final SearchSystem system;
+   private final boolean withDeaths;
+   private final boolean rawLog;
+   
+   public DataSource(String path, SearchSystem system, boolean withDeaths) {
+      this(path, system, withDeaths, false);
+   }
+   
+   private DataSource(String path, SearchSystem system, boolean withDeaths, boolean rawLog) {
+      this.path = path;
+      this.system = system;
+      this.withDeaths = withDeaths;
+      this.rawLog = rawLog;
+   }
+   
+   /**
+    * Creates a source for a raw search log, with one line per search instead of summed counts.
+    * See {@link RawLogScanner} for the layout.
+    *
+    * @param path Path of the log file (which may be gzipped), or "-" for standard input
+    */
+   public static DataSource rawLog(String path) {
+      return new DataSource(path, null, false, true);
+   }
+   
+   public String path() {
+      return path;
+   }
+   
+   /**
+    * @return System the source was pulled from, or null for a raw search log
+    */
+   public SearchSystem system() {
+      return system;
+   }
+   
+   /**
+    * @return True if this source only holds queries that included a death date
+    */
+   public boolean withDeaths() {
+      return withDeaths;
+   }
+   
+   /**
+    * @return True if this source is a raw search log, rather than an export of summed counts
+    */
+   public boolean isRawLog() {
+      return rawLog;
+   }
+   
+   /**
+    * @return True if this source is read from standard input
+    */
+   public boolean isStdin() {
+      return STDIN_PATH.equals(path);
+   }
+   
+   /**
+    * @return True if this source is a gzipped file
+    */
+   public boolean isCompressed() {
+      return path.endsWith(".gz");
+   }
+   
+   /**
+    * @return True if this source is an uncompressed file, which can be read from any position
+    */
+   public boolean isPlainFile() {
+      return !isStdin() && !isCompressed();
+   }
+   
+   /**
+    * Opens the rows of this source, skipping past its header.  Plain files are read on the
+    * calling thread; gzipped files and standard input are streamed through a
+    * {@link PipelinedRecordReader}.
+    */
+   RecordSource openRecords() throws IOException {
+      if (!isPlainFile()) {
+         return new PipelinedRecordReader(this);
+      }
+      RecordReader reader = new RecordReader(new FileInputStream(path));
+      reader.nextLine(); //Clear out headers
+      return reader;
+   }
+   
+   @Override
+   public String toString() {
+      return path;
+   }
+}
@@ -0,0 +1,60 @@
+package com.matt;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The kinds of dates that can be searched on.  The order here is the order the types are
+ * listed in {@link DataHandler#yearTypesSearchedBySystem(String)}.
+ */
+public enum DateType {
+   BIRTH("birth"),
+   DEATH("death"),
+   RESIDENCE("residence"),
+   ANY("any"),
+   MARRIAGE("marriage"),
+   OTHER("other");
+   
+   private static final DateType[] VALUES = values();
+   
+   private final String label;
+   private final byte[] labelBytes;
+   
+   DateType(String label) {
+      this.label = label;
+      this.labelBytes = label.getBytes(StandardCharsets.US_ASCII);
+   }
+   
+   /**
+    * @return Lowercase name of this type, as it appears in the data sources
+    */
+   public String label() {
+      return label;
+   }
+   
+   /**
+    * Finds the type whose name matches the given bytes, without creating a String.
+    *
+    * @param buffer Bytes holding the name
+    * @param from Index of the first byte of the name
+    * @param to Index just past the last byte of the name
+    * @return The matching type, or null if the name is not a known type
+    */
+   static DateType fromBytes(byte[] buffer, int from, int to) {
+      int length = to - from;
+      for (DateType type: VALUES) {
+         byte[] name = type.labelBytes;
+         if (name.length != length) continue;
+         int i = 0;
+         while (i < length && buffer[from + i] == name[i]) i++;
+         if (i == length) return type;
+      }
+      return null;
+   }
+   
+   /**
+    * @return The type with the given ordinal, without copying the values array
+    */
+   static DateType fromOrdinal(int ordinal) {
+      return VALUES[ordinal];
+   }
+}
@@ -0,0 +1,103 @@
+package com.matt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Estimates how many distinct values have been added, in a fixed {@value #REGISTERS} bytes, with
+ * the HyperLogLog algorithm.  Values are added as 64-bit hashes.  Estimates are typically within
+ * about 2.3% (and close to exact for small counts), and adding the same value again never
+ * changes them.
+ * <br><br>
+ * Merging two sketches keeps the larger of each register, which gives exactly the sketch of
+ * every value added to either, so sketches built on any number of threads or shards, in any
+ * order, give the very same estimate.
+ */
+final class DistinctSketch {
+   static final int PRECISION = 11;
+   static final int REGISTERS = 1 << PRECISION;
+   
+   //Highest rank a register can hold
+   private static final int MAX_RANK = 64 - PRECISION + 1;
+   
+   private final byte[] registers = new byte[REGISTERS];
+   
+   /**
+    * Adds a value, by its hash.  The hash must be well mixed across all 64 bits (see {@link #mix(long)}).
+    */
+   void add(long hash) {
+      int register = (int) (hash >>> (64 - PRECISION));
+      //Position of the first 1 bit in the rest of the hash (the extra 1 bit caps it if they're all 0)
+      byte rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+      if (rank > registers[register]) registers[register] = rank;
+   }
+   
+   void merge(DistinctSketch other) {
+      for (int i = 0; i < REGISTERS; i++) {
+         if (other.registers[i] > registers[i]) registers[i] = other.registers[i];
+      }
+   }
+   
+   /**
+    * @return Estimated number of distinct values added
+    */
+   long estimate() {
+      //How many registers hold each rank (Ertl's improved estimator, which is unbiased across the whole range)
+      int[] ranks = new int[MAX_RANK + 1];
+      for (byte register: registers) {
+         ranks[register]++;
+      }
+      double sum = REGISTERS * tau(1 - (double) ranks[MAX_RANK] / REGISTERS);
+      for (int rank = MAX_RANK - 1; rank >= 1; rank--) {
+         sum = 0.5 * (sum + ranks[rank]);
+      }
+      sum += REGISTERS * sigma((double) ranks[0] / REGISTERS);
+      return Math.round(REGISTERS * REGISTERS / (2 * Math.log(2) * sum));
+   }
+   
+   private static double sigma(double x) {
+      if (x == 1) return Double.POSITIVE_INFINITY;
+      double y = 1;
+      double sum = x;
+      double previous;
+      do {
+         x *= x;
+         previous = sum;
+         sum += x * y;
+         y += y;
+      } while (sum != previous);
+      return sum;
+   }
+   
+   private static double tau(double x) {
+      if (x == 0 || x == 1) return 0;
+      double y = 1;
+      double sum = 1 - x;
+      double previous;
+      do {
+         x = Math.sqrt(x);
+         previous = sum;
+         y *= 0.5;
+         sum -= (1 - x) * (1 - x) * y;
+      } while (sum != previous);
+      return sum / 3;
+   }
+   
+   void writeTo(DataOutput out) throws IOException {
+      out.write(registers);
+   }
+   
+   void readFrom(DataInput in) throws IOException {
+      in.readFully(registers);
+   }
+   
+   /**
+    * Mixes the bits of a key into a hash fit for {@link #add(long)} (the SplitMix64 finalizer).
+    */
+   static long mix(long key) {
+      key = (key ^ (key >>> 30)) * 0xBF58476D1CE4E5B9L;
+      key = (key ^ (key >>> 27)) * 0x94D049BB133111EBL;
+      return key ^ (key >>> 31);
+   }
+}
@@ -0,0 +1,196 @@
+package com.matt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+
+/**
+ * Counts searches by any set of {@link GroupKey}s.  See {@link DataHandler#searchCountsBy(String, long, GroupKey...)}.
+ * <br><br>
+ * Every row is summed into a {@link SpillingAggregator} under a key of two longs: the system,
+ * variant, type, and hour packed into the first, and the start and end years into the second.
+ * Any part not being grouped by is left as 0.  Keys sort in {@link GroupKey} order, so the
+ * merged sums come out in the order they're written, and are written a page at a time.
+ */
+class GroupByReport extends Report {
+   static final String SPILL_DIRECTORY = "spill/";
+   
+   private static final int TYPE_SLOTS = DateType.values().length + 1;
+   private static final int UNKNOWN_TYPE_SLOT = TYPE_SLOTS - 1;
+   private static final int PAGE_ROWS = 1 << 12;
+   private static final int SECONDS_PER_HOUR = 60 * 60;
+   
+   //Layout of the first key: system, then variant, then type, then the hour (offset so 0 means no hour)
+   private static final int SYSTEM_SHIFT = 52;
+   private static final int DEATHS_SHIFT = 51;
+   private static final int TYPE_SHIFT = 48;
+   private static final long HOUR_OFFSET = 1L << 47;
+   private static final long HOUR_MASK = (1L << TYPE_SHIFT) - 1;
+   
+   private final Set<GroupKey> keys;
+   private final long memoryBudget;
+   private final SpillingAggregator sums;
+   private final boolean bySystem;
+   private final boolean byDeaths;
+   private final boolean byType;
+   private final boolean byHour;
+   private final boolean byStart;
+   private final boolean byEnd;
+   
+   GroupByReport(String outputFile, long memoryBudget, GroupKey... keys) {
+      super("searchCountsBy", outputFile);
+      if (keys.length == 0) throw new IllegalArgumentException("Must group by at least one key");
+      if (memoryBudget <= 0) throw new IllegalArgumentException("Memory budget must be positive, got " + memoryBudget);
+      this.keys = EnumSet.of(keys[0], keys);
+      this.memoryBudget = memoryBudget;
+      this.sums = new SpillingAggregator(memoryBudget, new File(SPILL_DIRECTORY));
+      this.bySystem = this.keys.contains(GroupKey.SYSTEM);
+      this.byDeaths = this.keys.contains(GroupKey.WITH_DEATHS);
+      this.byType = this.keys.contains(GroupKey.TYPE);
+      this.byHour = this.keys.contains(GroupKey.HOUR);
+      this.byStart = this.keys.contains(GroupKey.START);
+      this.byEnd = this.keys.contains(GroupKey.END);
+   }
+   
+   @Override
+   void accept(DataSource source, SearchRecord record) {
+      long high = 0;
+      if (bySystem) high |= (long) source.system().ordinal() << SYSTEM_SHIFT;
+      if (byDeaths && source.withDeaths()) high |= 1L << DEATHS_SHIFT;
+      if (byType) high |= (long) (record.type == null ? UNKNOWN_TYPE_SLOT : record.type.ordinal()) << TYPE_SHIFT;
+      if (byHour && record.time != SearchRecord.NO_TIME) high |= Math.floorDiv(record.time, SECONDS_PER_HOUR) + HOUR_OFFSET;
+      long low = (byStart ? (long) record.start << 32 : 0) | (byEnd ? record.end & 0xFFFFFFFFL : 0);
+      sums.add(high, low, record.count);
+   }
+   
+   @Override
+   Report newPartial() {
+      return new GroupByReport(outputFile, memoryBudget, keys.toArray(new GroupKey[0]));
+   }
+   
+   @Override
+   void merge(Report partial) {
+      sums.merge(((GroupByReport) partial).sums);
+   }
+   
+   @Override
+   String stateKey() {
+      //The memory budget only changes how the sums are made, not what they are
+      return "searchCountsBy(" + header() + ")";
+   }
+   
+   @Override
+   void writeState(DataOutput out) throws IOException {
+      sums.writeTo(out);
+   }
+   
+   @Override
+   void readState(DataInput in) throws IOException {
+      sums.readFrom(in);
+   }
+   
+   @Override
+   void write() {
+      long rowCount = sums.finish();
+      DataHandler.writePagedTableToFile(new Pages(rowCount), outputFile, header() + ",count");
+   }
+   
+   /**
+    * @return Name of each key grouped by, such as "system/type/start/end"
+    */
+   private String header() {
+      StringJoiner header = new StringJoiner("/");
+      for (GroupKey key: keys) {
+         header.add(key.label());
+      }
+      return header.toString();
+   }
+   
+   /**
+    * @return Name of the row for the given key, with each part grouped by separated by "/", such as "hr/birth/1850/1860"
+    */
+   private String label(long high, long low) {
+      StringJoiner label = new StringJoiner("/");
+      for (GroupKey key: keys) {
+         switch (key) {
+            case SYSTEM:
+               label.add(SearchSystem.values()[(int) (high >>> SYSTEM_SHIFT)].label());
+               break;
+            case WITH_DEATHS:
+               label.add(Boolean.toString((high & (1L << DEATHS_SHIFT)) != 0));
+               break;
+            case TYPE:
+               int typeSlot = (int) (high >>> TYPE_SHIFT) & 0x7;
+               label.add(typeSlot == UNKNOWN_TYPE_SLOT ? "unknown" : DateType.fromOrdinal(typeSlot).label());
+               break;
+            case HOUR:
+               label.add(hourText(high & HOUR_MASK));
+               break;
+            case START:
+               label.add(yearText((int) (low >> 32)));
+               break;
+            case END:
+               label.add(yearText((int) low));
+               break;
+         }
+      }
+      return label.toString();
+   }
+   
+   private static String hourText(long hour) {
+      if (hour == 0) return "none";
+      long time = (hour - HOUR_OFFSET) * SECONDS_PER_HOUR;
+      String day = LocalDate.ofEpochDay(Math.floorDiv(time, 24 * SECONDS_PER_HOUR)).toString();
+      return String.format("%sT%02d:00", day, Math.floorMod(time, 24 * SECONDS_PER_HOUR) / SECONDS_PER_HOUR);
+   }
+   
+   private static String yearText(int year) {
+      if (year == SearchRecord.NO_YEAR) return "none";
+      return year == SearchRecord.STAR_YEAR ? DataHandler.STAR : Integer.toString(year);
+   }
+   
+   /**
+    * Reads the merged sums a page at a time, on the writer thread.
+    */
+   private final class Pages implements TableWriter.PagedTable {
+      private final long rowCount;
+      private SpillingAggregator.Cursor cursor = null;
+      private long rowsLeft;
+      
+      Pages(long rowCount) {
+         this.rowCount = rowCount;
+         this.rowsLeft = rowCount;
+      }
+      
+      @Override
+      public long rowCount() {
+         return rowCount;
+      }
+      
+      @Override
+      public CountTable nextPage(List<String> rowLabels) throws IOException {
+         rowLabels.clear();
+         if (rowsLeft == 0) return null;
+         if (cursor == null) cursor = sums.cursor();
+         CountTable page = new CountTable((int) Math.min(rowsLeft, PAGE_ROWS), 1);
+         for (int row = 0; row < page.rowCount(); row++) {
+            if (!cursor.next()) throw new IOException("Sums ended " + rowsLeft + " rows early");
+            rowLabels.add(label(cursor.highKey(), cursor.lowKey()));
+            page.set(row, 0, cursor.sum());
+            rowsLeft--;
+         }
+         return page;
+      }
+      
+      @Override
+      public void close() throws IOException {
+         if (cursor != null) cursor.close();
+      }
+   }
+}
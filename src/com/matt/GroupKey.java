@@ -0,0 +1,33 @@
+package com.matt;
+
+/**
+ * The parts of a search that {@link DataHandler#searchCountsBy(String, long, GroupKey...)} can
+ * group counts by.  Rows are sorted by the keys in the order they are listed here.
+ */
+public enum GroupKey {
+   /** System searched in (hr, tree, or lls) */
+   SYSTEM("system"),
+   /** Whether the source includes searches with a death date (true or false) */
+   WITH_DEATHS("withDeaths"),
+   /** Type of date searched on, or "unknown" */
+   TYPE("type"),
+   /** Hour the searches were made in, such as 2024-06-14T13:00 (UTC), or "none" outside raw search logs */
+   HOUR("hour"),
+   /** First year searched on, or "*" */
+   START("start"),
+   /** Last year searched on, "*", or "none" if there wasn't one */
+   END("end");
+   
+   private final String label;
+   
+   GroupKey(String label) {
+      this.label = label;
+   }
+   
+   /**
+    * @return Name of this key in output headers
+    */
+   public String label() {
+      return label;
+   }
+}
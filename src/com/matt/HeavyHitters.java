@@ -0,0 +1,289 @@
+package com.matt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Finds the keys with the largest summed weights in a stream, in a fixed amount of memory, with
+ * the Space-Saving algorithm.  Keys are a (cell, years) pair of numbers, so nothing is allocated
+ * per row.
+ * <br><br>
+ * Up to {@link #capacity()} keys are counted at once.  While there are fewer distinct keys than
+ * that, every count is exact.  After that, a new key takes over the counter of the key with the
+ * smallest count, starting from that count, so counts can only ever be too high, and never by more
+ * than the smallest count, which is at most the total weight divided by the capacity.  Each
+ * counter also remembers how much it was started from (its error), so count minus error is a
+ * guaranteed lower bound on the key's true weight.  Any key whose true weight is more than the
+ * total weight divided by the capacity is always being counted.
+ * <br><br>
+ * Two of these merge by adding the counts of matching keys, and counting any key missing from a
+ * full one at that one's smallest count (the most it could have been), then keeping the largest.
+ * The same bounds hold for the merged counts, so copies built on any number of threads or shards
+ * can be combined.
+ */
+final class HeavyHitters {
+   private final int capacity;
+   private int size = 0;
+   
+   //Each key's counter, by slot
+   private final int[] cells;
+   private final long[] years;
+   private final long[] counts;
+   private final long[] errors;
+   
+   //Slots in a min-heap by count, and where each slot sits in it
+   private final int[] heap;
+   private final int[] heapIndex;
+   
+   //Open addressing hash index from key to slot + 1 (0 for an empty entry)
+   private final int[] index;
+   private final int mask;
+   
+   /**
+    * @param capacity Most keys to count at once
+    */
+   HeavyHitters(int capacity) {
+      if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1, got " + capacity);
+      this.capacity = capacity;
+      cells = new int[capacity];
+      years = new long[capacity];
+      counts = new long[capacity];
+      errors = new long[capacity];
+      heap = new int[capacity];
+      heapIndex = new int[capacity];
+      index = new int[Integer.highestOneBit(capacity - 1 | 1) << 2];
+      mask = index.length - 1;
+   }
+   
+   int capacity() {
+      return capacity;
+   }
+   
+   /**
+    * @return Number of keys being counted
+    */
+   int size() {
+      return size;
+   }
+   
+   /**
+    * @return The smallest count being kept, which is the most any key not being counted could have (0 if not full)
+    */
+   long floor() {
+      return (size < capacity ? 0 : counts[heap[0]]);
+   }
+   
+   /**
+    * Adds weight to a key.
+    */
+   void add(int cell, long keyYears, long weight) {
+      int slot = find(cell, keyYears);
+      if (slot >= 0) {
+         counts[slot] += weight;
+         siftDown(heapIndex[slot]);
+      } else if (size < capacity) {
+         insert(cell, keyYears, weight, 0);
+      } else {
+         //Take over the counter with the smallest count
+         int smallest = heap[0];
+         long floor = counts[smallest];
+         unindex(smallest);
+         cells[smallest] = cell;
+         years[smallest] = keyYears;
+         counts[smallest] = floor + weight;
+         errors[smallest] = floor;
+         reindex(smallest);
+         siftDown(0);
+      }
+   }
+   
+   /**
+    * Adds every count from the given summary into this one (which must have the same capacity),
+    * then keeps only the largest.
+    */
+   void merge(HeavyHitters other) {
+      long floor = floor();
+      long otherFloor = other.floor();
+      
+      //Every key in either, with its count in both (using the other's floor when it's missing there)
+      int total = size + other.size;
+      int[] mergedCells = new int[total];
+      long[] mergedYears = new long[total];
+      long[] mergedCounts = new long[total];
+      long[] mergedErrors = new long[total];
+      int merged = 0;
+      for (int slot = 0; slot < size; slot++) {
+         int otherSlot = other.find(cells[slot], years[slot]);
+         mergedCells[merged] = cells[slot];
+         mergedYears[merged] = years[slot];
+         mergedCounts[merged] = counts[slot] + (otherSlot >= 0 ? other.counts[otherSlot] : otherFloor);
+         mergedErrors[merged] = errors[slot] + (otherSlot >= 0 ? other.errors[otherSlot] : otherFloor);
+         merged++;
+      }
+      for (int slot = 0; slot < other.size; slot++) {
+         if (find(other.cells[slot], other.years[slot]) >= 0) continue;
+         mergedCells[merged] = other.cells[slot];
+         mergedYears[merged] = other.years[slot];
+         mergedCounts[merged] = other.counts[slot] + floor;
+         mergedErrors[merged] = other.errors[slot] + floor;
+         merged++;
+      }
+      
+      //Keep the largest counts
+      Integer[] order = new Integer[merged];
+      for (int i = 0; i < merged; i++) order[i] = i;
+      Arrays.sort(order, (a, b) -> Long.compare(mergedCounts[b], mergedCounts[a]));
+      clear();
+      for (int i = 0; i < Math.min(merged, capacity); i++) {
+         int from = order[i];
+         insert(mergedCells[from], mergedYears[from], mergedCounts[from], mergedErrors[from]);
+      }
+   }
+   
+   /**
+    * @return Slots of the counted keys, largest count first
+    */
+   int[] slotsByCount() {
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++) order[i] = i;
+      //Ties are broken by key, so the order doesn't depend on the order rows were read in
+      Arrays.sort(order, (a, b) -> counts[a] != counts[b] ? Long.compare(counts[b], counts[a])
+                                   : cells[a] != cells[b] ? Integer.compare(cells[a], cells[b])
+                                   : Long.compare(years[a], years[b]));
+      int[] slots = new int[size];
+      for (int i = 0; i < size; i++) slots[i] = order[i];
+      return slots;
+   }
+   
+   int cell(int slot) {
+      return cells[slot];
+   }
+   
+   long years(int slot) {
+      return years[slot];
+   }
+   
+   long count(int slot) {
+      return counts[slot];
+   }
+   
+   long error(int slot) {
+      return errors[slot];
+   }
+   
+   void writeTo(DataOutput out) throws IOException {
+      out.writeInt(size);
+      for (int slot = 0; slot < size; slot++) {
+         out.writeInt(cells[slot]);
+         out.writeLong(years[slot]);
+         out.writeLong(counts[slot]);
+         out.writeLong(errors[slot]);
+      }
+   }
+   
+   /**
+    * Reads counts written by {@link #writeTo(DataOutput)} into this summary, which must be empty.
+    */
+   void readFrom(DataInput in) throws IOException {
+      int stored = in.readInt();
+      if (stored < 0 || stored > capacity) throw new IOException("Stored " + stored + " keys, but only " + capacity + " fit");
+      for (int i = 0; i < stored; i++) {
+         insert(in.readInt(), in.readLong(), in.readLong(), in.readLong());
+      }
+   }
+   
+   private void clear() {
+      Arrays.fill(index, 0);
+      size = 0;
+   }
+   
+   /**
+    * Starts counting a new key.  There must be room for it.
+    */
+   private void insert(int cell, long keyYears, long count, long error) {
+      int slot = size++;
+      cells[slot] = cell;
+      years[slot] = keyYears;
+      counts[slot] = count;
+      errors[slot] = error;
+      reindex(slot);
+      heap[slot] = slot;
+      heapIndex[slot] = slot;
+      siftUp(slot);
+   }
+   
+   /**
+    * @return Slot the key is counted in, or -1 if it isn't being counted
+    */
+   private int find(int cell, long keyYears) {
+      for (int i = hash(cell, keyYears); ; i = (i + 1) & mask) {
+         int entry = index[i];
+         if (entry == 0) return -1;
+         int slot = entry - 1;
+         if (years[slot] == keyYears && cells[slot] == cell) return slot;
+      }
+   }
+   
+   private void reindex(int slot) {
+      int i = hash(cells[slot], years[slot]);
+      while (index[i] != 0) i = (i + 1) & mask;
+      index[i] = slot + 1;
+   }
+   
+   /**
+    * Removes a slot's key from the hash index, moving back any entries after it so every key can
+    * still be found without gaps.
+    */
+   private void unindex(int slot) {
+      int i = hash(cells[slot], years[slot]);
+      while (index[i] != slot + 1) i = (i + 1) & mask;
+      int next = (i + 1) & mask;
+      while (index[next] != 0) {
+         int home = hash(cells[index[next] - 1], years[index[next] - 1]);
+         //Move the entry back into the gap if the gap is between its home and where it sits
+         if (((next - home) & mask) >= ((next - i) & mask)) {
+            index[i] = index[next];
+            i = next;
+         }
+         next = (next + 1) & mask;
+      }
+      index[i] = 0;
+   }
+   
+   private int hash(int cell, long keyYears) {
+      long hash = (keyYears ^ ((long) cell << 40)) * 0x9E3779B97F4A7C15L;
+      return (int) (hash >>> 32) & mask;
+   }
+   
+   private void siftUp(int i) {
+      while (i > 0) {
+         int parent = (i - 1) >>> 1;
+         if (counts[heap[parent]] <= counts[heap[i]]) return;
+         swap(i, parent);
+         i = parent;
+      }
+   }
+   
+   private void siftDown(int i) {
+      while (true) {
+         int smallest = i;
+         int left = 2 * i + 1;
+         int right = left + 1;
+         if (left < size && counts[heap[left]] < counts[heap[smallest]]) smallest = left;
+         if (right < size && counts[heap[right]] < counts[heap[smallest]]) smallest = right;
+         if (smallest == i) return;
+         swap(i, smallest);
+         i = smallest;
+      }
+   }
+   
+   private void swap(int a, int b) {
+      int slot = heap[a];
+      heap[a] = heap[b];
+      heap[b] = slot;
+      heapIndex[heap[a]] = a;
+      heapIndex[heap[b]] = b;
+   }
+}
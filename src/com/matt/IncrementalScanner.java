@@ -0,0 +1,253 @@
+package com.matt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads sources that keep growing (such as exports that are appended to through the day)
+ * without starting over from the beginning every run.  For each source, the sums it has added
+ * to each report are saved in a checkpoint file along with how far into the source they go.
+ * The next run loads those sums and only reads the rows that were added after that point.
+ * <br><br>
+ * Checkpoints are also saved every so often while a large source is being read, and are always
+ * written under a temporary name and moved into place, so a run that dies part way through
+ * picks up from the last checkpoint next time.  A last line with no line break after it is
+ * counted, but left out of the checkpoint, since it may not have been finished yet.  A source is
+ * read from the start again if it got smaller, if its first bytes changed (it was replaced rather
+ * than appended to), or if the plan's reports changed since the checkpoint was saved.  Gzipped
+ * files and standard input can't be picked up part way through, so they are always read whole.
+ */
+final class IncrementalScanner {
+   static final String DEFAULT_DIRECTORY = "state/";
+   static final long DEFAULT_CHECKPOINT_INTERVAL = 256L << 20;
+   
+   private static final int MAGIC = 0x46534350; //"FSCP"
+   private static final int VERSION = 1;
+   private static final int FINGERPRINT_LENGTH = 4096;
+   
+   private final String directory;
+   private final long checkpointInterval;
+   
+   /**
+    * @param directory Folder to keep the checkpoint files in.  Created if it doesn't exist.
+    * @param checkpointInterval Number of bytes to read between checkpoints within a single source
+    */
+   IncrementalScanner(String directory, long checkpointInterval) {
+      this.directory = directory;
+      this.checkpointInterval = checkpointInterval;
+   }
+   
+   /**
+    * Brings the given source's sums up to date, and returns them.
+    *
+    * @param plan Plan whose reports are being built
+    * @param source Source to read the new rows of
+    * @return Partial reports (from {@link ReportPlan#newPartials()}) holding all the sums for this source
+    */
+   List<Report> scan(ReportPlan plan, DataSource source) {
+      if (!source.isPlainFile()) {
+         return scanWhole(plan, source);
+      }
+      
+      File checkpointFile = checkpointFileFor(source);
+      List<Report> partials = plan.newPartials();
+      long offset = 0;
+      
+      try {
+         offset = loadCheckpoint(checkpointFile, source, partials);
+      } catch (IOException e) {
+         System.out.println("Could not use checkpoint " + checkpointFile + ", reading " + source
+                            + " from the start.\n" + e.getMessage());
+      }
+      if (offset == 0) {
+         //Anything loaded from a checkpoint we won't be using has to be thrown away
+         partials = plan.newPartials();
+      }
+      
+      try (FileInputStream in = new FileInputStream(source.path())) {
+         in.getChannel().position(offset);
+         RecordReader reader = new RecordReader(in);
+         reader.completeLinesOnly();
+         if (offset == 0) reader.nextLine(); //Clear out headers
+         
+         CheckpointingSource checkpointing = new CheckpointingSource(reader, checkpointFile, source, offset, partials);
+         plan.feed(source, checkpointing, partials);
+         long end = offset + reader.bytesConsumed();
+         saveCheckpoint(checkpointFile, source, end, partials);
+         
+         //A last line with no line break after it is counted in this run's sums, but only after
+         // they've been saved, so the next run reads it again in case it wasn't finished
+         if (in.getChannel().size() > end) {
+            in.getChannel().position(end);
+            RecordReader tail = new RecordReader(in);
+            if (end == 0) tail.nextLine(); //Clear out headers
+            plan.feed(source, tail, partials);
+         }
+      } catch (IOException e) {
+         plan.readFailed(source.toString(), e);
+      }
+      return partials;
+   }
+   
+   /**
+    * Reads all of a source that can't be picked up part way through (gzipped files and standard
+    * input), without saving a checkpoint.
+    */
+   private List<Report> scanWhole(ReportPlan plan, DataSource source) {
+      List<Report> partials = plan.newPartials();
+      try (RecordSource reader = source.openRecords()) {
+         plan.feed(source, reader, partials);
+      } catch (IOException e) {
+         plan.readFailed(source.toString(), e);
+      }
+      return partials;
+   }
+   
+   /**
+    * @return Checkpoint file for the source, named after the source file plus a hash of its full path
+    */
+   File checkpointFileFor(DataSource source) {
+      File file = new File(source.path());
+      String key = Integer.toHexString(file.getAbsolutePath().hashCode());
+      return new File(directory, file.getName() + "." + key + ".ckpt");
+   }
+   
+   /**
+    * Loads the sums in the checkpoint file into the given partial reports, if the checkpoint
+    * still lines up with the source and the reports.
+    *
+    * @return How far into the source the loaded sums go, or 0 if the source needs to be read from the start
+    */
+   private long loadCheckpoint(File checkpointFile, DataSource source, List<Report> partials) throws IOException {
+      if (!checkpointFile.exists()) return 0;
+      
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) return 0;
+         if (!in.readUTF().equals(new File(source.path()).getAbsolutePath())) return 0;
+         long offset = in.readLong();
+         int fingerprintLength = in.readInt();
+         long fingerprint = in.readLong();
+         
+         if (new File(source.path()).length() < offset) return 0;
+         if (fingerprint(source, fingerprintLength) != fingerprint) return 0;
+         
+         int reportCount = in.readInt();
+         if (reportCount != partials.size()) return 0;
+         for (Report partial: partials) {
+            if (!in.readUTF().equals(partial.stateKey())) return 0;
+            partial.readState(in);
+         }
+         return offset;
+      }
+   }
+   
+   private void saveCheckpoint(File checkpointFile, DataSource source, long offset, List<Report> partials) throws IOException {
+      Files.createDirectories(checkpointFile.getAbsoluteFile().getParentFile().toPath());
+      File tempFile = new File(checkpointFile.getPath() + ".tmp");
+      int fingerprintLength = (int) Math.min(FINGERPRINT_LENGTH, offset);
+      
+      try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeUTF(new File(source.path()).getAbsolutePath());
+         out.writeLong(offset);
+         out.writeInt(fingerprintLength);
+         out.writeLong(fingerprint(source, fingerprintLength));
+         out.writeInt(partials.size());
+         for (Report partial: partials) {
+            out.writeUTF(partial.stateKey());
+            partial.writeState(out);
+         }
+         out.flush();
+         fileOut.getFD().sync();
+      }
+      Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+   
+   /**
+    * @return CRC of the first length bytes of the source, or -1 if the source is shorter than that
+    */
+   private static long fingerprint(DataSource source, int length) throws IOException {
+      byte[] head = new byte[length];
+      try (InputStream in = new FileInputStream(source.path())) {
+         int read = 0;
+         while (read < length) {
+            int count = in.read(head, read, length - read);
+            if (count == -1) return -1;
+            read += count;
+         }
+      }
+      CRC32 crc = new CRC32();
+      crc.update(head);
+      return crc.getValue();
+   }
+   
+   /**
+    * Passes rows through from a reader, saving a checkpoint every so often.  A checkpoint is only
+    * taken when every row read so far has been handed to all the reports (see
+    * {@link RecordSource#rowsAccepted()}), so the saved sums always match the saved position exactly.
+    */
+   private final class CheckpointingSource implements RecordSource {
+      private final RecordReader reader;
+      private final File checkpointFile;
+      private final DataSource source;
+      private final long startOffset;
+      private final List<Report> partials;
+      private long nextCheckpoint;
+      
+      CheckpointingSource(RecordReader reader, File checkpointFile, DataSource source, long startOffset, List<Report> partials) {
+         this.reader = reader;
+         this.checkpointFile = checkpointFile;
+         this.source = source;
+         this.startOffset = startOffset;
+         this.partials = partials;
+         this.nextCheckpoint = checkpointInterval;
+      }
+      
+      @Override
+      public boolean next(SearchRecord record) throws IOException {
+         return reader.next(record);
+      }
+      
+      @Override
+      public void rowsAccepted() throws IOException {
+         long consumed = reader.bytesConsumed();
+         if (consumed >= nextCheckpoint) {
+            saveCheckpoint(checkpointFile, source, startOffset + consumed, partials);
+            nextCheckpoint = consumed + checkpointInterval;
+         }
+      }
+      
+      @Override
+      public long bytesRead() {
+         return reader.bytesRead();
+      }
+      
+      @Override
+      public void rejectMalformedTo(RejectSink rejects, DataSource source) {
+         reader.rejectMalformedTo(rejects, source);
+      }
+      
+      @Override
+      public long malformedRows() {
+         return reader.malformedRows();
+      }
+      
+      @Override
+      public void close() throws IOException {
+         reader.close();
+      }
+   }
+}
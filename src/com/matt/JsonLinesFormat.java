@@ -0,0 +1,72 @@
+package com.matt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes tables as JSON lines: one object per row, keyed by the column names.  The row's name is
+ * always a string (so the star row fits), and the counts are numbers.
+ * <br><br>
+ * Example:<br>
+ * {"year":"1840","birth":1523,"death":220,"any":97,"other":12}
+ */
+final class JsonLinesFormat implements OutputFormat {
+   static final String EXTENSION = ".jsonl";
+   
+   @Override
+   public String name() {
+      return "jsonl";
+   }
+   
+   @Override
+   public void writeHeader(String[] columns, long rowCount, ByteOutput out) {
+      //Every line names its own keys
+   }
+   
+   @Override
+   public void writeRows(CountTable table, String[] columns, List<String> rowLabels, ByteOutput out) throws IOException {
+      //Each key (with its quotes and colon) is only encoded once per table
+      byte[][] keys = new byte[columns.length][];
+      for (int i = 0; i < columns.length; i++) {
+         keys[i] = ("\"" + escape(columns[i]) + "\":").getBytes(StandardCharsets.UTF_8);
+      }
+      
+      for (int row = 0; row < table.rowCount(); row++) {
+         out.put((byte) '{');
+         out.put(keys[0]);
+         out.put((byte) '"');
+         if (rowLabels != null) {
+            out.put(escape(rowLabels.get(row)));
+         } else {
+            OutputFormat.putRowLabel(table, row, null, out);
+         }
+         out.put((byte) '"');
+         for (int i = 0; i < table.columnCount(); i++) {
+            out.put((byte) ',');
+            out.put(keys[i + 1]);
+            out.putDecimal(table.get(row, i));
+         }
+         out.put((byte) '}');
+         out.put((byte) '\n');
+      }
+   }
+   
+   private static String escape(String text) {
+      StringBuilder escaped = null;
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         if (c != '"' && c != '\\' && c >= 0x20) {
+            if (escaped != null) escaped.append(c);
+            continue;
+         }
+         if (escaped == null) escaped = new StringBuilder(text.substring(0, i));
+         if (c == '"' || c == '\\') {
+            escaped.append('\\').append(c);
+         } else {
+            escaped.append(String.format("\\u%04x", (int) c));
+         }
+      }
+      return (escaped == null ? text : escaped.toString());
+   }
+}
@@ -0,0 +1,230 @@
+package com.matt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A weighted histogram of range lengths that can answer quantiles (and be re-bucketed any number
+ * of ways) after a single pass, in bounded memory.
+ * <br><br>
+ * Lengths shorter than {@link #EXACT_LIMIT} years either way are counted exactly, one slot per
+ * length, which covers nearly every real search.  Longer ones are counted in buckets that grow
+ * by {@link #GAMMA} each time, so they are only known to within about 1% of their length, and at
+ * most a few thousand slots are ever used.  Since every slot is a plain sum, merging two sketches
+ * just adds them together: merges are exact, and sketches built on any number of threads or
+ * shards, in any order, give the very same answers as one built on a single thread.
+ */
+final class LengthSketch {
+   static final int EXACT_LIMIT = 1024;
+   static final double GAMMA = 1.02;
+   
+   private static final double LOG_GAMMA = StrictMath.log(GAMMA);
+   //Enough log buckets for any length that fits in an int
+   private static final int LOG_BUCKETS = logBucket(Integer.MAX_VALUE * 2L) + 1;
+   
+   //Exact counts for lengths in (-EXACT_LIMIT, EXACT_LIMIT), at length + EXACT_LIMIT - 1
+   private long[] exact = null;
+   //Log bucket counts by length for longer ranges, and by negated length for ranges that end long before they start
+   private long[] longer = null;
+   private long[] negative = null;
+   private long total = 0;
+   private long min = Long.MAX_VALUE;
+   private long max = Long.MIN_VALUE;
+   
+   /**
+    * Counts a length.
+    *
+    * @param length Length of the range (end year minus start year)
+    * @param weight Number of times it was searched
+    */
+   void add(long length, long weight) {
+      if (length > -EXACT_LIMIT && length < EXACT_LIMIT) {
+         if (exact == null) exact = new long[2 * EXACT_LIMIT - 1];
+         exact[(int) length + EXACT_LIMIT - 1] += weight;
+      } else if (length > 0) {
+         if (longer == null) longer = new long[LOG_BUCKETS];
+         longer[logBucket(length)] += weight;
+      } else {
+         if (negative == null) negative = new long[LOG_BUCKETS];
+         negative[logBucket(-length)] += weight;
+      }
+      total += weight;
+      if (length < min) min = length;
+      if (length > max) max = length;
+   }
+   
+   /**
+    * Adds all the counts from the given sketch into this one.
+    */
+   void merge(LengthSketch other) {
+      exact = mergeSlots(exact, other.exact);
+      longer = mergeSlots(longer, other.longer);
+      negative = mergeSlots(negative, other.negative);
+      total += other.total;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+   }
+   
+   /**
+    * @return Sum of the weights of every length counted
+    */
+   long total() {
+      return total;
+   }
+   
+   long min() {
+      return min;
+   }
+   
+   long max() {
+      return max;
+   }
+   
+   /**
+    * Finds the length that the given fraction of the (weighted) lengths are at or below.
+    * Exact for lengths under {@link #EXACT_LIMIT}; otherwise within about 1%.
+    *
+    * @param quantile Fraction between 0 and 1 (0.5 for the median)
+    * @throws IllegalStateException If nothing has been counted
+    */
+   long quantile(double quantile) {
+      if (total == 0) throw new IllegalStateException("No lengths have been counted");
+      //The smallest length whose running total reaches the rank
+      long rank = Math.max(1, (long) Math.ceil(quantile * total));
+      if (rank >= total) return max;
+      long seen = 0;
+      
+      if (negative != null) {
+         for (int i = LOG_BUCKETS - 1; i >= 0; i--) {
+            seen += negative[i];
+            if (seen >= rank) return clamp(-representative(i));
+         }
+      }
+      if (exact != null) {
+         for (int i = 0; i < exact.length; i++) {
+            seen += exact[i];
+            if (seen >= rank) return i - EXACT_LIMIT + 1;
+         }
+      }
+      if (longer != null) {
+         for (int i = 0; i < LOG_BUCKETS; i++) {
+            seen += longer[i];
+            if (seen >= rank) return clamp(representative(i));
+         }
+      }
+      return max;
+   }
+   
+   /**
+    * Adds the counted lengths into column 0 of a table made with {@link CountTable#yearBuckets(int, int, int)},
+    * bucketed the same way as {@link DataHandler#dateRangeLengths(String, int, int)}.  Exact as
+    * long as the stop length and bucket size are under {@link #EXACT_LIMIT}.
+    *
+    * @param table Table to add into
+    * @param bucketSize Size of bucket to group range lengths into
+    * @param stopLength The length beyond which all results are grouped together
+    */
+   void addTo(CountTable table, int bucketSize, int stopLength) {
+      if (negative != null) {
+         for (int i = 0; i < LOG_BUCKETS; i++) {
+            addLength(table, -representative(i), negative[i], bucketSize, stopLength);
+         }
+      }
+      if (exact != null) {
+         for (int i = 0; i < exact.length; i++) {
+            addLength(table, i - EXACT_LIMIT + 1, exact[i], bucketSize, stopLength);
+         }
+      }
+      if (longer != null) {
+         for (int i = 0; i < LOG_BUCKETS; i++) {
+            addLength(table, representative(i), longer[i], bucketSize, stopLength);
+         }
+      }
+   }
+   
+   void writeTo(DataOutput out) throws IOException {
+      out.writeLong(total);
+      out.writeLong(min);
+      out.writeLong(max);
+      writeSlots(out, exact);
+      writeSlots(out, longer);
+      writeSlots(out, negative);
+   }
+   
+   void readFrom(DataInput in) throws IOException {
+      total = in.readLong();
+      min = in.readLong();
+      max = in.readLong();
+      exact = readSlots(in, 2 * EXACT_LIMIT - 1);
+      longer = readSlots(in, LOG_BUCKETS);
+      negative = readSlots(in, LOG_BUCKETS);
+   }
+   
+   private static void addLength(CountTable table, long length, long weight, int bucketSize, int stopLength) {
+      if (weight == 0) return;
+      long row = Math.min(length, stopLength) / bucketSize;
+      //Same as the dateRangeLengths report: ranges that end before they start only count if they round to 0
+      if (row < 0) return;
+      table.add((int) row, 0, weight);
+   }
+   
+   /**
+    * @return Log bucket for a length of at least EXACT_LIMIT
+    */
+   private static int logBucket(long length) {
+      return (int) (StrictMath.log((double) length / EXACT_LIMIT) / LOG_GAMMA);
+   }
+   
+   /**
+    * @return A length in the middle (geometrically) of the given log bucket
+    */
+   private static long representative(int bucket) {
+      return Math.round(EXACT_LIMIT * StrictMath.pow(GAMMA, bucket + 0.5));
+   }
+   
+   /**
+    * Keeps an estimate from a log bucket within the lengths actually seen.
+    */
+   private long clamp(long length) {
+      return Math.max(min, Math.min(max, length));
+   }
+   
+   private static long[] mergeSlots(long[] into, long[] from) {
+      if (from == null) return into;
+      if (into == null) return from.clone();
+      for (int i = 0; i < into.length; i++) {
+         into[i] += from[i];
+      }
+      return into;
+   }
+   
+   /**
+    * Writes only the slots in use, as (index, count) pairs.
+    */
+   private static void writeSlots(DataOutput out, long[] slots) throws IOException {
+      int used = 0;
+      if (slots != null) {
+         for (long count: slots) if (count != 0) used++;
+      }
+      out.writeInt(used);
+      if (used == 0) return;
+      for (int i = 0; i < slots.length; i++) {
+         if (slots[i] == 0) continue;
+         out.writeInt(i);
+         out.writeLong(slots[i]);
+      }
+   }
+   
+   private static long[] readSlots(DataInput in, int length) throws IOException {
+      int used = in.readInt();
+      if (used == 0) return null;
+      long[] slots = new long[length];
+      for (int i = 0; i < used; i++) {
+         int index = in.readInt();
+         if (index < 0 || index >= length) throw new IOException("Sketch slot " + index + " is out of range");
+         slots[index] = in.readLong();
+      }
+      return slots;
+   }
+}
@@ -0,0 +1,145 @@
+package com.matt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts how many of the (probable) living person queries come from each system.
+ * See {@link DataHandler#livingPersonSearchesBySystem(String, int, int, int)}.
+ */
+class LivingPersonsBySystemReport extends Report {
+   private static final int TOTAL_COLUMN = 0;
+   private static final int LIVING_COLUMN = 1;
+   
+   private final int birthCutoff;
+   private final int otherCutoff;
+   private final int stopYear;
+   private final List<String> systems = new ArrayList<>();
+   private final CountTable table;
+   private final int totalRow;
+   
+   LivingPersonsBySystemReport(String outputFile, int birthCutoff, int otherCutoff, int stopYear) {
+      super("livingPersonSearchesBySystem", outputFile);
+      this.birthCutoff = birthCutoff;
+      this.otherCutoff = otherCutoff;
+      this.stopYear = stopYear;
+      
+      for (SearchSystem system: SearchSystem.values()) {
+         systems.add(system.label());
+      }
+      systems.add("total");
+      totalRow = systems.size() - 1;
+      table = new CountTable(systems.size(), 2);
+   }
+   
+   @Override
+   void accept(DataSource source, SearchRecord record) {
+      int systemRow = source.system().ordinal();
+      long rowCount = record.count;
+      
+      //Add in all the searches that originally included a death year into the total
+      // (but not into the number of living person searches)
+      if (source.withDeaths()) {
+         table.add(totalRow, TOTAL_COLUMN, rowCount);
+         table.add(systemRow, TOTAL_COLUMN, rowCount);
+         return;
+      }
+      
+      int rowYear = mostRecentYear(record);
+      if (rowYear < 0) {
+         //This is usually because both ends of the range are stars.
+         skip(SkipReason.NO_YEAR, source, record);
+         return;
+      }
+      
+      //Skipped types still count towards the overall total, but not towards their system's total
+      table.add(totalRow, TOTAL_COLUMN, rowCount);
+      
+      //Add them in to the living persons total depending on the date type
+      DateType dateType = record.type;
+      if (dateType == null || dateType == DateType.DEATH) {
+         skip(dateType == null ? SkipReason.UNKNOWN_TYPE : SkipReason.UNCOUNTED_TYPE, source, record);
+         return;
+      }
+      table.add(systemRow, TOTAL_COLUMN, rowCount);
+      
+      int cutoff = (dateType == DateType.BIRTH ? birthCutoff : otherCutoff);
+      if (rowYear >= cutoff && rowYear <= stopYear) {
+         table.add(systemRow, LIVING_COLUMN, rowCount);
+         table.add(totalRow, LIVING_COLUMN, rowCount);
+      }
+   }
+   
+   /**
+    * Finds the most recent year being searched for in the given row.
+    * <br><br>
+    * This part is decently complicated.  This is because we care about the most recent date being searched.
+    * The most recent date is the date if it's not a range, and the end date if it is a range.
+    * But if the range ends in a star, the real end date being searched is 10 years after the start.
+    * But if the range starts in a star, the end date is the given.
+    *
+    * @return The most recent year, or a negative number if there isn't one (usually because both ends are stars)
+    */
+   static int mostRecentYear(SearchRecord record) {
+      int rowYear = -11;
+      if (record.start != SearchRecord.STAR_YEAR) {
+         rowYear = record.start;
+      }
+      if (record.end != SearchRecord.NO_YEAR) {
+         if (record.end == SearchRecord.STAR_YEAR) {
+            rowYear += 10;
+         } else {
+            rowYear = Math.max(record.end, rowYear);
+         }
+      }
+      return rowYear;
+   }
+   
+   @Override
+   Report newPartial() {
+      return new LivingPersonsBySystemReport(outputFile, birthCutoff, otherCutoff, stopYear);
+   }
+   
+   @Override
+   void merge(Report partial) {
+      table.merge(((LivingPersonsBySystemReport) partial).table);
+   }
+   
+   @Override
+   String stateKey() {
+      return "livingPersonSearchesBySystem(" + birthCutoff + "," + otherCutoff + "," + stopYear + ")";
+   }
+   
+   @Override
+   void writeState(DataOutput out) throws IOException {
+      table.writeTo(out);
+   }
+   
+   @Override
+   void readState(DataInput in) throws IOException {
+      table.readFrom(in);
+   }
+   
+   @Override
+   void write() {
+      DataHandler.writeTableToFileWithReplacements(table, outputFile, countsHeader(), systems);
+   }
+   
+   @Override
+   CountTable counts() {
+      return table;
+   }
+   
+   @Override
+   String countsHeader() {
+      return "system,total,living";
+   }
+   
+   @Override
+   List<String> countsRowLabels() {
+      return systems;
+   }
+}
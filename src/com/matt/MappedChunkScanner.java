@@ -0,0 +1,192 @@
+package com.matt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reads data sources by memory-mapping them and splitting each one into chunks that start
+ * and end on line breaks.  The chunks (from every source at once) are read with fork/join,
+ * each into its own partial copy of the reports, and the partials are merged back together
+ * as the tasks finish.  This lets even a single huge source keep every core busy.
+ * <br><br>
+ * Since every row still lands in exactly one chunk, the results are the same as reading
+ * the sources one line at a time.
+ */
+final class MappedChunkScanner {
+   static final long DEFAULT_CHUNK_SIZE = 64L << 20;
+   
+   //Mapped regions are limited to 2 GB, so keep chunks well under that
+   private static final long MAX_CHUNK_SIZE = 1L << 30;
+   private static final int BOUNDARY_PROBE_SIZE = 4096;
+   
+   private MappedChunkScanner() {}
+   
+   /**
+    * Reads all the given sources in chunks, merging the results into the plan's reports.
+    *
+    * @param plan Plan whose reports are being built
+    * @param sources Sources to read
+    * @param chunkSize Target number of bytes in each chunk
+    * @param parallelism Number of threads to read chunks on
+    */
+   static void scan(ReportPlan plan, List<DataSource> sources, long chunkSize, int parallelism) {
+      List<Chunk> chunks = new ArrayList<>();
+      for (DataSource source: sources) {
+         try {
+            chunks.addAll(split(source, chunkSize));
+         } catch (IOException e) {
+            plan.readFailed(source.toString(), e);
+         }
+      }
+      if (chunks.isEmpty()) return;
+      
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      try {
+         plan.mergePartials(pool.invoke(new ChunkTask(plan, chunks, 0, chunks.size())));
+      } finally {
+         pool.shutdown();
+      }
+   }
+   
+   /**
+    * Splits a source into chunks of about chunkSize bytes.  Each chunk is pushed out to end
+    * just after the next line break, so no line is split between two chunks.  The header line
+    * is left out of the first chunk.
+    *
+    * @return The chunks, in file order
+    */
+   static List<Chunk> split(DataSource source, long chunkSize) throws IOException {
+      long targetSize = Math.max(1, Math.min(chunkSize, MAX_CHUNK_SIZE));
+      List<Chunk> chunks = new ArrayList<>();
+      
+      try (FileChannel channel = FileChannel.open(Paths.get(source.path()), StandardOpenOption.READ)) {
+         long size = channel.size();
+         long start = nextLineStart(channel, 0, size); //Clear out headers
+         while (start < size) {
+            long end = (size - start <= targetSize) ? size : nextLineStart(channel, start + targetSize, size);
+            chunks.add(new Chunk(source, start, end));
+            start = end;
+         }
+      }
+      return chunks;
+   }
+   
+   /**
+    * @return Position just after the first line break at or after position, or size if there isn't one
+    */
+   static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+      ByteBuffer probe = ByteBuffer.allocate(BOUNDARY_PROBE_SIZE);
+      while (position < size) {
+         probe.clear();
+         int read = channel.read(probe, position);
+         if (read <= 0) break;
+         for (int i = 0; i < read; i++) {
+            if (probe.get(i) == '\n') return position + i + 1;
+         }
+         position += read;
+      }
+      return size;
+   }
+   
+   /**
+    * Reads the given chunk into the given reports.
+    */
+   static void scanChunk(ReportPlan plan, Chunk chunk, List<Report> targets) {
+      try (FileChannel channel = FileChannel.open(Paths.get(chunk.source.path()), StandardOpenOption.READ)) {
+         MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+         try (RecordReader reader = new RecordReader(new ByteBufferInputStream(mapped))) {
+            plan.feed(chunk.source, reader, targets);
+         }
+      } catch (Exception e) {
+         plan.readFailed(chunk.source + " (bytes " + chunk.start + " to " + chunk.end + ")", e);
+      }
+   }
+   
+   /**
+    * A range of bytes in a source, starting at the beginning of a line and ending just after a line break
+    * (or at the end of the file).
+    */
+   static final class Chunk {
+      final DataSource source;
+      final long start;
+      final long end;
+      
+      Chunk(DataSource source, long start, long end) {
+         this.source = source;
+         this.start = start;
+         this.end = end;
+      }
+   }
+   
+   /**
+    * Splits a range of chunks in half until there is only one left, then reads it into a fresh
+    * set of partial reports.  The two halves' partials are merged on the way back up.
+    */
+   private static final class ChunkTask extends RecursiveTask<List<Report>> {
+      private static final long serialVersionUID = 1L;
+      
+      private final ReportPlan plan;
+      private final List<Chunk> chunks;
+      private final int from;
+      private final int to;
+      
+      ChunkTask(ReportPlan plan, List<Chunk> chunks, int from, int to) {
+         this.plan = plan;
+         this.chunks = chunks;
+         this.from = from;
+         this.to = to;
+      }
+      
+      @Override
+      protected List<Report> compute() {
+         if (to - from == 1) {
+            List<Report> partials = plan.newPartials();
+            scanChunk(plan, chunks.get(from), partials);
+            return partials;
+         }
+         
+         int middle = (from + to) >>> 1;
+         ChunkTask right = new ChunkTask(plan, chunks, middle, to);
+         right.fork();
+         List<Report> merged = new ChunkTask(plan, chunks, from, middle).compute();
+         List<Report> rightPartials = right.join();
+         for (int i = 0; i < merged.size(); i++) {
+            merged.get(i).merge(rightPartials.get(i));
+         }
+         return merged;
+      }
+   }
+   
+   /**
+    * Lets a {@link RecordReader} copy bytes straight out of a mapped region.
+    */
+   private static final class ByteBufferInputStream extends InputStream {
+      private final ByteBuffer buffer;
+      
+      ByteBufferInputStream(ByteBuffer buffer) {
+         this.buffer = buffer;
+      }
+      
+      @Override
+      public int read() {
+         return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+      }
+      
+      @Override
+      public int read(byte[] bytes, int offset, int length) {
+         if (!buffer.hasRemaining()) return -1;
+         int count = Math.min(length, buffer.remaining());
+         buffer.get(bytes, offset, count);
+         return count;
+      }
+   }
+}
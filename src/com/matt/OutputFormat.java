@@ -0,0 +1,76 @@
+package com.matt;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * One way of writing a table of counts out to a file.  Which one is used is picked from the
+ * output file's extension (see {@link #forFile(String)}), so any report can be written in any
+ * format just by naming its output file differently.
+ */
+interface OutputFormat {
+   OutputFormat CSV = new CsvFormat();
+   OutputFormat JSON_LINES = new JsonLinesFormat();
+   OutputFormat BINARY = new BinaryTableFormat();
+   
+   /**
+    * @return The format for the given file: JSON lines for .jsonl, binary for .fstb, and csv for anything else
+    */
+   static OutputFormat forFile(String outputFile) {
+      String name = outputFile.toLowerCase();
+      if (name.endsWith(JsonLinesFormat.EXTENSION)) return JSON_LINES;
+      if (name.endsWith(BinaryTableFormat.EXTENSION)) return BINARY;
+      return CSV;
+   }
+   
+   /**
+    * @return Short name for the format, for logging
+    */
+   String name();
+   
+   /**
+    * Writes the whole table out.
+    *
+    * @param table Table of counts to write
+    * @param columns Name of each column, starting with the column of row names
+    * @param rowLabels Name of each row, or null to name each one after the first year of its bucket (or a star for the star row)
+    * @param out Where to write the bytes
+    */
+   default void write(CountTable table, String[] columns, List<String> rowLabels, ByteOutput out) throws IOException {
+      writeHeader(columns, table.rowCount(), out);
+      writeRows(table, columns, rowLabels, out);
+   }
+   
+   /**
+    * Writes whatever comes before the rows.  Tables too big to hold at once are written as one
+    * header followed by several pages of rows.
+    *
+    * @param columns Name of each column, starting with the column of row names
+    * @param rowCount Number of rows that will follow, across every page
+    * @param out Where to write the bytes
+    */
+   void writeHeader(String[] columns, long rowCount, ByteOutput out) throws IOException;
+   
+   /**
+    * Writes every row of the given table (or page of a table).
+    *
+    * @param table Table of counts to write
+    * @param columns Name of each column, starting with the column of row names
+    * @param rowLabels Name of each row, or null to name each one after the first year of its bucket (or a star for the star row)
+    * @param out Where to write the bytes
+    */
+   void writeRows(CountTable table, String[] columns, List<String> rowLabels, ByteOutput out) throws IOException;
+   
+   /**
+    * Writes the name of the given row as text.
+    */
+   static void putRowLabel(CountTable table, int row, List<String> rowLabels, ByteOutput out) throws IOException {
+      if (rowLabels != null) {
+         out.put(rowLabels.get(row));
+      } else if (row == table.starRow()) {
+         out.put((byte) '*');
+      } else {
+         out.putDecimal(table.rowStart(row));
+      }
+   }
+}
@@ -0,0 +1,257 @@
+package com.matt;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a source that has to be streamed (gzipped files and standard input) in three stages,
+ * each on its own thread, so that decompressing the next part of the source overlaps with
+ * parsing and summing the part before it:
+ * <br><br>
+ * 1. Reading (and decompressing) raw bytes into blocks<br>
+ * 2. Splitting the blocks into lines and parsing them into batches of rows<br>
+ * 3. Handing the rows to the reports (the thread calling {@link #next(SearchRecord)})
+ * <br><br>
+ * The stages are joined by small bounded queues, so a fast stage waits on a slow one instead of
+ * buffering the whole source in memory.  Blocks and batches are handed back to the stage that
+ * filled them once they are used, so no garbage is made per block or per row.
+ */
+final class PipelinedRecordReader implements RecordSource {
+   private static final int BLOCK_SIZE = 1 << 18;
+   private static final int BATCH_ROWS = 4096;
+   private static final int QUEUE_DEPTH = 8;
+   
+   private final InputStream in;
+   private final BlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<>(QUEUE_DEPTH + 2);
+   private final BlockingQueue<Block> fullBlocks = new ArrayBlockingQueue<>(QUEUE_DEPTH + 2);
+   private final BlockingQueue<Batch> freeBatches = new ArrayBlockingQueue<>(QUEUE_DEPTH + 2);
+   private final BlockingQueue<Batch> fullBatches = new ArrayBlockingQueue<>(QUEUE_DEPTH + 2);
+   private final Thread readThread;
+   private final Thread parseThread;
+   private final RecordReader parseReader = new RecordReader(new BlockStream());
+   private volatile Throwable failure = null;
+   
+   private boolean started = false;
+   private Batch current = null;
+   private int index = 0;
+   private boolean finished = false;
+   private long bytesRead = 0;
+   private long malformedRows = 0;
+   
+   /**
+    * Opens the given source.  The stages aren't started until the first row is asked for, so a
+    * sink given to {@link #rejectMalformedTo(RejectSink, DataSource)} before then sees every
+    * malformed line.  The header line is skipped.
+    */
+   PipelinedRecordReader(DataSource source) throws IOException {
+      InputStream raw = (source.isStdin() ? System.in : new FileInputStream(source.path()));
+      this.in = (source.isCompressed() ? new GZIPInputStream(raw, BLOCK_SIZE) : raw);
+      
+      for (int i = 0; i < QUEUE_DEPTH; i++) {
+         freeBlocks.add(new Block());
+         freeBatches.add(new Batch());
+      }
+      
+      readThread = new Thread(this::readBlocks, "pipeline-read-" + source);
+      parseThread = new Thread(this::parseBlocks, "pipeline-parse-" + source);
+      readThread.setDaemon(true);
+      parseThread.setDaemon(true);
+   }
+   
+   @Override
+   public boolean next(SearchRecord record) throws IOException {
+      if (!started) {
+         started = true;
+         readThread.start();
+         parseThread.start();
+      }
+      while (current == null || index == current.size) {
+         if (finished) return false;
+         if (current != null) {
+            current.size = 0;
+            freeBatches.add(current);
+         }
+         current = take(fullBatches);
+         index = 0;
+         bytesRead = current.bytesRead;
+         malformedRows = current.malformedRows;
+         if (current.last) {
+            finished = true;
+            if (failure != null) throw new IOException("Failed while streaming source", failure);
+         }
+      }
+      
+      record.type = current.types[index];
+      record.start = current.starts[index];
+      record.end = current.ends[index];
+      record.count = current.counts[index];
+      record.buffer = null;
+      index++;
+      return true;
+   }
+   
+   @Override
+   public long bytesRead() {
+      return bytesRead;
+   }
+   
+   @Override
+   public void rejectMalformedTo(RejectSink rejects, DataSource source) {
+      parseReader.rejectMalformedTo(rejects, source);
+   }
+   
+   @Override
+   public long malformedRows() {
+      return malformedRows;
+   }
+   
+   @Override
+   public void close() throws IOException {
+      readThread.interrupt();
+      parseThread.interrupt();
+      in.close();
+   }
+   
+   /**
+    * Stage 1: Reads raw (decompressed) bytes into blocks.
+    */
+   private void readBlocks() {
+      try {
+         while (true) {
+            Block block = freeBlocks.take();
+            block.length = in.readNBytes(block.bytes, 0, BLOCK_SIZE);
+            block.last = (block.length < BLOCK_SIZE);
+            fullBlocks.put(block);
+            if (block.last) return;
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (Throwable t) {
+         failure = t;
+         fullBlocks.add(Block.failed());
+      }
+   }
+   
+   /**
+    * Stage 2: Splits the blocks into lines and parses them into batches of rows.
+    */
+   private void parseBlocks() {
+      Batch batch = null;
+      RecordReader reader = parseReader;
+      try (reader) {
+         SearchRecord record = new SearchRecord();
+         reader.nextLine(); //Clear out headers
+         batch = freeBatches.take();
+         while (reader.next(record)) {
+            batch.add(record);
+            if (batch.size == BATCH_ROWS) {
+               batch.countedUpTo(reader);
+               fullBatches.put(batch);
+               batch = freeBatches.take();
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return;
+      } catch (Throwable t) {
+         if (failure == null) failure = t;
+      }
+      
+      if (batch == null) batch = new Batch();
+      batch.countedUpTo(reader);
+      batch.last = true;
+      fullBatches.add(batch);
+   }
+   
+   private static <T> T take(BlockingQueue<T> queue) throws IOException {
+      try {
+         return queue.take();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while streaming source", e);
+      }
+   }
+   
+   /**
+    * Lets the parse stage read through the blocks from the read stage as one stream, handing
+    * each block back to be refilled once it has been copied out.
+    */
+   private final class BlockStream extends InputStream {
+      private Block block = null;
+      private int position = 0;
+      
+      @Override
+      public int read() throws IOException {
+         byte[] one = new byte[1];
+         return read(one, 0, 1) == -1 ? -1 : (one[0] & 0xFF);
+      }
+      
+      @Override
+      public int read(byte[] bytes, int offset, int length) throws IOException {
+         while (block == null || position == block.length) {
+            if (block != null) {
+               if (block.last) return -1;
+               freeBlocks.add(block);
+            }
+            block = take(fullBlocks);
+            position = 0;
+            if (block.failed) throw new IOException("Failed while reading source", failure);
+         }
+         int count = Math.min(length, block.length - position);
+         System.arraycopy(block.bytes, position, bytes, offset, count);
+         position += count;
+         return count;
+      }
+   }
+   
+   private static final class Block {
+      final byte[] bytes;
+      int length;
+      boolean last;
+      boolean failed;
+      
+      Block() {
+         this(new byte[BLOCK_SIZE]);
+      }
+      
+      private Block(byte[] bytes) {
+         this.bytes = bytes;
+      }
+      
+      static Block failed() {
+         Block block = new Block(new byte[0]);
+         block.last = true;
+         block.failed = true;
+         return block;
+      }
+   }
+   
+   private static final class Batch {
+      final DateType[] types = new DateType[BATCH_ROWS];
+      final int[] starts = new int[BATCH_ROWS];
+      final int[] ends = new int[BATCH_ROWS];
+      final long[] counts = new long[BATCH_ROWS];
+      int size;
+      boolean last;
+      //How far the parse stage had read when this batch was filled, for the metrics
+      long bytesRead;
+      long malformedRows;
+      
+      void add(SearchRecord record) {
+         types[size] = record.type;
+         starts[size] = record.start;
+         ends[size] = record.end;
+         counts[size] = record.count;
+         size++;
+      }
+      
+      void countedUpTo(RecordReader reader) {
+         bytesRead = reader.bytesRead();
+         malformedRows = reader.malformedRows();
+      }
+   }
+}
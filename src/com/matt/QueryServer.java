@@ -0,0 +1,393 @@
+package com.matt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the reports over HTTP from a {@link SearchCube} kept in memory, so any report with any
+ * parameters comes back in milliseconds instead of re-reading the sources.  The sources are read
+ * once at start, then read again in the background whenever they change, and the new cube is
+ * swapped in once it is finished.  Requests are answered from whichever cube is current when they
+ * come in, so they never wait on a reload.
+ * <br><br>
+ * Each report is at the path of its name in {@link DataHandler}, with its parameters in the query:<br>
+ * GET /searchedYearsByType?bucketSize=20&amp;stopYear=2024<br>
+ * GET /birthYearSearchesBySystem?bucketSize=20&amp;stopYear=2024<br>
+ * GET /yearTypesSearchedBySystem<br>
+ * GET /livingPersonSearchesBySystem?birthCutoff=1965&amp;otherCutoff=1980&amp;stopYear=2024<br>
+ * GET /dateRangeLengths?bucketSize=1&amp;stopLength=105<br>
+ * GET /livingPersonCutoffSweep?birthCutoffs=1960,1965,1970&amp;otherCutoffs=1980,1990&amp;stopYears=2024<br>
+ * Tables are sent as csv, or add format=jsonl or format=binary for the other {@link OutputFormat}s.
+ * GET /status gives the sources and when they were last read.
+ */
+public final class QueryServer {
+   public static final int DEFAULT_POLL_SECONDS = 10;
+   
+   private final Supplier<SourceCatalog> sources;
+   private final int port;
+   private int threads = Runtime.getRuntime().availableProcessors();
+   private int pollSeconds = DEFAULT_POLL_SECONDS;
+   private ResultCache results = null;
+   
+   private final Map<String, Query> queries = new LinkedHashMap<>();
+   private volatile Snapshot current = null;
+   private HttpServer server = null;
+   private ExecutorService pool = null;
+   private ScheduledExecutorService poller = null;
+   
+   /**
+    * @param sources Gives the catalog of sources to read.  Called again on every poll, so a
+    *                catalog of a directory can pick up new files.
+    * @param port Port to listen on
+    */
+   public QueryServer(Supplier<SourceCatalog> sources, int port) {
+      this.sources = sources;
+      this.port = port;
+      
+      queries.put("searchedYearsByType", (cube, params) -> new Table(
+            cube.searchedYearsByTypeTable(params.positive("bucketSize"), params.integer("stopYear")),
+            "year,birth,death,any,other", null));
+      queries.put("birthYearSearchesBySystem", (cube, params) -> new Table(
+            cube.birthYearSearchesBySystemTable(params.positive("bucketSize"), params.integer("stopYear")),
+            "year,hr,tree,lls", null));
+      queries.put("yearTypesSearchedBySystem", (cube, params) -> new Table(
+            cube.yearTypesSearchedBySystemTable(), "yearType,hr,tree,lls", SearchCube.yearTypeLabels()));
+      queries.put("livingPersonSearchesBySystem", (cube, params) -> new Table(
+            cube.livingPersonSearchesBySystemTable(params.integer("birthCutoff"), params.integer("otherCutoff"), params.integer("stopYear")),
+            "system,total,living", SearchCube.systemLabels()));
+      queries.put("livingPersonCutoffSweep", (cube, params) -> {
+         int[] birthCutoffs = params.integers("birthCutoffs");
+         int[] otherCutoffs = params.integers("otherCutoffs");
+         int[] stopYears = params.integers("stopYears");
+         return new Table(cube.livingPersonCutoffSweepTable(birthCutoffs, otherCutoffs, stopYears),
+                          "birthCutoff/otherCutoff/stopYear,hr,tree,lls,total",
+                          SearchCube.cutoffSweepLabels(birthCutoffs, otherCutoffs, stopYears));
+      });
+      queries.put("dateRangeLengths", (cube, params) -> new Table(
+            cube.dateRangeLengthsTable(params.positive("bucketSize"), params.integer("stopLength")),
+            "length,count", null));
+   }
+   
+   /**
+    * Sets how many requests may be answered at the same time.  Defaults to the number of processors.
+    */
+   public QueryServer threads(int threads) {
+      if (threads < 1) throw new IllegalArgumentException("Thread count must be at least 1, got " + threads);
+      this.threads = threads;
+      return this;
+   }
+   
+   /**
+    * Sets how often the sources are checked for changes.
+    *
+    * @param pollSeconds Seconds between checks.  Use 0 to never reload.
+    */
+   public QueryServer pollInterval(int pollSeconds) {
+      if (pollSeconds < 0) throw new IllegalArgumentException("Poll interval cannot be negative, got " + pollSeconds);
+      this.pollSeconds = pollSeconds;
+      return this;
+   }
+   
+   /**
+    * Keeps each cube in the given cache, so restarting the server on unchanged sources doesn't
+    * read them again.
+    */
+   public QueryServer resultCache(ResultCache results) {
+      this.results = results;
+      return this;
+   }
+   
+   /**
+    * Reads the sources, then starts answering requests.  Returns once the server is listening;
+    * it keeps running on its own threads until {@link #stop()} is called.
+    */
+   public void start() throws IOException {
+      SourceCatalog catalog = sources.get();
+      current = load(catalog, stamp(catalog), 0);
+      
+      pool = Executors.newFixedThreadPool(threads);
+      server = HttpServer.create(new InetSocketAddress(port), 0);
+      server.setExecutor(pool);
+      server.createContext("/", this::handle);
+      server.start();
+      System.out.println("Serving reports on port " + server.getAddress().getPort());
+      
+      if (pollSeconds > 0) {
+         poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "source-poller");
+            thread.setDaemon(true);
+            return thread;
+         });
+         poller.scheduleWithFixedDelay(this::reloadIfChanged, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+      }
+   }
+   
+   /**
+    * Stops answering requests, and stops watching the sources.
+    */
+   public void stop() {
+      if (poller != null) poller.shutdownNow();
+      if (server != null) server.stop(0);
+      if (pool != null) pool.shutdownNow();
+   }
+   
+   /**
+    * @return Port the server is listening on (useful when started on port 0)
+    */
+   public int port() {
+      return server.getAddress().getPort();
+   }
+   
+   /**
+    * Reads the sources again if any of them were added, removed, or changed since the current
+    * cube was built.  Sources that are missing part way through being replaced are waited out.
+    */
+   void reloadIfChanged() {
+      try {
+         SourceCatalog catalog = sources.get();
+         String stamp = stamp(catalog);
+         Snapshot snapshot = current;
+         if (stamp.equals(snapshot.stamp)) return;
+         //Checked here, since a plan missing a source would exit
+         if (!catalog.missing().isEmpty()) return;
+         
+         System.out.println("Sources changed, reloading");
+         Snapshot reloaded = load(catalog, stamp, snapshot.reloads + 1);
+         if (reloaded != null) current = reloaded;
+      } catch (RuntimeException e) {
+         //Keep polling (and serving the last good cube) no matter what went wrong
+         System.out.println("Exception occured during reloading sources!\n" + e.getMessage());
+         e.printStackTrace();
+      }
+   }
+   
+   /**
+    * Builds a cube from the given sources.
+    *
+    * @return The new snapshot, or null if part of the sources couldn't be read (and it isn't complete)
+    */
+   private Snapshot load(SourceCatalog catalog, String stamp, int reloads) {
+      long started = System.nanoTime();
+      ReportPlan plan = new ReportPlan(catalog).rejects(null);
+      if (results != null) plan.resultCache(results);
+      SearchCube cube = plan.buildCube();
+      if (plan.anyReadFailed() && reloads > 0) {
+         System.out.println("Keeping the last cube, since the sources couldn't all be read");
+         return null;
+      }
+      return new Snapshot(cube, stamp, catalog.sources().size(), Instant.now(), System.nanoTime() - started, reloads);
+   }
+   
+   /**
+    * @return Text that changes whenever a source is added, removed, or written to
+    */
+   private static String stamp(SourceCatalog catalog) {
+      StringBuilder stamp = new StringBuilder();
+      for (DataSource source: catalog.sources()) {
+         File file = new File(source.path());
+         stamp.append(source.path()).append(',').append(file.length()).append(',').append(file.lastModified()).append('\n');
+      }
+      return stamp.toString();
+   }
+   
+   private void handle(HttpExchange exchange) throws IOException {
+      try {
+         if (!exchange.getRequestMethod().equals("GET")) {
+            sendText(exchange, 405, "Only GET is supported\n");
+            return;
+         }
+         String name = exchange.getRequestURI().getPath().substring(1);
+         Snapshot snapshot = current;
+         if (name.equals("status")) {
+            sendText(exchange, 200, snapshot.status());
+            return;
+         }
+         Query query = queries.get(name);
+         if (query == null) {
+            sendText(exchange, 404, "Unknown report \"" + name + "\", expected one of " + queries.keySet() + " or status\n");
+            return;
+         }
+         
+         Params params = new Params(exchange.getRequestURI().getRawQuery());
+         Table table;
+         OutputFormat format;
+         try {
+            table = query.run(snapshot.cube, params);
+            format = params.format();
+         } catch (IllegalArgumentException e) {
+            sendText(exchange, 400, e.getMessage() + "\n");
+            return;
+         } catch (RuntimeException e) {
+            sendText(exchange, 500, "Could not roll up \"" + name + "\": " + e + "\n");
+            throw e;
+         }
+         
+         exchange.getResponseHeaders().set("Content-Type", contentType(format));
+         exchange.sendResponseHeaders(200, 0);
+         try (OutputStream body = exchange.getResponseBody()) {
+            ByteOutput out = new ByteOutput(1 << 13);
+            out.open(Channels.newChannel(body));
+            format.write(table.counts, table.header.split(","), table.rowLabels, out);
+            out.flush();
+         }
+      } catch (IOException | RuntimeException e) {
+         System.out.println("Exception occured during answering " + exchange.getRequestURI() + "!\n" + e.getMessage());
+         throw e;
+      } finally {
+         exchange.close();
+      }
+   }
+   
+   private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream body = exchange.getResponseBody()) {
+         body.write(bytes);
+      }
+   }
+   
+   private static String contentType(OutputFormat format) {
+      if (format == OutputFormat.JSON_LINES) return "application/x-ndjson";
+      if (format == OutputFormat.BINARY) return "application/octet-stream";
+      return "text/csv; charset=utf-8";
+   }
+   
+   /**
+    * Rolls a report up from a cube.
+    */
+   private interface Query {
+      Table run(SearchCube cube, Params params);
+   }
+   
+   /**
+    * A rolled up report, ready to be written out.
+    */
+   private static final class Table {
+      final CountTable counts;
+      final String header;
+      final List<String> rowLabels;
+      
+      Table(CountTable counts, String header, List<String> rowLabels) {
+         this.counts = counts;
+         this.header = header;
+         this.rowLabels = rowLabels;
+      }
+   }
+   
+   /**
+    * The parameters of a request, from its query string.
+    */
+   private static final class Params {
+      private final Map<String, String> values = new HashMap<>();
+      
+      Params(String rawQuery) {
+         if (rawQuery == null) return;
+         for (String pair: rawQuery.split("&")) {
+            if (pair.isEmpty()) continue;
+            int equals = pair.indexOf('=');
+            String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = (equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            values.put(key, value);
+         }
+      }
+      
+      /**
+       * @throws IllegalArgumentException If the parameter is missing or not a whole number
+       */
+      int integer(String name) {
+         String value = values.get(name);
+         if (value == null) throw new IllegalArgumentException("Missing parameter " + name);
+         try {
+            return Integer.parseInt(value);
+         } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter " + name + " must be a whole number, got \"" + value + "\"");
+         }
+      }
+      
+      /**
+       * @return Each number in a comma separated list
+       * @throws IllegalArgumentException If the parameter is missing or any of it isn't a whole number
+       */
+      int[] integers(String name) {
+         String value = values.get(name);
+         if (value == null) throw new IllegalArgumentException("Missing parameter " + name);
+         String[] parts = value.split(",");
+         int[] numbers = new int[parts.length];
+         try {
+            for (int i = 0; i < parts.length; i++) {
+               numbers[i] = Integer.parseInt(parts[i].trim());
+            }
+         } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter " + name + " must be a list of whole numbers, got \"" + value + "\"");
+         }
+         return numbers;
+      }
+      
+      /**
+       * @throws IllegalArgumentException If the parameter is missing or not a whole number above 0
+       */
+      int positive(String name) {
+         int value = integer(name);
+         if (value < 1) throw new IllegalArgumentException("Parameter " + name + " must be at least 1, got " + value);
+         return value;
+      }
+      
+      /**
+       * @throws IllegalArgumentException If the format isn't csv, jsonl, or binary
+       */
+      OutputFormat format() {
+         String name = values.getOrDefault("format", OutputFormat.CSV.name());
+         for (OutputFormat format: new OutputFormat[] {OutputFormat.CSV, OutputFormat.JSON_LINES, OutputFormat.BINARY}) {
+            if (format.name().equals(name)) return format;
+         }
+         throw new IllegalArgumentException("Unknown format \"" + name + "\", expected csv, jsonl, or binary");
+      }
+   }
+   
+   /**
+    * A finished cube, and what it was built from.  Never changed once made, so any number of
+    * requests can roll up from it at once.
+    */
+   private static final class Snapshot {
+      final SearchCube cube;
+      final String stamp;
+      final int sourceCount;
+      final Instant loadedAt;
+      final long loadNanos;
+      final int reloads;
+      
+      Snapshot(SearchCube cube, String stamp, int sourceCount, Instant loadedAt, long loadNanos, int reloads) {
+         this.cube = cube;
+         this.stamp = stamp;
+         this.sourceCount = sourceCount;
+         this.loadedAt = loadedAt;
+         this.loadNanos = loadNanos;
+         this.reloads = reloads;
+      }
+      
+      String status() {
+         return "{\"sources\":" + sourceCount + ",\"loadedAt\":\"" + loadedAt + "\",\"loadSeconds\":"
+                + String.format(Locale.ROOT, "%.3f", loadNanos / 1e9) + ",\"reloads\":" + reloads + "}\n";
+      }
+   }
+}
@@ -0,0 +1,258 @@
+package com.matt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sketches of how long the searched date ranges are, kept for every system and date type (plus
+ * one slot for unknown types) and weighted by each row's count.  Added to a plan with
+ * {@link ReportPlan#sketchRangeLengths()}; once the plan has run, quantiles (such as the median
+ * or p99) and histograms with any bucketing can be pulled from it without reading the sources
+ * again.
+ * <br><br>
+ * Each sketch is a {@link LengthSketch}, so memory stays bounded no matter how many rows there
+ * are, and the copies built on each thread, chunk, or shard merge exactly.  Ranges with a star on
+ * either end have no length, and are only counted.  Rows with only one year aren't ranges, and
+ * are left out, the same as in {@link DataHandler#dateRangeLengths(String, int, int)}.
+ */
+public class RangeLengthSketches extends Report {
+   private static final int SYSTEMS = SearchSystem.values().length;
+   private static final int TYPE_SLOTS = DateType.values().length + 1;
+   private static final int UNKNOWN_TYPE_SLOT = TYPE_SLOTS - 1;
+   private static final int CELLS = SYSTEMS * TYPE_SLOTS;
+   
+   private final LengthSketch[] sketches = new LengthSketch[CELLS];
+   private final long[] stars = new long[CELLS];
+   
+   RangeLengthSketches() {
+      super("rangeLengthSketches", null);
+      for (int cell = 0; cell < CELLS; cell++) {
+         sketches[cell] = new LengthSketch();
+      }
+   }
+   
+   @Override
+   void accept(DataSource source, SearchRecord record) {
+      if (record.end == SearchRecord.NO_YEAR) return;
+      int cell = source.system().ordinal() * TYPE_SLOTS + (record.type == null ? UNKNOWN_TYPE_SLOT : record.type.ordinal());
+      if (record.start == SearchRecord.STAR_YEAR || record.end == SearchRecord.STAR_YEAR) {
+         stars[cell] += record.count;
+      } else {
+         sketches[cell].add((long) record.end - record.start, record.count);
+      }
+   }
+   
+   //----------------[ Results ]-------------------------
+   
+   /**
+    * Finds the range length that the given fraction of all searched ranges are at or below.
+    * Exact for lengths under {@value LengthSketch#EXACT_LIMIT} years; otherwise within about 1%.
+    *
+    * @param quantile Fraction between 0 and 1 (0.5 for the median, 0.99 for p99)
+    * @throws IllegalStateException If no ranges were counted
+    */
+   public long quantile(double quantile) {
+      return quantile(null, null, quantile);
+   }
+   
+   /**
+    * Same as {@link #quantile(double)}, for only the given system and date type.
+    *
+    * @param system System to include, or null for all of them
+    * @param type Date type to include, or null for all of them (including unknown types)
+    * @param quantile Fraction between 0 and 1
+    * @throws IllegalStateException If no ranges were counted for them
+    */
+   public long quantile(SearchSystem system, DateType type, double quantile) {
+      checkQuantile(quantile);
+      return combined(system, type).quantile(quantile);
+   }
+   
+   /**
+    * @param system System to include, or null for all of them
+    * @param type Date type to include, or null for all of them (including unknown types)
+    * @return Total count of the ranges with a length (not counting stars)
+    */
+   public long count(SearchSystem system, DateType type) {
+      return combined(system, type).total();
+   }
+   
+   /**
+    * @param system System to include, or null for all of them
+    * @param type Date type to include, or null for all of them (including unknown types)
+    * @return Total count of the ranges with a star on either end
+    */
+   public long stars(SearchSystem system, DateType type) {
+      long total = 0;
+      for (int cell = 0; cell < CELLS; cell++) {
+         if (includes(cell, system, type)) total += stars[cell];
+      }
+      return total;
+   }
+   
+   /**
+    * Same as {@link DataHandler#dateRangeLengths(String, int, int)}, built from the sketches.
+    * Exact as long as the bucket size and stop length are under {@value LengthSketch#EXACT_LIMIT}.
+    */
+   public void dateRangeLengths(String outputFile, int bucketSize, int stopLength) {
+      dateRangeLengths(outputFile, bucketSize, stopLength, null, null);
+   }
+   
+   /**
+    * Same as {@link #dateRangeLengths(String, int, int)}, for only the given system and date type.
+    *
+    * @param system System to include, or null for all of them
+    * @param type Date type to include, or null for all of them (including unknown types)
+    */
+   public void dateRangeLengths(String outputFile, int bucketSize, int stopLength, SearchSystem system, DateType type) {
+      DataHandler.writeTableToFile(dateRangeLengthsTable(bucketSize, stopLength, system, type), outputFile, "length,count");
+   }
+   
+   /**
+    * Writes the count, star count, shortest and longest length, and the given quantiles of range
+    * length for each system and date type that had any ranges, then for each system, then overall.
+    * <br><br>
+    * Example:<br>
+    * writeQuantiles("rangeLengthQuantiles.csv", 0.5, 0.9, 0.99);<br>
+    * Gives columns: system/yearType,count,stars,min,max,p50,p90,p99
+    *
+    * @param outputFile Filename (in the output folder) to write to
+    * @param quantiles Fractions between 0 and 1 to find the lengths of
+    */
+   public void writeQuantiles(String outputFile, double... quantiles) {
+      for (double quantile: quantiles) {
+         checkQuantile(quantile);
+      }
+      
+      List<String> labels = new ArrayList<>();
+      List<LengthSketch> rows = new ArrayList<>();
+      List<Long> rowStars = new ArrayList<>();
+      for (SearchSystem system: SearchSystem.values()) {
+         for (int slot = 0; slot < TYPE_SLOTS; slot++) {
+            int cell = system.ordinal() * TYPE_SLOTS + slot;
+            if (sketches[cell].total() == 0 && stars[cell] == 0) continue;
+            labels.add(system.label() + "/" + (slot == UNKNOWN_TYPE_SLOT ? "unknown" : DateType.fromOrdinal(slot).label()));
+            rows.add(sketches[cell]);
+            rowStars.add(stars[cell]);
+         }
+      }
+      for (SearchSystem system: SearchSystem.values()) {
+         labels.add(system.label() + "/all");
+         rows.add(combined(system, null));
+         rowStars.add(stars(system, null));
+      }
+      labels.add("all/all");
+      rows.add(combined(null, null));
+      rowStars.add(stars(null, null));
+      
+      StringBuilder header = new StringBuilder("system/yearType,count,stars,min,max");
+      for (double quantile: quantiles) {
+         header.append(",p").append(percentile(quantile));
+      }
+      
+      CountTable table = new CountTable(rows.size(), 4 + quantiles.length);
+      for (int row = 0; row < rows.size(); row++) {
+         LengthSketch sketch = rows.get(row);
+         table.add(row, 0, sketch.total());
+         table.add(row, 1, rowStars.get(row));
+         //Rows with only stars have no lengths to give, so those columns are left at 0
+         if (sketch.total() == 0) continue;
+         table.add(row, 2, sketch.min());
+         table.add(row, 3, sketch.max());
+         for (int i = 0; i < quantiles.length; i++) {
+            table.add(row, 4 + i, sketch.quantile(quantiles[i]));
+         }
+      }
+      DataHandler.writeTableToFileWithReplacements(table, outputFile, header.toString(), labels);
+   }
+   
+   CountTable dateRangeLengthsTable(int bucketSize, int stopLength, SearchSystem system, DateType type) {
+      CountTable table = CountTable.yearBuckets(bucketSize, stopLength, 1);
+      combined(system, type).addTo(table, bucketSize, stopLength);
+      table.add(table.starRow(), 0, stars(system, type));
+      return table;
+   }
+   
+   /**
+    * @return A new sketch with the lengths of every cell for the given system and type merged into it
+    */
+   private LengthSketch combined(SearchSystem system, DateType type) {
+      LengthSketch combined = new LengthSketch();
+      for (int cell = 0; cell < CELLS; cell++) {
+         if (includes(cell, system, type)) combined.merge(sketches[cell]);
+      }
+      return combined;
+   }
+   
+   private static boolean includes(int cell, SearchSystem system, DateType type) {
+      return (system == null || cell / TYPE_SLOTS == system.ordinal())
+             && (type == null || cell % TYPE_SLOTS == type.ordinal());
+   }
+   
+   private static void checkQuantile(double quantile) {
+      if (!(quantile >= 0 && quantile <= 1)) {
+         throw new IllegalArgumentException("Quantiles must be between 0 and 1, got " + quantile);
+      }
+   }
+   
+   /**
+    * @return The quantile as a percent, without any trailing zeros (so 0.5 is "50" and 0.999 is "99.9")
+    */
+   private static String percentile(double quantile) {
+      return new BigDecimal(Double.toString(quantile)).movePointRight(2).stripTrailingZeros().toPlainString();
+   }
+   
+   //----------------[ Report ]-------------------------
+   
+   @Override
+   boolean verifiesSources() {
+      return false;
+   }
+   
+   @Override
+   Report newPartial() {
+      return new RangeLengthSketches();
+   }
+   
+   @Override
+   void merge(Report partial) {
+      RangeLengthSketches other = (RangeLengthSketches) partial;
+      for (int cell = 0; cell < CELLS; cell++) {
+         sketches[cell].merge(other.sketches[cell]);
+         stars[cell] += other.stars[cell];
+      }
+   }
+   
+   @Override
+   String stateKey() {
+      return "rangeLengthSketches(" + LengthSketch.EXACT_LIMIT + "," + LengthSketch.GAMMA + ")";
+   }
+   
+   @Override
+   void writeState(DataOutput out) throws IOException {
+      for (int cell = 0; cell < CELLS; cell++) {
+         out.writeLong(stars[cell]);
+         sketches[cell].writeTo(out);
+      }
+   }
+   
+   @Override
+   void readState(DataInput in) throws IOException {
+      for (int cell = 0; cell < CELLS; cell++) {
+         stars[cell] = in.readLong();
+         sketches[cell].readFrom(in);
+      }
+   }
+   
+   /**
+    * The sketches aren't written to a file on their own; use {@link #writeQuantiles(String, double...)}
+    * or {@link #dateRangeLengths(String, int, int)} to write out what they found.
+    */
+   @Override
+   void write() {
+   }
+}
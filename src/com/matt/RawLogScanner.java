@@ -0,0 +1,373 @@
+package com.matt;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads raw search logs, with one line per search instead of the summed counts of an export,
+ * and sums them into the same rows the reports read from exports, along with the hour each
+ * search was made in.
+ * <br><br>
+ * Each line of a log is "timestamp,system,dates", after a header line.  The timestamp is either
+ * in ISO-8601 (such as 2024-06-14T13:05:12Z, always UTC) or in seconds since 1970.  The system is
+ * the label of a {@link SearchSystem} (such as hr).  The dates are every date the search was
+ * made on, in the same "type;start;end" layout as an export, split by '|' (and optionally in
+ * quotes), such as "birth;1850;1860|death;1900".  Searches that include a death date are counted
+ * as coming from the source with death dates for their system, just like the exports are split.
+ * <br><br>
+ * Rows are summed in a hash table of bounded size, keyed by system, variant, date type, years,
+ * and hour.  Whenever the table gets {@link #FLUSH_PERCENT}% full (and at the end of the log),
+ * its rows are handed to the reports, one group for each system and variant, and it is cleared.
+ * Logs of any size can be read this way, and since there are far fewer distinct rows in an hour
+ * than searches, the reports see only a small fraction of the lines.
+ */
+final class RawLogScanner {
+   static final int TABLE_SIZE = 1 << 16;
+   static final int FLUSH_PERCENT = 75;
+   
+   private static final int SYSTEMS = SearchSystem.values().length;
+   private static final int TYPE_SLOTS = DateType.values().length + 1;
+   private static final int UNKNOWN_TYPE_SLOT = TYPE_SLOTS - 1;
+   private static final int GROUPS = 2 * SYSTEMS;
+   private static final int SECONDS_PER_HOUR = 60 * 60;
+   private static final byte[][] SYSTEM_LABELS = new byte[SYSTEMS][];
+   static {
+      for (SearchSystem system: SearchSystem.values()) {
+         SYSTEM_LABELS[system.ordinal()] = system.label().getBytes(StandardCharsets.US_ASCII);
+      }
+   }
+   
+   private final ReportPlan plan;
+   private final DataSource log;
+   private final List<Report> targets;
+   //One source for each system and variant, that the summed rows are handed to the reports under
+   private final DataSource[] groupSources = new DataSource[GROUPS];
+   
+   //Rows summed so far, at the same index in each: (group, type slot, start, end, hour) -> count
+   private final byte[] groups = new byte[TABLE_SIZE];
+   private final byte[] typeSlots = new byte[TABLE_SIZE];
+   private final int[] starts = new int[TABLE_SIZE];
+   private final int[] ends = new int[TABLE_SIZE];
+   private final long[] hours = new long[TABLE_SIZE];
+   private final long[] counts = new long[TABLE_SIZE];
+   private int used = 0;
+   
+   //Dates of the line being read
+   private final SearchRecord date = new SearchRecord();
+   private byte[] lineSlots = new byte[8];
+   private int[] lineStarts = new int[8];
+   private int[] lineEnds = new int[8];
+   
+   //Bytes and malformed lines since the last flush, for the run's metrics
+   private long bytesFlushed = 0;
+   private long malformedRows = 0;
+   
+   private RawLogScanner(ReportPlan plan, DataSource log, List<Report> targets) {
+      this.plan = plan;
+      this.log = log;
+      this.targets = targets;
+      for (SearchSystem system: SearchSystem.values()) {
+         groupSources[groupOf(system.ordinal(), false)] = new DataSource(log.path() + "[" + system.label() + "]", system, false);
+         groupSources[groupOf(system.ordinal(), true)] = new DataSource(log.path() + "[" + system.label() + ", with deaths]", system, true);
+      }
+   }
+   
+   /**
+    * Reads a raw search log, handing the summed rows to each report given.
+    *
+    * @param plan Plan being run, whose metrics and rejects the read goes into
+    * @param log Source of the log
+    * @param targets Reports to hand the rows to
+    */
+   static void scan(ReportPlan plan, DataSource log, List<Report> targets) throws IOException {
+      new RawLogScanner(plan, log, targets).scan();
+   }
+   
+   private void scan() throws IOException {
+      InputStream raw = (log.isStdin() ? System.in : new FileInputStream(log.path()));
+      try (RecordReader reader = new RecordReader(log.isCompressed() ? new GZIPInputStream(raw, 1 << 16) : raw)) {
+         reader.nextLine(); //Clear out headers
+         while (reader.nextLine()) {
+            if (!addLine(reader.buffer(), reader.lineStart(), reader.lineEnd())) {
+               malformedRows++;
+               plan.rejects().rejectLine(log, reader.buffer(), reader.lineStart(), reader.lineEnd());
+            }
+            if (used * 100L >= TABLE_SIZE * (long) FLUSH_PERCENT) {
+               flush(reader.bytesConsumed());
+            }
+         }
+         flush(reader.bytesConsumed());
+      }
+   }
+   
+   /**
+    * Parses a line of the log, adding a count of one for each of its dates.
+    *
+    * @return False if the line was not in the expected layout (in which case nothing is added)
+    */
+   private boolean addLine(byte[] buffer, int from, int to) {
+      //Timestamp
+      int comma = indexOf(buffer, from, to, (byte) ',');
+      if (comma < 0) return false;
+      long time = parseTime(buffer, from, comma);
+      if (time == SearchRecord.NO_TIME) return false;
+      long hour = Math.floorDiv(time, SECONDS_PER_HOUR) * SECONDS_PER_HOUR;
+      
+      //System
+      int i = comma + 1;
+      comma = indexOf(buffer, i, to, (byte) ',');
+      if (comma < 0) return false;
+      int system = systemOf(buffer, i, comma);
+      if (system < 0) return false;
+      
+      //Dates, parsed in full before any are added so a bad one leaves out the whole line
+      i = comma + 1;
+      boolean quoted = (i < to && buffer[i] == '"');
+      if (quoted) i++;
+      int dates = 0;
+      boolean withDeaths = false;
+      while (i < to && !(quoted && buffer[i] == '"')) {
+         i = RecordParser.parseDates(buffer, i, to, date);
+         if (i < 0) return false;
+         if (dates == lineSlots.length) {
+            lineSlots = Arrays.copyOf(lineSlots, dates * 2);
+            lineStarts = Arrays.copyOf(lineStarts, dates * 2);
+            lineEnds = Arrays.copyOf(lineEnds, dates * 2);
+         }
+         lineSlots[dates] = (byte) (date.type == null ? UNKNOWN_TYPE_SLOT : date.type.ordinal());
+         lineStarts[dates] = date.start;
+         lineEnds[dates] = date.end;
+         dates++;
+         if (date.type == DateType.DEATH) withDeaths = true;
+         
+         if (i < to && buffer[i] == '|') {
+            i++;
+         } else if (i < to && !(quoted && buffer[i] == '"')) {
+            return false;
+         }
+      }
+      if (quoted && (i == to || i + 1 != to)) return false;
+      
+      int group = groupOf(system, withDeaths);
+      for (int d = 0; d < dates; d++) {
+         add(group, lineSlots[d], lineStarts[d], lineEnds[d], hour);
+      }
+      return true;
+   }
+   
+   /**
+    * Adds a count of one to the given row in the table.
+    */
+   private void add(int group, byte typeSlot, int start, int end, long hour) {
+      long hash = hour * 0x9E3779B97F4A7C15L + (((long) start << 32) ^ (end & 0xFFFFFFFFL)) * 0xC2B2AE3D27D4EB4FL
+                  + (group * TYPE_SLOTS + typeSlot) * 0x165667B19E3779F9L;
+      int mask = TABLE_SIZE - 1;
+      int index = (int) (hash ^ (hash >>> 29) ^ (hash >>> 47)) & mask;
+      while (counts[index] != 0) {
+         if (hours[index] == hour && starts[index] == start && ends[index] == end
+             && typeSlots[index] == typeSlot && groups[index] == group) {
+            counts[index]++;
+            return;
+         }
+         index = (index + 1) & mask;
+      }
+      groups[index] = (byte) group;
+      typeSlots[index] = typeSlot;
+      starts[index] = start;
+      ends[index] = end;
+      hours[index] = hour;
+      counts[index] = 1;
+      used++;
+   }
+   
+   /**
+    * Hands every row in the table to the reports, one group at a time, then clears it.
+    *
+    * @param bytesConsumed Bytes of the log read through so far
+    */
+   private void flush(long bytesConsumed) throws IOException {
+      boolean[] present = new boolean[GROUPS];
+      for (int index = 0; index < TABLE_SIZE; index++) {
+         if (counts[index] != 0) present[groups[index]] = true;
+      }
+      
+      //The bytes and malformed lines since the last flush are counted under the first group read
+      boolean counted = false;
+      for (int group = 0; group < GROUPS; group++) {
+         if (!present[group]) continue;
+         plan.feed(groupSources[group], new SummedRows(group, counted ? 0 : bytesConsumed - bytesFlushed,
+                                                       counted ? 0 : malformedRows), targets);
+         counted = true;
+      }
+      if (!counted && bytesConsumed > bytesFlushed) {
+         //Nothing to hand out (every line was malformed, or had no dates), but the read still counts
+         plan.feed(groupSources[0], new SummedRows(-1, bytesConsumed - bytesFlushed, malformedRows), targets);
+      }
+      bytesFlushed = bytesConsumed;
+      malformedRows = 0;
+      
+      Arrays.fill(counts, 0);
+      used = 0;
+   }
+   
+   private static int groupOf(int system, boolean withDeaths) {
+      return (withDeaths ? SYSTEMS : 0) + system;
+   }
+   
+   private static int indexOf(byte[] buffer, int from, int to, byte b) {
+      for (int i = from; i < to; i++) {
+         if (buffer[i] == b) return i;
+      }
+      return -1;
+   }
+   
+   /**
+    * @return Ordinal of the system whose label (in any case) is in buffer[from, to), or -1 if there isn't one
+    */
+   private static int systemOf(byte[] buffer, int from, int to) {
+      for (int system = 0; system < SYSTEMS; system++) {
+         byte[] label = SYSTEM_LABELS[system];
+         if (label.length != to - from) continue;
+         int i = 0;
+         while (i < label.length && (buffer[from + i] | 0x20) == label[i]) i++;
+         if (i == label.length) return system;
+      }
+      return -1;
+   }
+   
+   /**
+    * Parses a timestamp in seconds since 1970, or in ISO-8601 UTC: a date, a 'T' or space, then
+    * hours and minutes, with optional seconds, fraction of a second, and 'Z'.
+    *
+    * @return The time in seconds since 1970, or NO_TIME if it was not in either layout
+    */
+   static long parseTime(byte[] buffer, int from, int to) {
+      if (from < to && buffer[from] == '"' && buffer[to - 1] == '"') {
+         from++;
+         to--;
+      }
+      if (from == to) return SearchRecord.NO_TIME;
+      
+      int dash = indexOf(buffer, from, to, (byte) '-');
+      if (dash <= from) {
+         long seconds = 0;
+         for (int i = from; i < to; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9 || i - from == 18) return SearchRecord.NO_TIME;
+            seconds = seconds * 10 + digit;
+         }
+         return seconds;
+      }
+      
+      //yyyy-MM-ddTHH:mm, then [:ss[.fff]][Z]
+      if (to - from < 16 || dash - from != 4) return SearchRecord.NO_TIME;
+      int year = digits(buffer, from, 4);
+      int month = digits(buffer, from + 5, 2);
+      int day = digits(buffer, from + 8, 2);
+      int hour = digits(buffer, from + 11, 2);
+      int minute = digits(buffer, from + 14, 2);
+      if (buffer[from + 7] != '-' || (buffer[from + 10] != 'T' && buffer[from + 10] != ' ') || buffer[from + 13] != ':'
+          || year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+         return SearchRecord.NO_TIME;
+      }
+      int i = from + 16;
+      int second = 0;
+      if (i < to && buffer[i] == ':') {
+         second = (i + 3 <= to ? digits(buffer, i + 1, 2) : -1);
+         if (second < 0 || second > 60) return SearchRecord.NO_TIME;
+         i += 3;
+         if (i < to && buffer[i] == '.') {
+            i++;
+            int fraction = i;
+            while (i < to && buffer[i] >= '0' && buffer[i] <= '9') i++;
+            if (i == fraction) return SearchRecord.NO_TIME;
+         }
+      }
+      if (i < to && buffer[i] == 'Z') i++;
+      if (i != to) return SearchRecord.NO_TIME;
+      
+      return daysSinceEpoch(year, month, day) * 86400L + hour * 3600 + minute * 60 + second;
+   }
+   
+   /**
+    * @return The number made by the given count of digits at buffer[from], or -1 if they aren't all digits
+    */
+   private static int digits(byte[] buffer, int from, int count) {
+      int value = 0;
+      for (int i = from; i < from + count; i++) {
+         int digit = buffer[i] - '0';
+         if (digit < 0 || digit > 9) return -1;
+         value = value * 10 + digit;
+      }
+      return value;
+   }
+   
+   private static int daysInMonth(int year, int month) {
+      if (month == 2) return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+      return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+   }
+   
+   /**
+    * @return Days from 1970-01-01 to the given date, without making a LocalDate for every line
+    */
+   private static long daysSinceEpoch(int year, int month, int day) {
+      //Count years from March, so the leap day falls at the end of the year
+      long y = (month <= 2 ? year - 1 : year);
+      long era = Math.floorDiv(y, 400);
+      long yearOfEra = y - era * 400;
+      long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+      long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+      return era * 146097 + dayOfEra - 719468;
+   }
+   
+   /**
+    * Hands out the rows of one group from the table, for {@link ReportPlan#feed}.
+    */
+   private final class SummedRows implements RecordSource {
+      private final int group;
+      private final long bytes;
+      private final long malformed;
+      private int index = 0;
+      
+      SummedRows(int group, long bytes, long malformed) {
+         this.group = group;
+         this.bytes = bytes;
+         this.malformed = malformed;
+      }
+      
+      @Override
+      public boolean next(SearchRecord record) {
+         while (index < TABLE_SIZE) {
+            int i = index++;
+            if (counts[i] == 0 || groups[i] != group) continue;
+            record.buffer = null;
+            record.type = (typeSlots[i] == UNKNOWN_TYPE_SLOT ? null : DateType.fromOrdinal(typeSlots[i]));
+            record.start = starts[i];
+            record.end = ends[i];
+            record.time = hours[i];
+            record.count = counts[i];
+            return true;
+         }
+         return false;
+      }
+      
+      @Override
+      public long bytesRead() {
+         return bytes;
+      }
+      
+      @Override
+      public long malformedRows() {
+         return malformed;
+      }
+      
+      @Override
+      public void close() {
+      }
+   }
+}
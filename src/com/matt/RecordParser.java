@@ -0,0 +1,116 @@
+package com.matt;
+
+/**
+ * Parses rows in the "type;start;end",count layout straight from the bytes of a source,
+ * without building any Strings or arrays along the way.
+ */
+final class RecordParser {
+   
+   private RecordParser() {}
+   
+   /**
+    * Parses the line held in buffer[from, to) into the given record.  The end year may be
+    * left off ("type;start",count), and either year may be a star.  An unknown date type is
+    * not an error; the record's type is just left null so reports can decide what to do.
+    *
+    * @param buffer Bytes holding the line
+    * @param from Index of the first byte of the line
+    * @param to Index just past the last byte of the line (not including the line break)
+    * @param record Record to fill in
+    * @return True if the line was parsed, false if it was not in the expected layout
+    */
+   static boolean parse(byte[] buffer, int from, int to, SearchRecord record) {
+      record.buffer = buffer;
+      record.lineStart = from;
+      record.lineEnd = to;
+      
+      int i = from;
+      if (i < to && buffer[i] == '"') i++;
+      i = parseDates(buffer, i, to, record);
+      if (i < 0) return false;
+      
+      if (i < to && buffer[i] == '"') i++;
+      if (i == to || buffer[i] != ',') return false;
+      i++;
+      
+      //Count
+      if (i == to) return false;
+      long count = 0;
+      while (i < to && buffer[i] != ',') {
+         int digit = buffer[i] - '0';
+         if (digit < 0 || digit > 9) return false;
+         if (count > (Long.MAX_VALUE - digit) / 10) return false;
+         count = count * 10 + digit;
+         i++;
+      }
+      record.count = count;
+      return true;
+   }
+   
+   /**
+    * Parses the dates part of a row, "type;start;end" (without quotes), starting at buffer[i]
+    * into the given record's type and years.  The end year may be left off, and either year
+    * may be a star.  Also used for each date searched in raw search logs (see {@link RawLogScanner}).
+    *
+    * @return Index of the byte just past the dates, or -1 if they were not in the expected layout
+    */
+   static int parseDates(byte[] buffer, int i, int to, SearchRecord record) {
+      //Date type
+      int typeStart = i;
+      while (i < to && buffer[i] != ';' && buffer[i] != '"' && buffer[i] != ',') i++;
+      if (i == to || buffer[i] != ';') return -1;
+      record.typeStart = typeStart;
+      record.typeEnd = i;
+      record.type = DateType.fromBytes(buffer, typeStart, i);
+      i++;
+      
+      //Start year
+      int start = parseYear(buffer, i, to);
+      if (start == Integer.MIN_VALUE) return -1;
+      record.start = start;
+      i = skipYear(buffer, i, to);
+      
+      //End year, if there is one
+      if (i < to && buffer[i] == ';') {
+         i++;
+         int end = parseYear(buffer, i, to);
+         if (end == Integer.MIN_VALUE) return -1;
+         record.end = end;
+         i = skipYear(buffer, i, to);
+      } else {
+         record.end = SearchRecord.NO_YEAR;
+      }
+      return i;
+   }
+   
+   /**
+    * @return The year starting at buffer[i], STAR_YEAR for a star, or Integer.MIN_VALUE if it is not a year
+    */
+   private static int parseYear(byte[] buffer, int i, int to) {
+      if (i < to && buffer[i] == '*') {
+         return (i + 1 == to || isYearEnd(buffer[i + 1])) ? SearchRecord.STAR_YEAR : Integer.MIN_VALUE;
+      }
+      int year = 0;
+      int digits = 0;
+      while (i < to && !isYearEnd(buffer[i])) {
+         int digit = buffer[i] - '0';
+         if (digit < 0 || digit > 9 || digits == 9) return Integer.MIN_VALUE;
+         year = year * 10 + digit;
+         digits++;
+         i++;
+      }
+      return digits == 0 ? Integer.MIN_VALUE : year;
+   }
+   
+   /**
+    * @return Index of the byte just past the year starting at buffer[i]
+    */
+   private static int skipYear(byte[] buffer, int i, int to) {
+      while (i < to && !isYearEnd(buffer[i])) i++;
+      return i;
+   }
+   
+   private static boolean isYearEnd(byte b) {
+      return b == ';' || b == '"' || b == ',' || b == '|';
+   }
+}
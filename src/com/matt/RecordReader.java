@@ -0,0 +1,153 @@
+package com.matt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream of bytes into lines, handing each one back as a range of a re-used buffer
+ * so that no Strings are created per line.  Pairs with {@link RecordParser}.
+ */
+final class RecordReader implements RecordSource {
+   private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+   
+   private final InputStream in;
+   private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+   private int position = 0;
+   private int limit = 0;
+   private boolean endOfStream = false;
+   private boolean completeLinesOnly = false;
+   //Number of bytes of the stream that came before buffer[0]
+   private long bufferOffset = 0;
+   private long malformedRows = 0;
+   //Set from the thread handing out the rows, which may not be the one reading them (see PipelinedRecordReader)
+   private volatile RejectSink rejects = null;
+   private volatile DataSource source = null;
+   
+   private int lineStart;
+   private int lineEnd;
+   
+   RecordReader(InputStream in) {
+      this.in = in;
+   }
+   
+   /**
+    * Moves to the next line.  After this returns true, the line sits in
+    * buffer()[lineStart(), lineEnd()), without its line break.
+    *
+    * @return False once there are no more lines
+    */
+   boolean nextLine() throws IOException {
+      while (true) {
+         for (int i = position; i < limit; i++) {
+            if (buffer[i] == '\n') {
+               setLine(position, i);
+               position = i + 1;
+               return true;
+            }
+         }
+         if (endOfStream) {
+            if (position == limit || completeLinesOnly) return false;
+            //Last line, with no line break after it
+            setLine(position, limit);
+            position = limit;
+            return true;
+         }
+         fill();
+      }
+   }
+   
+   /**
+    * Reads the next line and parses it into the given record, skipping over any lines that
+    * are not in the expected layout.
+    *
+    * @return False once there are no more lines
+    */
+   @Override
+   public boolean next(SearchRecord record) throws IOException {
+      while (nextLine()) {
+         if (RecordParser.parse(buffer, lineStart, lineEnd, record)) return true;
+         malformedRows++;
+         RejectSink sink = rejects;
+         if (sink != null) sink.rejectLine(source, buffer, lineStart, lineEnd);
+      }
+      return false;
+   }
+   
+   /**
+    * Leaves a last line without a line break after it unread, for sources that are still being
+    * written to, where that line may not be finished yet.
+    */
+   void completeLinesOnly() {
+      completeLinesOnly = true;
+   }
+   
+   /**
+    * @return Number of bytes of the stream read through, up to and including the last line handed out
+    */
+   long bytesConsumed() {
+      return bufferOffset + position;
+   }
+   
+   @Override
+   public long bytesRead() {
+      return bytesConsumed();
+   }
+   
+   @Override
+   public void rejectMalformedTo(RejectSink rejects, DataSource source) {
+      this.source = source;
+      this.rejects = rejects;
+   }
+   
+   @Override
+   public long malformedRows() {
+      return malformedRows;
+   }
+   
+   byte[] buffer() {
+      return buffer;
+   }
+   
+   int lineStart() {
+      return lineStart;
+   }
+   
+   int lineEnd() {
+      return lineEnd;
+   }
+   
+   @Override
+   public void close() throws IOException {
+      in.close();
+   }
+   
+   private void setLine(int start, int end) {
+      lineStart = start;
+      //Drop the \r from Windows line breaks
+      lineEnd = (end > start && buffer[end - 1] == '\r') ? end - 1 : end;
+   }
+   
+   /**
+    * Moves any partial line to the front of the buffer (growing it if one line fills it all)
+    * and reads more bytes in after it.
+    */
+   private void fill() throws IOException {
+      int remaining = limit - position;
+      bufferOffset += position;
+      if (position > 0) {
+         System.arraycopy(buffer, position, buffer, 0, remaining);
+      } else if (remaining == buffer.length) {
+         buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+      position = 0;
+      limit = remaining;
+      
+      int read = in.read(buffer, limit, buffer.length - limit);
+      if (read == -1) {
+         endOfStream = true;
+      } else {
+         limit += read;
+      }
+   }
+}
@@ -0,0 +1,68 @@
+package com.matt;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Anything that rows can be read out of one at a time, such as the text of a source
+ * ({@link RecordReader}) or its cached columns ({@link ColumnarCache}).
+ */
+interface RecordSource extends Closeable {
+   
+   /**
+    * Reads the next row into the given record.
+    *
+    * @return False once there are no more rows
+    */
+   boolean next(SearchRecord record) throws IOException;
+   
+   /**
+    * @return True if rows can be read a batch at a time with {@link #nextBatch(RowBatch)}
+    */
+   default boolean readsBatches() {
+      return false;
+   }
+   
+   /**
+    * Reads the next rows into the given batch, replacing what was in it.  Only supported when
+    * {@link #readsBatches()} is true.
+    *
+    * @return False once there are no more rows
+    */
+   default boolean nextBatch(RowBatch batch) throws IOException {
+      throw new UnsupportedOperationException("Rows can only be read one at a time");
+   }
+   
+   /**
+    * Called once every row read so far has been handed to all the reports.  Rows may be read a
+    * little ahead of being handed on (see {@link ReportPlan#feed}), so a source that saves the
+    * reports' sums as it goes (see {@link IncrementalScanner}) saves them here, rather than when
+    * the next row is read.
+    */
+   default void rowsAccepted() throws IOException {
+   }
+   
+   /**
+    * @return Number of bytes read through so far, for the run's metrics
+    */
+   default long bytesRead() {
+      return 0;
+   }
+   
+   /**
+    * Sends any lines skipped from here on because they weren't in the expected layout to the
+    * given sink, instead of dropping them silently.
+    *
+    * @param rejects Sink to send the lines to
+    * @param source Source being read, to note alongside each line
+    */
+   default void rejectMalformedTo(RejectSink rejects, DataSource source) {
+   }
+   
+   /**
+    * @return Number of lines skipped so far because they weren't in the expected layout
+    */
+   default long malformedRows() {
+      return 0;
+   }
+}
@@ -0,0 +1,214 @@
+package com.matt;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Takes in every row that gets left out during a run, whether by the readers (lines that can't
+ * be parsed) or by a report (rows it has no place to count), so that a dirty export costs next
+ * to nothing and doesn't flood the console.
+ * <br><br>
+ * Every row is counted by its {@link SkipReason}.  Only the first few of each reason are printed
+ * to the console.  A sample of them (the first {@link #SAMPLED_PER_REASON} of each reason, then
+ * one out of every {@link #SAMPLE_INTERVAL}, up to {@link #MAX_SAMPLES} in all) is written to a
+ * quarantine file in the output folder on a background thread, so they can be looked at later.
+ * If the background thread falls behind, samples are dropped rather than held in memory.
+ * <br><br>
+ * The quarantine file is started fresh the first time it's written to by this program, and added
+ * on to by every run after that, so a program that runs several plans (such as one per
+ * {@link DataHandler} report) keeps the rows skipped by all of them.
+ */
+final class RejectSink {
+   static final String DEFAULT_FILE = "rejectedRows.csv";
+   
+   private static final int LOGGED_PER_REASON = 10;
+   private static final int SAMPLED_PER_REASON = 1000;
+   private static final int SAMPLE_INTERVAL = 1024;
+   private static final int MAX_SAMPLES = 100_000;
+   private static final int QUEUE_DEPTH = 4096;
+   //Marks the end of the samples for the background thread
+   private static final String END = new String("end");
+   //Quarantine files already started by this program, which later runs add on to
+   private static final Set<String> STARTED_FILES = new HashSet<>();
+   
+   private final String quarantineFile;
+   private final AtomicLongArray counts = new AtomicLongArray(SkipReason.COUNT);
+   private final AtomicLong samples = new AtomicLong();
+   private final AtomicLong droppedSamples = new AtomicLong();
+   private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+   private Thread writerThread = null;
+   private volatile IOException failure = null;
+   
+   /**
+    * @param quarantineFile Filename (in the output folder) to write the sampled rows to, or null to only count them
+    */
+   RejectSink(String quarantineFile) {
+      this.quarantineFile = quarantineFile;
+   }
+   
+   /**
+    * Takes in a row that a report left out.
+    *
+    * @param report Report that left the row out
+    * @param reason Why it was left out
+    * @param source Source the row came from
+    * @param record The row.  Only read from if the row is printed or sampled.
+    * @return True if the row was printed to the console
+    */
+   boolean reject(Report report, SkipReason reason, DataSource source, SearchRecord record) {
+      long seen = counts.incrementAndGet(reason.ordinal());
+      boolean sampled = shouldSample(seen);
+      if (seen > LOGGED_PER_REASON + 1 && !sampled) return false;
+      
+      String line = record.line();
+      boolean logged = log(seen, reason, report.name(), source, line);
+      if (sampled) {
+         sample(reason, report.name(), source, line);
+      }
+      return logged;
+   }
+   
+   /**
+    * Takes in a line that couldn't be parsed.
+    *
+    * @param source Source the line came from
+    * @param buffer Buffer holding the line.  Only read from if the line is printed or sampled.
+    * @param from Start of the line within the buffer
+    * @param to End of the line within the buffer (exclusive)
+    */
+   void rejectLine(DataSource source, byte[] buffer, int from, int to) {
+      long seen = counts.incrementAndGet(SkipReason.MALFORMED.ordinal());
+      boolean sampled = shouldSample(seen);
+      if (seen > LOGGED_PER_REASON + 1 && !sampled) return;
+      
+      String line = new String(buffer, from, to - from, StandardCharsets.UTF_8);
+      log(seen, SkipReason.MALFORMED, "reader", source, line);
+      if (sampled) {
+         sample(SkipReason.MALFORMED, "reader", source, line);
+      }
+   }
+   
+   /**
+    * @return Number of rows taken in so far for the given reason
+    */
+   long count(SkipReason reason) {
+      return counts.get(reason.ordinal());
+   }
+   
+   /**
+    * Waits for the sampled rows to finish being written, then prints how many rows were left out
+    * for each reason.  Call once every row has been read.
+    */
+   void close() {
+      synchronized (this) {
+         if (writerThread != null) {
+            try {
+               queue.put(END);
+               writerThread.join();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+         }
+      }
+      
+      StringBuilder summary = new StringBuilder();
+      for (SkipReason reason: SkipReason.values()) {
+         long count = counts.get(reason.ordinal());
+         if (count == 0) continue;
+         summary.append(summary.length() == 0 ? "" : ", ").append(count).append(' ').append(reason.label());
+      }
+      if (summary.length() == 0) return;
+      
+      System.out.println("Rows skipped: " + summary
+                         + (samples.get() > 0 && quarantineFile != null ? ".  Samples of them are in " + DataHandler.PATH_TO_OUTPUT_FOLDER + quarantineFile : "")
+                         + (droppedSamples.get() > 0 ? " (" + droppedSamples.get() + " samples dropped to keep up)" : ""));
+      if (failure != null) {
+         System.out.println("Exception occured during writing rejected rows to file " + quarantineFile
+                            + "!\n" + failure.getMessage());
+      }
+   }
+   
+   private static boolean log(long seen, SkipReason reason, String report, DataSource source, String line) {
+      if (seen <= LOGGED_PER_REASON) {
+         System.out.println("Skipping line (" + reason.label() + ") in \"" + report + "\" from " + source + ": " + line);
+         return true;
+      }
+      if (seen == LOGGED_PER_REASON + 1) {
+         System.out.println("More lines skipped for \"" + reason.label() + "\"; only counting them from here on.");
+      }
+      return false;
+   }
+   
+   private boolean shouldSample(long seen) {
+      return quarantineFile != null
+             && (seen <= SAMPLED_PER_REASON || seen % SAMPLE_INTERVAL == 0)
+             && samples.get() < MAX_SAMPLES;
+   }
+   
+   private void sample(SkipReason reason, String report, DataSource source, String line) {
+      if (samples.incrementAndGet() > MAX_SAMPLES) return;
+      startWriter();
+      String row = reason.label() + "," + report + "," + source + ",\"" + line.replace("\"", "\"\"") + "\"\n";
+      if (!queue.offer(row)) {
+         droppedSamples.incrementAndGet();
+      }
+   }
+   
+   private synchronized void startWriter() {
+      if (writerThread != null) return;
+      writerThread = new Thread(this::writeSamples, "reject-writer");
+      writerThread.setDaemon(true);
+      writerThread.start();
+   }
+   
+   /**
+    * Runs on the background thread, writing samples until the end marker comes through.  If the
+    * file can't be written, the samples are still taken off the queue so the readers never wait.
+    */
+   private void writeSamples() {
+      Writer writer = null;
+      try {
+         boolean first;
+         synchronized (STARTED_FILES) {
+            first = STARTED_FILES.add(quarantineFile);
+         }
+         writer = new BufferedWriter(new FileWriter(DataHandler.PATH_TO_OUTPUT_FOLDER + quarantineFile, !first), 1 << 16);
+         if (first) writer.write("reason,report,source,line\n");
+      } catch (IOException e) {
+         failure = e;
+      }
+      
+      try {
+         String row;
+         while ((row = queue.take()) != END) {
+            if (writer == null) continue;
+            try {
+               writer.write(row);
+            } catch (IOException e) {
+               failure = e;
+               writer = null;
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         if (writer != null) {
+            try {
+               writer.close();
+            } catch (IOException e) {
+               failure = e;
+            }
+         }
+      }
+   }
+}
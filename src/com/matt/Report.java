@@ -0,0 +1,153 @@
+package com.matt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * One report being built as part of a {@link ReportPlan}.  The plan reads through each data
+ * source once and hands every row to every registered report, which keeps its own sums and
+ * writes them out once all the sources have been read.
+ * <br><br>
+ * When sources are read on several threads at once, each thread fills in its own partial
+ * copy of the report (from {@link #newPartial()}), and the partials are merged back together
+ * with {@link #merge(Report)} before the report is written.
+ */
+abstract class Report {
+   private final String name;
+   protected final String outputFile;
+   private final long[] skipped = new long[SkipReason.COUNT];
+   private RejectSink rejects = null;
+   
+   protected Report(String name, String outputFile) {
+      this.name = name;
+      this.outputFile = outputFile;
+   }
+   
+   /**
+    * @return Name of the report, used when logging problems with it
+    */
+   String name() {
+      return name;
+   }
+   
+   /**
+    * Sets where the rows this report leaves out are sent.  Set by the plan on every report
+    * (and partial copy) before any rows are read.
+    */
+   final void rejectTo(RejectSink rejects) {
+      this.rejects = rejects;
+   }
+   
+   /**
+    * Leaves the given row out of this report, counting it for the run's metrics and handing it
+    * to the plan's {@link RejectSink}.
+    *
+    * @return True if the row was printed to the console
+    */
+   protected final boolean skip(SkipReason reason, DataSource source, SearchRecord record) {
+      skipped[reason.ordinal()]++;
+      return rejects != null && rejects.reject(this, reason, source, record);
+   }
+   
+   /**
+    * @return Number of rows this report has left out since it was made, indexed by {@link SkipReason} ordinal
+    */
+   final long[] skipCounts() {
+      return skipped;
+   }
+   
+   /**
+    * @return True if all the data sources must exist before this report can be run
+    */
+   boolean verifiesSources() {
+      return true;
+   }
+   
+   /**
+    * Adds a single row from the given source into this report's sums.
+    *
+    * @param source Data source the row was read from
+    * @param record Row that was read.  Only valid until this method returns.
+    */
+   abstract void accept(DataSource source, SearchRecord record);
+   
+   /**
+    * @return True if whole batches of rows can be handed to {@link #acceptBatch(DataSource, RowBatch)}
+    *         instead of one row at a time.  May change between sources.
+    */
+   boolean acceptsBatches() {
+      return false;
+   }
+   
+   /**
+    * Adds every row in the batch into this report's sums, all read from the given source.  Only
+    * called when {@link #acceptsBatches()} is true.
+    * <br><br>
+    * If this throws, it must not have added any of the batch, since the plan then hands the same
+    * rows to {@link #accept(DataSource, SearchRecord)} one at a time so only the ones that fail are skipped.
+    *
+    * @param source Data source the rows were read from
+    * @param batch Rows that were read.  Only valid until this method returns.
+    */
+   void acceptBatch(DataSource source, RowBatch batch) {
+      throw new UnsupportedOperationException("\"" + name + "\" reads one row at a time");
+   }
+   
+   /**
+    * @return A new, empty report with the same parameters as this one, to be merged back into this one later
+    */
+   abstract Report newPartial();
+   
+   /**
+    * Adds all the sums from the given partial report into this one.
+    *
+    * @param partial Report made by {@link #newPartial()} on this report
+    */
+   abstract void merge(Report partial);
+   
+   /**
+    * @return Key naming this kind of report and its parameters, so saved sums are only ever
+    *         read back into a report that would have produced the same ones
+    */
+   abstract String stateKey();
+   
+   /**
+    * Writes out this report's sums so they can be read back later with {@link #readState(DataInput)}.
+    */
+   abstract void writeState(DataOutput out) throws IOException;
+   
+   /**
+    * Replaces this report's sums with ones written by {@link #writeState(DataOutput)} on a report
+    * with the same {@link #stateKey()}.
+    */
+   abstract void readState(DataInput in) throws IOException;
+   
+   /**
+    * Writes the finished report out to its output file.
+    */
+   abstract void write();
+   
+   /**
+    * @return The table {@link #write()} writes, if every cell in it is a plain sum of row counts,
+    *         so it can be estimated from a sample of the rows (see {@link SampledScanner}), or null if not
+    */
+   CountTable counts() {
+      return null;
+   }
+   
+   /**
+    * @return Names of the columns of {@link #counts()}, separated by commas, starting with the column of row names
+    */
+   String countsHeader() {
+      throw new UnsupportedOperationException("\"" + name + "\" doesn't write a table of counts");
+   }
+   
+   /**
+    * @return Name of each row of {@link #counts()}, or null if they're named after the first year of their bucket
+    */
+   List<String> countsRowLabels() {
+      return null;
+   }
+}
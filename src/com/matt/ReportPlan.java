@@ -0,0 +1,862 @@
+package com.matt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of reports that are all built from a single read of the data sources.  Register
+ * each report wanted up front, then call {@link #run()}.  Every source is read once, and each
+ * row is handed to all of the registered reports at the same time, instead of each report
+ * re-reading every source for itself.
+ * <br><br>
+ * Example:<br>
+ * new ReportPlan().searchedYearsByType("years.csv", 20, 2024).yearTypesSearchedBySystem("types.csv").run();
+ */
+public class ReportPlan {
+   //Counts the plans run by this program, so a shard worker can tell which one it was launched for
+   private static final AtomicInteger RUNS = new AtomicInteger();
+   //Held while any plan reads the sources or writes its reports, so runs (such as an exact pass in
+   // the background) never overlap, since they share the summary, skipped rows, and saved state files
+   private static final Object RUNNING = new Object();
+   
+   private final List<Report> reports = new ArrayList<>();
+   //Reports being built by reading the sources this run, which leaves out any loaded from the result cache
+   private List<Report> reading = reports;
+   private final SourceCatalog catalog;
+   private int threads = Runtime.getRuntime().availableProcessors();
+   private long chunkSize = 0;
+   private ColumnarCache cache = null;
+   private IncrementalScanner incremental = null;
+   private ShardCoordinator shards = null;
+   private ResultCache results = null;
+   private volatile boolean readFailed = false;
+   private String summaryFile = null;
+   private RunMetrics metrics = null;
+   private String rejectFile = RejectSink.DEFAULT_FILE;
+   private RejectSink rejects = null;
+   //Output files started by the current run, which is all it waits for
+   private List<Future<Long>> writes = null;
+   private double previewFraction = 0;
+   private boolean exactAfterPreview = false;
+   private Future<?> exactPass = null;
+   
+   /**
+    * Creates a plan that reads from the default data sources set in {@link DataHandler}.
+    */
+   public ReportPlan() {
+      this(SourceCatalog.defaults());
+   }
+   
+   /**
+    * Creates a plan that reads from the given data sources.
+    */
+   public ReportPlan(SourceCatalog catalog) {
+      this.catalog = catalog;
+   }
+   
+   /**
+    * Sets how many sources may be read at the same time.  Defaults to the number of processors.
+    *
+    * @param threads Number of threads to read sources on.  Use 1 to read them one after another.
+    */
+   public ReportPlan threads(int threads) {
+      if (threads < 1) throw new IllegalArgumentException("Thread count must be at least 1, got " + threads);
+      this.threads = threads;
+      return this;
+   }
+   
+   /**
+    * Splits each source into chunks of about the given size (on line breaks), so that even a
+    * single large source is read on every thread.  The sources are memory-mapped instead of
+    * being read through a stream.  Not used when a {@link #cache(ColumnarCache)} is set.
+    *
+    * @param chunkSize Target number of bytes in each chunk.  Use 0 to read each source whole (the default).
+    */
+   public ReportPlan splitFiles(long chunkSize) {
+      if (chunkSize < 0) throw new IllegalArgumentException("Chunk size cannot be negative, got " + chunkSize);
+      this.chunkSize = chunkSize;
+      return this;
+   }
+   
+   /**
+    * Reads the sources through the given cache, so that each one is only parsed from text
+    * once for as long as it stays unchanged.  When a cache is used, sources are always read
+    * whole, and {@link #splitFiles(long)} is ignored.
+    *
+    * @param cache Cache to read (and update) parsed copies of the sources from
+    */
+   public ReportPlan cache(ColumnarCache cache) {
+      this.cache = cache;
+      return this;
+   }
+   
+   /**
+    * Saves the finished sums of each report in the given cache, and loads them back instead of
+    * reading the sources when a report is run again with the same parameters over sources that
+    * haven't changed.  When every report in the plan is loaded this way, the sources aren't read
+    * at all.  See {@link ResultCache}.
+    *
+    * @param results Cache to load (and save) report results from
+    */
+   public ReportPlan resultCache(ResultCache results) {
+      this.results = results;
+      return this;
+   }
+   
+   /**
+    * Saves each report's sums for each source (and how far into the source they go) in the
+    * given folder, so that later runs only need to read the rows added to the sources since.
+    * When this is set, sources are always read whole as text, and {@link #cache(ColumnarCache)}
+    * and {@link #splitFiles(long)} are ignored.
+    * <br><br>
+    * A last line with no line break after it may still be being written, so it isn't saved: it's
+    * counted in this run's reports, but the saved sums stop before it, and the next run reads it
+    * again.  The reports come out the same as a run that isn't incremental either way.
+    *
+    * @param stateDirectory Folder to keep the saved sums in
+    */
+   public ReportPlan incremental(String stateDirectory) {
+      this.incremental = new IncrementalScanner(stateDirectory, IncrementalScanner.DEFAULT_CHECKPOINT_INTERVAL);
+      return this;
+   }
+   
+   /**
+    * Same as {@link #incremental(String)}, saving the sums in the state/ folder.
+    */
+   public ReportPlan incremental() {
+      return incremental(IncrementalScanner.DEFAULT_DIRECTORY);
+   }
+   
+   /**
+    * Splits the sources between the given number of worker processes instead of reading them
+    * all in this one, then merges what each worker found.  See {@link ShardCoordinator}.  Each
+    * worker reads its own sources the way this plan is set up to (with its share of the threads),
+    * and writes its own summary and skipped rows files, named after its shard.
+    * <br><br>
+    * Workers are launched by running this program over again, so everything the program does
+    * before this plan is run must come out the same way each time.
+    *
+    * @param workers Number of worker processes.  Use 1 to read every source in this process (the default).
+    * @param workDirectory Folder to keep the files passed to and from the workers in
+    */
+   public ReportPlan processes(int workers, String workDirectory) {
+      if (workers < 1) throw new IllegalArgumentException("Worker count must be at least 1, got " + workers);
+      this.shards = (workers > 1 ? new ShardCoordinator(workDirectory, workers) : null);
+      return this;
+   }
+   
+   /**
+    * Same as {@link #processes(int, String)}, keeping the worker files in the shards/ folder.
+    */
+   public ReportPlan processes(int workers) {
+      return processes(workers, ShardCoordinator.DEFAULT_DIRECTORY);
+   }
+   
+   /**
+    * Writes a summary of each run into the given file in the output folder: rows, bytes, and
+    * skipped rows (by reason) for each source and report, and how long was spent parsing,
+    * summing, and writing.  The same numbers are always sent out as Flight Recorder events.
+    *
+    * @param summaryFile Filename for the summary
+    */
+   public ReportPlan summary(String summaryFile) {
+      this.summaryFile = summaryFile;
+      return this;
+   }
+   
+   /**
+    * Sets the file (in the output folder) that a sample of the skipped rows is written to.
+    * Defaults to rejectedRows.csv.  See {@link RejectSink}.
+    *
+    * @param rejectFile Filename for the skipped rows, or null to only count them
+    */
+   public ReportPlan rejects(String rejectFile) {
+      this.rejectFile = rejectFile;
+      return this;
+   }
+   
+   /**
+    * Writes a quick preview of each report instead of its exact counts, estimated from a sample of
+    * each source, with a 95% confidence interval next to each count (in columns named like
+    * "birthLow" and "birthHigh").  See {@link SampledScanner} for how the sample is taken.
+    * <br><br>
+    * Only reports whose every count is a plain sum of searches can be previewed.  Any others in the
+    * plan (such as {@link #topDatePatterns(String, int)}, or a {@link SearchCube}) are read in full
+    * as normal, as are reports loaded from the result cache.
+    *
+    * @param sampleFraction About how much of each source to read, from 0 to 1
+    * @param thenExact True to go on and read the sources in full afterwards, and write the exact
+    *                  reports over the previews.  This is done in the background (see
+    *                  {@link #awaitExact()}) unless the plan has reports that can't be previewed.
+    *                  Any other plan run in the meantime waits for it to finish first.
+    */
+   public ReportPlan preview(double sampleFraction, boolean thenExact) {
+      if (!(sampleFraction > 0 && sampleFraction <= 1)) {
+         throw new IllegalArgumentException("Sample fraction must be above 0 and at most 1, got " + sampleFraction);
+      }
+      this.previewFraction = sampleFraction;
+      this.exactAfterPreview = thenExact;
+      return this;
+   }
+   
+   /**
+    * Same as {@link #preview(double, boolean)}, reading 2% of each source, and not reading them in full afterwards.
+    */
+   public ReportPlan preview() {
+      return preview(SampledScanner.DEFAULT_FRACTION, false);
+   }
+   
+   /**
+    * Waits for the exact reports started in the background by a {@link #preview(double, boolean)}
+    * to be read and written.  Returns right away if there aren't any.  Running the plan again
+    * waits for them first too.
+    *
+    * @throws IllegalStateException If reading or writing them failed, with what went wrong as its cause
+    * @throws UncheckedIOException If any of their output files could not be written
+    */
+   public void awaitExact() {
+      if (exactPass == null) return;
+      try {
+         exactPass.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted while waiting for the exact reports", e);
+      } catch (ExecutionException e) {
+         exactPass = null;
+         if (e.getCause() instanceof UncheckedIOException) throw (UncheckedIOException) e.getCause();
+         throw new IllegalStateException("Failed while reading the exact reports", e.getCause());
+      }
+      exactPass = null;
+   }
+   
+   /**
+    * Same as {@link #splitFiles(long)}, using a chunk size of 64 MB.
+    */
+   public ReportPlan splitFiles() {
+      return splitFiles(MappedChunkScanner.DEFAULT_CHUNK_SIZE);
+   }
+   
+   /**
+    * Adds the report described by {@link DataHandler#dateRangeLengths(String, int, int)} to the plan.
+    */
+   public ReportPlan dateRangeLengths(String outputFile, int bucketSize, int stopLength) {
+      return report(ReportSpec.dateRangeLengths(outputFile, bucketSize, stopLength));
+   }
+   
+   /**
+    * Adds the report described by {@link DataHandler#searchedYearsByType(String, int, int)} to the plan.
+    */
+   public ReportPlan searchedYearsByType(String outputFile, int bucketSize, int stopYear) {
+      return report(ReportSpec.searchedYearsByType(outputFile, bucketSize, stopYear));
+   }
+   
+   /**
+    * Adds the report described by {@link DataHandler#birthYearSearchesBySystem(String, int, int)} to the plan.
+    */
+   public ReportPlan birthYearSearchesBySystem(String outputFile, int bucketSize, int stopYear) {
+      return report(ReportSpec.birthYearSearchesBySystem(outputFile, bucketSize, stopYear));
+   }
+   
+   /**
+    * Adds the report described by {@link DataHandler#yearTypesSearchedBySystem(String)} to the plan.
+    */
+   public ReportPlan yearTypesSearchedBySystem(String outputFile) {
+      return report(ReportSpec.yearTypesSearchedBySystem(outputFile));
+   }
+   
+   /**
+    * Adds the report described by {@link DataHandler#livingPersonSearchesBySystem(String, int, int, int)} to the plan.
+    */
+   public ReportPlan livingPersonSearchesBySystem(String outputFile, int birthCutoff, int otherCutoff, int stopYear) {
+      return add(new LivingPersonsBySystemReport(outputFile, birthCutoff, otherCutoff, stopYear));
+   }
+   
+   /**
+    * Adds the report described by {@link DataHandler#topDatePatterns(String, int)} to the plan.
+    */
+   public ReportPlan topDatePatterns(String outputFile, int topCount) {
+      return add(new TopDatePatternsReport(outputFile, topCount));
+   }
+   
+   /**
+    * Adds the report described by {@link DataHandler#searchCountsBy(String, long, GroupKey...)} to the plan.
+    */
+   public ReportPlan searchCountsBy(String outputFile, long memoryBudget, GroupKey... keys) {
+      return add(new GroupByReport(outputFile, memoryBudget, keys));
+   }
+   
+   /**
+    * Adds a report described by the given spec to the plan.  Like every other report in the plan,
+    * it is built from the same single read of the sources.
+    */
+   public ReportPlan report(ReportSpec spec) {
+      return add(spec.compile());
+   }
+   
+   /**
+    * Runs the plan with a {@link SearchCube} added to it, and returns the finished cube.  Any
+    * other reports in the plan are written as normal.  Every report can then be rolled up from
+    * the cube, with any parameters, without reading the sources again.
+    */
+   public SearchCube buildCube() {
+      SearchCube cube = new SearchCube();
+      add(cube);
+      run();
+      return cube;
+   }
+   
+   /**
+    * Adds {@link RangeLengthSketches} to the plan, and returns them so that quantiles and histograms
+    * of range length can be pulled from them once the plan has run.
+    */
+   public RangeLengthSketches sketchRangeLengths() {
+      RangeLengthSketches sketches = new RangeLengthSketches();
+      add(sketches);
+      return sketches;
+   }
+   
+   ReportPlan add(Report report) {
+      reports.add(report);
+      return this;
+   }
+   
+   /**
+    * Reads through every data source once, feeding each row to all the reports in the plan,
+    * then writes each report out to its output file.
+    * <br><br>
+    * Sources are read in parallel, largest first, so that the biggest files aren't left to
+    * finish on their own at the end.  Each thread sums into its own partial copy of the reports,
+    * and those are merged together once every source has been read.  See {@link #splitFiles(long)}
+    * for splitting up the sources themselves, and {@link #processes(int)} for reading them in
+    * separate processes.
+    */
+   public void run() {
+      int runIndex = RUNS.getAndIncrement();
+      if (ShardCoordinator.isWorker()) {
+         //Only reads its shard if this is the run it was launched for (and then exits)
+         ShardCoordinator.work(this, runIndex);
+         return;
+      }
+      //Its reports may still be being read into from the last run
+      awaitExact();
+      
+      for (Report report: reports) {
+         if (report.verifiesSources()) {
+            catalog.verify();
+            break;
+         }
+      }
+      
+      List<DataSource> sources = catalog.sourcesLargestFirst();
+      String fingerprint = loadCachedResults(sources);
+      if (previewFraction > 0 && !reading.isEmpty()) {
+         runPreview(runIndex, sources, fingerprint);
+         return;
+      }
+      readAndWrite(runIndex, sources, fingerprint, reports);
+   }
+   
+   /**
+    * Reads the sources into every report that wasn't loaded from the result cache, then writes the given reports.
+    */
+   private void readAndWrite(int runIndex, List<DataSource> sources, String fingerprint, List<Report> written) {
+      synchronized (RUNNING) {
+         startRun();
+         if (!reading.isEmpty()) {
+            List<DataSource> local = sources;
+            if (shards != null) {
+               local = shards.run(this, runIndex, threads, sources);
+            }
+            read(local);
+            saveResults(sources, fingerprint);
+         }
+         finishRun(written);
+      }
+   }
+   
+   /**
+    * Writes a preview of every report that can be previewed, along with any loaded from the result
+    * cache, then reads the sources in full for the rest (or for all of them, if asked to).  The full
+    * read is done by a copy of the plan (see {@link #exactPlan(List)}), even when it's in the background.
+    */
+   private void runPreview(int runIndex, List<DataSource> sources, String fingerprint) {
+      //A copy, since reports added to the plan later mustn't turn up partway through the exact pass
+      List<Report> exact = new ArrayList<>(reading);
+      List<Report> previewed = new ArrayList<>();
+      List<Report> unpreviewed = new ArrayList<>();
+      for (Report report: exact) {
+         (report.counts() != null ? previewed : unpreviewed).add(report);
+      }
+      List<Report> loaded = new ArrayList<>(reports);
+      loaded.removeAll(exact);
+      
+      synchronized (RUNNING) {
+         reading = previewed;
+         startRun();
+         if (!previewed.isEmpty()) {
+            SampledScanner.scan(this, sources, previewFraction, threads).write();
+         }
+         finishRun(loaded);
+      }
+      
+      if (exactAfterPreview) {
+         ReportPlan exactPlan = exactPlan(exact);
+         if (unpreviewed.isEmpty()) {
+            //Nothing the caller gets back from the plan depends on it, so it can finish in its own time
+            FutureTask<Void> pass = new FutureTask<>(() -> {
+               exactPlan.readAndWrite(runIndex, sources, fingerprint, exact);
+               return null;
+            });
+            exactPass = pass;
+            new Thread(pass, "exact-reports").start();
+         } else {
+            exactPlan.readAndWrite(runIndex, sources, fingerprint, exact);
+         }
+      } else if (!unpreviewed.isEmpty()) {
+         exactPlan(unpreviewed).readAndWrite(runIndex, sources, fingerprint, unpreviewed);
+      }
+   }
+   
+   /**
+    * @return A plan set up the same way as this one, with the same reports, that reads the given
+    *         ones in full.  It keeps its own metrics, skipped rows, and output files for the run, so
+    *         none of them get mixed up with this plan's, even while it reads in the background.
+    */
+   private ReportPlan exactPlan(List<Report> exact) {
+      ReportPlan plan = new ReportPlan(catalog);
+      plan.reports.addAll(reports);
+      plan.reading = exact;
+      plan.threads = threads;
+      plan.chunkSize = chunkSize;
+      plan.cache = cache;
+      plan.incremental = incremental;
+      plan.shards = shards;
+      plan.results = results;
+      plan.summaryFile = summaryFile;
+      plan.rejectFile = rejectFile;
+      return plan;
+   }
+   
+   /**
+    * Loads every report that has a cached result, and leaves the rest to be read.
+    *
+    * @return Fingerprint of the sources the results are for, or null if they aren't cached
+    */
+   private String loadCachedResults(List<DataSource> sources) {
+      reading = reports;
+      if (results == null) return null;
+      
+      String fingerprint;
+      try {
+         fingerprint = results.fingerprint(sources);
+      } catch (IOException e) {
+         System.out.println("Could not fingerprint sources for the result cache, reading them.\n" + e.getMessage());
+         return null;
+      }
+      if (fingerprint == null) return null;
+      
+      reading = new ArrayList<>();
+      for (Report report: reports) {
+         if (!results.load(report, fingerprint)) reading.add(report);
+      }
+      return fingerprint;
+   }
+   
+   /**
+    * Saves the result of each report that was read, as long as every source was read without
+    * failing (in this process and in every shard worker, which says so in its partial file) and
+    * none of them changed while being read.
+    */
+   private void saveResults(List<DataSource> sources, String fingerprint) {
+      if (fingerprint == null || readFailed) return;
+      try {
+         if (!fingerprint.equals(results.fingerprint(sources))) return;
+      } catch (IOException e) {
+         return;
+      }
+      for (Report report: reading) {
+         results.store(report, fingerprint);
+      }
+   }
+   
+   /**
+    * Runs on a shard worker, reading only the given sources.  Its reports are left for the worker
+    * to save rather than written out.
+    *
+    * @param shard Number of the worker's shard, used to name the files it writes
+    * @param threads Number of threads to read on
+    * @param sources Sources in the shard
+    * @param reportIndexes Index of each report in the plan to read into
+    */
+   void runShard(int shard, int threads, List<DataSource> sources, int[] reportIndexes) {
+      this.threads = threads;
+      reading = new ArrayList<>();
+      for (int index: reportIndexes) {
+         reading.add(reports.get(index));
+      }
+      if (summaryFile != null) summaryFile = ShardCoordinator.shardFileName(summaryFile, shard);
+      if (rejectFile != null) rejectFile = ShardCoordinator.shardFileName(rejectFile, shard);
+      
+      startRun();
+      read(sources);
+      finishRun(new ArrayList<>());
+   }
+   
+   /**
+    * @return The reports being built by reading the sources this run
+    */
+   List<Report> reading() {
+      return reading;
+   }
+   
+   /**
+    * @return Index in the plan of each report being built by reading the sources this run
+    */
+   int[] readingIndexes() {
+      int[] indexes = new int[reading.size()];
+      for (int i = 0; i < indexes.length; i++) {
+         indexes[i] = reports.indexOf(reading.get(i));
+      }
+      return indexes;
+   }
+   
+   private void startRun() {
+      readFailed = false;
+      metrics = new RunMetrics(reading);
+      rejects = new RejectSink(rejectFile);
+      writes = TableWriter.track();
+      for (Report report: reading) {
+         report.rejectTo(rejects);
+      }
+   }
+   
+   /**
+    * Reads every row of the given sources into the plan's reports.
+    */
+   private void read(List<DataSource> sources) {
+      int threadCount = Math.min(threads, sources.size());
+      if (chunkSize > 0 && cache == null && incremental == null) {
+         //Only plain exports can be mapped; anything streamed (and every raw log) is read whole
+         List<DataSource> mappable = new ArrayList<>();
+         List<DataSource> streamed = new ArrayList<>();
+         for (DataSource dataSource: sources) {
+            (dataSource.isPlainFile() && !dataSource.isRawLog() ? mappable : streamed).add(dataSource);
+         }
+         MappedChunkScanner.scan(this, mappable, chunkSize, threads);
+         for (DataSource dataSource: streamed) {
+            scan(dataSource, reading);
+         }
+      } else if (threadCount <= 1) {
+         for (DataSource dataSource: sources) {
+            scan(dataSource, reading);
+         }
+      } else {
+         scanInParallel(sources, threadCount);
+      }
+   }
+   
+   /**
+    * Closes out the run once every row has been read, writing out the given reports.
+    */
+   private void finishRun(List<Report> written) {
+      rejects.close();
+      
+      try {
+         for (Report report: written) {
+            int readIndex = reading.indexOf(report);
+            if (readIndex >= 0) {
+               metrics.timeWrite(readIndex, writes);
+            } else {
+               report.write();
+            }
+         }
+         TableWriter.awaitTracked(writes);
+      } finally {
+         metrics.finishWrites();
+         metrics.finish();
+         if (summaryFile != null) {
+            metrics.writeSummary(summaryFile);
+         }
+      }
+   }
+   
+   /**
+    * Reads the given sources on a pool of threads.  Each thread takes the next largest source
+    * that hasn't been started yet, until they are all done.
+    */
+   private void scanInParallel(List<DataSource> sources, int threadCount) {
+      Queue<DataSource> remaining = new ConcurrentLinkedQueue<>(sources);
+      ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+      try {
+         List<Future<List<Report>>> workers = new ArrayList<>();
+         for (int t = 0; t < threadCount; t++) {
+            workers.add(pool.submit(() -> {
+               List<Report> partials = newPartials();
+               DataSource dataSource;
+               while ((dataSource = remaining.poll()) != null) {
+                  scan(dataSource, partials);
+               }
+               return partials;
+            }));
+         }
+         
+         for (Future<List<Report>> worker: workers) {
+            mergePartials(worker.get());
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted while reading data sources", e);
+      } catch (ExecutionException e) {
+         throw new IllegalStateException("Failed while reading data sources", e.getCause());
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+   
+   /**
+    * @return A new, empty partial copy of every report in the plan, in the same order
+    */
+   List<Report> newPartials() {
+      List<Report> partials = new ArrayList<>(reading.size());
+      for (Report report: reading) {
+         Report partial = report.newPartial();
+         partial.rejectTo(rejects);
+         partials.add(partial);
+      }
+      return partials;
+   }
+   
+   /**
+    * Merges partial copies (made by {@link #newPartials()}) back into the plan's reports.
+    */
+   void mergePartials(List<Report> partials) {
+      for (int i = 0; i < reading.size(); i++) {
+         reading.get(i).merge(partials.get(i));
+      }
+   }
+   
+   /**
+    * Reads a single data source, handing each row to every report given.  For an incremental
+    * plan, only the rows added since the last run are read, and the sums saved for the rest of
+    * the source are added in.  Raw search logs are always read in full, by {@link RawLogScanner}.
+    *
+    * @param dataSource Source to read through
+    * @param targets Reports to hand the rows to
+    */
+   void scan(DataSource dataSource, List<Report> targets) {
+      if (dataSource.isRawLog()) {
+         try {
+            RawLogScanner.scan(this, dataSource, targets);
+         } catch (Exception e) {
+            readFailed(dataSource.toString(), e);
+         }
+         return;
+      }
+      if (incremental != null) {
+         List<Report> sourceSums = incremental.scan(this, dataSource);
+         for (int i = 0; i < targets.size(); i++) {
+            targets.get(i).merge(sourceSums.get(i));
+         }
+         return;
+      }
+      
+      try (RecordSource reader = open(dataSource)) {
+         feed(dataSource, reader, targets);
+      } catch (Exception e) {
+         readFailed(dataSource.toString(), e);
+      }
+   }
+   
+   /**
+    * @return True if part of the sources couldn't be read during the last run, so its reports are incomplete
+    */
+   boolean anyReadFailed() {
+      return readFailed;
+   }
+   
+   /**
+    * @return Sink for the rows left out during the current run
+    */
+   RejectSink rejects() {
+      return rejects;
+   }
+   
+   /**
+    * Reports that part of a source couldn't be read.  The run carries on without it, but its
+    * results aren't saved to the result cache.
+    *
+    * @param what The source (or part of one) that failed
+    * @param e What went wrong
+    */
+   void readFailed(String what, Exception e) {
+      readFailed = true;
+      System.out.println("Exception occured during report plan READ with file " + what
+                         + "!\n" + e.getMessage());
+      e.printStackTrace();
+   }
+   
+   /**
+    * Opens the rows of a source (from the cache, if one is set), skipping past its header.
+    */
+   private RecordSource open(DataSource dataSource) throws IOException {
+      if (cache != null) {
+         return cache.open(dataSource);
+      }
+      return dataSource.openRecords();
+   }
+   
+   /**
+    * Hands every remaining row of the reader to each report given.  If a report fails on a row,
+    * that row is skipped for that report (and sent to the plan's {@link RejectSink}), and it
+    * carries on with the next row.  The read is counted and timed in the run's metrics.
+    * <br><br>
+    * Readers that hold their rows in columns are read a {@link RowBatch} at a time, and the
+    * reports that can count a whole batch at once are handed the batch instead of each row.
+    *
+    * @param dataSource Source the reader is reading from
+    * @param reader Reader positioned at the first row to hand out
+    * @param targets Reports to hand the rows to
+    */
+   void feed(DataSource dataSource, RecordSource reader, List<Report> targets) throws IOException {
+      long[] reportNanos = new long[targets.size()];
+      SearchRecord record = new SearchRecord();
+      RunMetrics.Read read = metrics.startRead(dataSource, targets);
+      reader.rejectMalformedTo(rejects, dataSource);
+      long rows = 0;
+      long timedRows = 0;
+      
+      try {
+         if (reader.readsBatches()) {
+            rows = feedBatches(dataSource, reader, targets, record, reportNanos);
+            timedRows = rows;
+            return;
+         }
+         SearchRecord[] block = null;
+         while (true) {
+            //Only time the reports on a sample of blocks of rows, since timing every one would slow them down.
+            // The first rows aren't timed, since that's where reports print their first skipped rows.
+            long period = (long) RunMetrics.SAMPLE_BLOCK * RunMetrics.SAMPLE_INTERVAL;
+            if (rows % period == period / 2) {
+               if (block == null) block = newBlock();
+               int size = 0;
+               while (size < block.length && reader.next(record)) {
+                  block[size++].copyOf(record);
+               }
+               acceptTimed(targets, dataSource, block, size, reportNanos);
+               reader.rowsAccepted();
+               rows += size;
+               timedRows += size;
+               if (size < block.length) break;
+               continue;
+            }
+            
+            if (!reader.next(record)) break;
+            rows++;
+            for (int i = 0; i < reportNanos.length; i++) {
+               acceptRow(targets.get(i), dataSource, record);
+            }
+            reader.rowsAccepted();
+         }
+      } finally {
+         read.finish(reader, rows, timedRows, reportNanos);
+      }
+   }
+   
+   private static SearchRecord[] newBlock() {
+      SearchRecord[] block = new SearchRecord[RunMetrics.SAMPLE_BLOCK];
+      for (int i = 0; i < block.length; i++) {
+         block[i] = new SearchRecord();
+      }
+      return block;
+   }
+   
+   /**
+    * Feeds a reader that reads batches.  Every batch is timed in full for each report: as a whole
+    * for the reports that take whole batches, and row by row (copying each row out of the batch)
+    * for the rest.
+    *
+    * @return Number of rows read
+    */
+   private long feedBatches(DataSource dataSource, RecordSource reader, List<Report> targets, SearchRecord record,
+                            long[] reportNanos) throws IOException {
+      boolean[] batched = new boolean[targets.size()];
+      for (int i = 0; i < batched.length; i++) {
+         batched[i] = targets.get(i).acceptsBatches();
+      }
+      
+      RowBatch batch = new RowBatch();
+      long rows = 0;
+      while (reader.nextBatch(batch)) {
+         for (int i = 0; i < batched.length; i++) {
+            long before = System.nanoTime();
+            if (batched[i]) {
+               acceptBatch(targets.get(i), dataSource, batch, record);
+            } else {
+               for (int row = 0; row < batch.size; row++) {
+                  batch.copyRow(row, record);
+                  acceptRow(targets.get(i), dataSource, record);
+               }
+            }
+            reportNanos[i] += System.nanoTime() - before;
+         }
+         reader.rowsAccepted();
+         rows += batch.size;
+      }
+      return rows;
+   }
+   
+   /**
+    * Hands a block of rows to each report given, one report at a time, timing each one over the whole block.
+    *
+    * @param block Rows to hand over, each a copy made with {@link SearchRecord#copyOf(SearchRecord)}
+    * @param size Number of rows in the block
+    */
+   private static void acceptTimed(List<Report> targets, DataSource dataSource, SearchRecord[] block, int size,
+                                   long[] reportNanos) {
+      for (int i = 0; i < reportNanos.length; i++) {
+         Report target = targets.get(i);
+         long before = System.nanoTime();
+         for (int row = 0; row < size; row++) {
+            acceptRow(target, dataSource, block[row]);
+         }
+         reportNanos[i] += System.nanoTime() - before;
+      }
+   }
+   
+   private static void acceptRow(Report target, DataSource dataSource, SearchRecord record) {
+      try {
+         target.accept(dataSource, record);
+      } catch (Exception e) {
+         if (target.skip(SkipReason.REPORT_FAILURE, dataSource, record)) {
+            System.out.println("Exception occured during \"" + target.name() + "\" READ with file "
+                               + dataSource + "!\n" + e.getMessage());
+            e.printStackTrace();
+         }
+      }
+   }
+   
+   /**
+    * Hands a whole batch to a report.  If it fails (having added none of it), the rows are handed
+    * over one at a time instead, so only the rows that fail on their own are skipped.
+    */
+   private static void acceptBatch(Report target, DataSource dataSource, RowBatch batch, SearchRecord record) {
+      try {
+         target.acceptBatch(dataSource, batch);
+      } catch (Exception e) {
+         for (int row = 0; row < batch.size; row++) {
+            batch.copyRow(row, record);
+            acceptRow(target, dataSource, record);
+         }
+      }
+   }
+}
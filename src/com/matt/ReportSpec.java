@@ -0,0 +1,500 @@
+package com.matt;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes a report as a table of summed counts, instead of writing it out by hand: what each
+ * row is (the row dimension), what each column is (the column dimension), and which rows of the
+ * sources are counted at all (the filters).  Add it to a {@link ReportPlan} with
+ * {@link ReportPlan#report(ReportSpec)}, where it is compiled into a scan loop made for its shape,
+ * and shares the single read of the sources with every other report in the plan.
+ * <br><br>
+ * Example (how many birth years are searched in each system, for searches without a death date):<br>
+ * new ReportSpec("birthYears", "birthYears.csv")<br>
+ * &nbsp;&nbsp;&nbsp;.rows(ReportSpec.Dimension.yearBuckets(20, 2024))<br>
+ * &nbsp;&nbsp;&nbsp;.columns(ReportSpec.Dimension.systems())<br>
+ * &nbsp;&nbsp;&nbsp;.where(ReportSpec.Filter.types(DateType.BIRTH))<br>
+ * &nbsp;&nbsp;&nbsp;.where(ReportSpec.Filter.withDeaths(false))
+ */
+public final class ReportSpec {
+   private final String name;
+   private final String outputFile;
+   private Dimension rows = null;
+   private Dimension columns = Dimension.total("count");
+   private final List<Filter> filters = new ArrayList<>();
+   private boolean verifiesSources = true;
+   private boolean countsDistinctPatterns = false;
+   
+   /**
+    * @param name Name of the report, used when logging problems with it
+    * @param outputFile Filename to have results saved to
+    */
+   public ReportSpec(String name, String outputFile) {
+      this.name = name;
+      this.outputFile = outputFile;
+   }
+   
+   /**
+    * Sets what each row of the report is.  Required.
+    */
+   public ReportSpec rows(Dimension rows) {
+      this.rows = rows;
+      return this;
+   }
+   
+   /**
+    * Sets what each column of the report is.  Defaults to a single column of the total count.
+    *
+    * @throws IllegalArgumentException If the dimension can only be used for rows (years and lengths)
+    */
+   public ReportSpec columns(Dimension columns) {
+      if (!columns.isStatic()) {
+         throw new IllegalArgumentException(columns.name + " can only be used for the rows of a report");
+      }
+      this.columns = columns;
+      return this;
+   }
+   
+   /**
+    * Only counts the rows of the sources that pass the given filter (as well as any others given).
+    */
+   public ReportSpec where(Filter filter) {
+      filters.add(filter);
+      return this;
+   }
+   
+   /**
+    * Lets the report run even if some of the data sources are missing.
+    */
+   public ReportSpec allowMissingSources() {
+      this.verifiesSources = false;
+      return this;
+   }
+   
+   /**
+    * Adds a column after the counts for each column, estimating how many distinct date patterns
+    * (system, type, start, and end) were counted in each cell, such as "birthDistinct".  Each
+    * cell's estimate takes a fixed 2 KB however many patterns there are (see {@link DistinctSketch}),
+    * and is typically within about 2%.
+    */
+   public ReportSpec countDistinctPatterns() {
+      this.countsDistinctPatterns = true;
+      return this;
+   }
+   
+   String name() {
+      return name;
+   }
+   
+   String outputFile() {
+      return outputFile;
+   }
+   
+   Dimension rowDimension() {
+      return rows;
+   }
+   
+   Dimension columnDimension() {
+      return columns;
+   }
+   
+   List<Filter> filters() {
+      return filters;
+   }
+   
+   boolean verifiesSources() {
+      return verifiesSources;
+   }
+   
+   boolean countsDistinctPatterns() {
+      return countsDistinctPatterns;
+   }
+   
+   /**
+    * @return Key naming the report's shape and parameters (but not its name or output file)
+    */
+   String key() {
+      StringBuilder key = new StringBuilder("spec(").append(rows.key()).append(';').append(columns.key());
+      for (Filter filter: filters) {
+         key.append(';').append(filter.key());
+      }
+      if (countsDistinctPatterns) key.append(";distinct(").append(DistinctSketch.PRECISION).append(')');
+      return key.append(')').toString();
+   }
+   
+   /**
+    * @return A new, empty report built to this spec
+    * @throws IllegalStateException If no row dimension was set
+    */
+   Report compile() {
+      if (rows == null) throw new IllegalStateException("Report spec " + name + " has no row dimension");
+      return CompiledReport.compile(this);
+   }
+   
+   //----------------[ Built In Reports ]-------------------------
+   
+   /**
+    * Spec for {@link DataHandler#searchedYearsByType(String, int, int)}.
+    */
+   static ReportSpec searchedYearsByType(String outputFile, int bucketSize, int stopYear) {
+      return new ReportSpec("searchedYearsByType", outputFile)
+            .rows(Dimension.yearBuckets(bucketSize, stopYear))
+            .columns(Dimension.searchedYearTypes());
+   }
+   
+   /**
+    * Spec for {@link DataHandler#birthYearSearchesBySystem(String, int, int)}.
+    */
+   static ReportSpec birthYearSearchesBySystem(String outputFile, int bucketSize, int stopYear) {
+      return new ReportSpec("birthYearSearchesBySystem", outputFile)
+            .rows(Dimension.yearBuckets(bucketSize, stopYear))
+            .columns(Dimension.systems())
+            .where(Filter.types(DateType.BIRTH));
+   }
+   
+   /**
+    * Spec for {@link DataHandler#yearTypesSearchedBySystem(String)}.
+    */
+   static ReportSpec yearTypesSearchedBySystem(String outputFile) {
+      return new ReportSpec("yearTypesSearchedBySystem", outputFile)
+            .rows(Dimension.dateTypes())
+            .columns(Dimension.systems());
+   }
+   
+   /**
+    * Spec for {@link DataHandler#dateRangeLengths(String, int, int)}.
+    */
+   static ReportSpec dateRangeLengths(String outputFile, int bucketSize, int stopLength) {
+      return new ReportSpec("dateRangeLengths", outputFile)
+            .rows(Dimension.rangeLengths(bucketSize, stopLength))
+            .allowMissingSources();
+   }
+   
+   /**
+    * One way of splitting up the rows of the sources, to make the rows or columns of a report.
+    * <br><br>
+    * Years and range lengths depend on each row's years, and times on when each search was made,
+    * so they can only be used for the rows of a report.  All the others only depend on the row's
+    * source and date type.
+    */
+   public static final class Dimension {
+      enum Kind { YEAR, MOST_RECENT_YEAR, RANGE_LENGTH, TIME, DATE_TYPE, SYSTEM, VARIANT, TOTAL }
+      
+      private static final int SECONDS_PER_HOUR = 60 * 60;
+      private static final int SECONDS_PER_DAY = 24 * SECONDS_PER_HOUR;
+      
+      final Kind kind;
+      final String name;
+      final int bucketSize;
+      final int stop;
+      //For times: start of the first row, in seconds since 1970 (UTC)
+      long from = 0;
+      final List<String> labels = new ArrayList<>();
+      //For date types: index of the label each type is counted under (by ordinal), or -1 for none
+      final int[] typeIndex = new int[DateType.values().length];
+      
+      private Dimension(Kind kind, String name, int bucketSize, int stop) {
+         this.kind = kind;
+         this.name = name;
+         this.bucketSize = bucketSize;
+         this.stop = stop;
+         Arrays.fill(typeIndex, -1);
+      }
+      
+      /**
+       * One row per bucketSize years up to and including stopYear (with everything later in the
+       * last one), plus a row for stars.  Both the start and the end of each range are counted,
+       * just like a search for a single year.
+       */
+      public static Dimension yearBuckets(int bucketSize, int stopYear) {
+         return new Dimension(Kind.YEAR, "year", bucketSize, stopYear);
+      }
+      
+      /**
+       * One row per bucketSize years, counting only the most recent year each row searches for
+       * (see {@link DataHandler#livingPersonSearchesBySystem(String, int, int, int)}).  Rows with
+       * no most recent year (stars on both ends) are skipped.
+       */
+      public static Dimension mostRecentYearBuckets(int bucketSize, int stopYear) {
+         return new Dimension(Kind.MOST_RECENT_YEAR, "year", bucketSize, stopYear);
+      }
+      
+      /**
+       * One row per bucketSize years of range length, plus a row for ranges with a star on either
+       * end.  Only rows with an end year are counted.
+       */
+      public static Dimension rangeLengths(int bucketSize, int stopLength) {
+         return new Dimension(Kind.RANGE_LENGTH, "length", bucketSize, stopLength);
+      }
+      
+      /**
+       * One row per hour searches were made in, from the start of the first day to the end of
+       * the last one (UTC).  Only raw search logs have the time of each search (see
+       * {@link SourceCatalog#rawLogs(String)}); rows from exports are skipped.  Searches made
+       * outside the given days are left out.
+       *
+       * @param firstDay First day to count
+       * @param lastDay Last day to count (included)
+       */
+      public static Dimension hours(LocalDate firstDay, LocalDate lastDay) {
+         return times("hour", SECONDS_PER_HOUR, firstDay, lastDay);
+      }
+      
+      /**
+       * Same as {@link #hours(LocalDate, LocalDate)}, with one row per day.
+       */
+      public static Dimension days(LocalDate firstDay, LocalDate lastDay) {
+         return times("day", SECONDS_PER_DAY, firstDay, lastDay);
+      }
+      
+      private static Dimension times(String name, int bucketSeconds, LocalDate firstDay, LocalDate lastDay) {
+         if (lastDay.isBefore(firstDay)) {
+            throw new IllegalArgumentException("Last day " + lastDay + " is before first day " + firstDay);
+         }
+         Dimension dimension = new Dimension(Kind.TIME, name, bucketSeconds, 0);
+         dimension.from = firstDay.atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+         long until = lastDay.plusDays(1).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+         for (long time = dimension.from; time < until; time += bucketSeconds) {
+            String day = LocalDate.ofEpochDay(Math.floorDiv(time, SECONDS_PER_DAY)).toString();
+            dimension.labels.add(bucketSeconds == SECONDS_PER_DAY
+                                 ? day
+                                 : String.format("%sT%02d:00", day, Math.floorMod(time, SECONDS_PER_DAY) / SECONDS_PER_HOUR));
+         }
+         return dimension;
+      }
+      
+      /**
+       * One row (or column) per date type.  Rows with an unknown type are skipped.
+       */
+      public static Dimension dateTypes() {
+         Dimension dimension = dateTypeGroups();
+         for (DateType type: DateType.values()) {
+            dimension.group(type.label(), type);
+         }
+         return dimension;
+      }
+      
+      /**
+       * One row (or column) per group of date types, added with {@link #group(String, DateType...)}.
+       * Rows with a type that isn't in any group are skipped.
+       */
+      public static Dimension dateTypeGroups() {
+         return new Dimension(Kind.DATE_TYPE, "yearType", 1, 0);
+      }
+      
+      /**
+       * The date types split into birth, death, any, and other, as in
+       * {@link DataHandler#searchedYearsByType(String, int, int)}.
+       */
+      public static Dimension searchedYearTypes() {
+         return dateTypeGroups()
+               .group("birth", DateType.BIRTH)
+               .group("death", DateType.DEATH)
+               .group("any", DateType.ANY)
+               .group("other", DateType.RESIDENCE, DateType.MARRIAGE, DateType.OTHER);
+      }
+      
+      /**
+       * One row (or column) per system.
+       */
+      public static Dimension systems() {
+         Dimension dimension = new Dimension(Kind.SYSTEM, "system", 1, 0);
+         for (SearchSystem system: SearchSystem.values()) {
+            dimension.labels.add(system.label());
+         }
+         return dimension;
+      }
+      
+      /**
+       * One row (or column) for the sources without death dates, and one for those with them.
+       */
+      public static Dimension variants() {
+         Dimension dimension = new Dimension(Kind.VARIANT, "variant", 1, 0);
+         dimension.labels.add("withoutDeaths");
+         dimension.labels.add("withDeaths");
+         return dimension;
+      }
+      
+      /**
+       * A single row (or column) holding the total count.
+       *
+       * @param label Name of the row or column
+       */
+      public static Dimension total(String label) {
+         Dimension dimension = new Dimension(Kind.TOTAL, "total", 1, 0);
+         dimension.labels.add(label);
+         return dimension;
+      }
+      
+      /**
+       * Adds a group to a dimension made by {@link #dateTypeGroups()}.  A type can only be in one group.
+       *
+       * @param label Name of the group's row or column
+       * @param types Date types counted in the group
+       */
+      public Dimension group(String label, DateType... types) {
+         if (kind != Kind.DATE_TYPE) throw new IllegalStateException("Only date type dimensions have groups");
+         for (DateType type: types) {
+            if (typeIndex[type.ordinal()] != -1) throw new IllegalArgumentException(type.label() + " is already in a group");
+            typeIndex[type.ordinal()] = labels.size();
+         }
+         labels.add(label);
+         return this;
+      }
+      
+      /**
+       * @return Index of the row or column the given type is counted under, or -1 if it isn't
+       */
+      int indexOf(DateType type) {
+         return (type == null ? -1 : typeIndex[type.ordinal()]);
+      }
+      
+      /**
+       * @return True if the dimension only depends on each row's source and date type
+       */
+      boolean isStatic() {
+         return kind != Kind.YEAR && kind != Kind.MOST_RECENT_YEAR && kind != Kind.RANGE_LENGTH && kind != Kind.TIME;
+      }
+      
+      /**
+       * @return True if the dimension has a set list of rows or columns, each with a label
+       *         (rather than buckets of years, with a row for stars)
+       */
+      boolean hasLabels() {
+         return isStatic() || kind == Kind.TIME;
+      }
+      
+      /**
+       * @return Number of rows or columns, for dimensions with labels
+       */
+      int size() {
+         return labels.size();
+      }
+      
+      List<String> labels() {
+         return Collections.unmodifiableList(labels);
+      }
+      
+      String key() {
+         switch (kind) {
+            case YEAR:
+            case MOST_RECENT_YEAR:
+            case RANGE_LENGTH:
+               return kind + "(" + bucketSize + "," + stop + ")";
+            case TIME:
+               return kind + "(" + from + "," + bucketSize + "," + labels.size() + ")";
+            case DATE_TYPE:
+               return kind + Arrays.toString(typeIndex) + labels;
+            default:
+               return kind + labels.toString();
+         }
+      }
+   }
+   
+   /**
+    * A test that each row of the sources must pass to be counted in a report.
+    */
+   public static final class Filter {
+      enum Kind { TYPES, SYSTEMS, WITH_DEATHS, START_YEAR, MOST_RECENT_YEAR }
+      
+      final Kind kind;
+      final boolean[] allowed;
+      final int from;
+      final int to;
+      
+      private Filter(Kind kind, boolean[] allowed, int from, int to) {
+         this.kind = kind;
+         this.allowed = allowed;
+         this.from = from;
+         this.to = to;
+      }
+      
+      /**
+       * Only counts rows with one of the given date types (never rows with an unknown type).
+       */
+      public static Filter types(DateType... types) {
+         boolean[] allowed = new boolean[DateType.values().length];
+         for (DateType type: types) allowed[type.ordinal()] = true;
+         return new Filter(Kind.TYPES, allowed, 0, 0);
+      }
+      
+      /**
+       * Only counts rows from the given systems.
+       */
+      public static Filter systems(SearchSystem... systems) {
+         boolean[] allowed = new boolean[SearchSystem.values().length];
+         for (SearchSystem system: systems) allowed[system.ordinal()] = true;
+         return new Filter(Kind.SYSTEMS, allowed, 0, 0);
+      }
+      
+      /**
+       * Only counts rows from the sources with (or without) death dates.
+       */
+      public static Filter withDeaths(boolean withDeaths) {
+         return new Filter(Kind.WITH_DEATHS, new boolean[] {!withDeaths, withDeaths}, 0, 0);
+      }
+      
+      /**
+       * Only counts rows whose start year is between from and to (inclusive).  Rows that start
+       * with a star are never counted.
+       */
+      public static Filter startYearBetween(int from, int to) {
+         return new Filter(Kind.START_YEAR, null, from, to);
+      }
+      
+      /**
+       * Only counts rows whose most recent year (see {@link Dimension#mostRecentYearBuckets(int, int)})
+       * is between from and to (inclusive).
+       */
+      public static Filter mostRecentYearBetween(int from, int to) {
+         return new Filter(Kind.MOST_RECENT_YEAR, null, from, to);
+      }
+      
+      /**
+       * @return True if the filter only depends on each row's source and date type
+       */
+      boolean isStatic() {
+         return kind == Kind.TYPES || kind == Kind.SYSTEMS || kind == Kind.WITH_DEATHS;
+      }
+      
+      /**
+       * @return True if a row from a source of the given variant and system, of the given type, passes.
+       *         Only for static filters.
+       */
+      boolean passes(int variant, int system, DateType type) {
+         switch (kind) {
+            case TYPES:
+               return type != null && allowed[type.ordinal()];
+            case SYSTEMS:
+               return allowed[system];
+            case WITH_DEATHS:
+               return allowed[variant];
+            default:
+               return true;
+         }
+      }
+      
+      /**
+       * @return True if the row passes.  Only for filters that aren't static.
+       */
+      boolean passes(SearchRecord record) {
+         int year;
+         if (kind == Kind.START_YEAR) {
+            if (record.start == SearchRecord.STAR_YEAR) return false;
+            year = record.start;
+         } else {
+            year = LivingPersonsBySystemReport.mostRecentYear(record);
+         }
+         return year >= from && year <= to;
+      }
+      
+      String key() {
+         return kind + (isStatic() ? Arrays.toString(allowed) : "(" + from + "," + to + ")");
+      }
+   }
+}
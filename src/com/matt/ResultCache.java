@@ -0,0 +1,244 @@
+package com.matt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the finished sums of each report from earlier runs, so a report that is run again with
+ * the same parameters over the same sources is loaded back instead of being rebuilt.  When every
+ * report in a plan is found here, the sources aren't read at all.
+ * <br><br>
+ * Each report's sums are saved under a key made from the report's name and parameters (its
+ * {@link Report#stateKey()}), and the path, size, last modified time, and SHA-256 hash of every
+ * source.  Any change to a source gives a new key, so results from before the change are never
+ * used again, and are left to be evicted.  The hash of each source is only worked out again when
+ * its size or last modified time changes, so checking for a hit doesn't read the sources.
+ * <br><br>
+ * The cache is kept under a disk budget.  Once it goes over, the results that were least recently
+ * used are deleted until it fits.  Plans that read standard input are never cached.
+ */
+public final class ResultCache {
+   public static final String DEFAULT_DIRECTORY = "results/";
+   public static final long DEFAULT_DISK_BUDGET = 256L << 20;
+   
+   private static final int MAGIC = 0x46535243; //"FSRC"
+   private static final int VERSION = 1;
+   private static final String RESULT_EXTENSION = ".result";
+   private static final String HASH_INDEX = "sourceHashes.txt";
+   
+   private final String directory;
+   private final long diskBudget;
+   
+   public ResultCache() {
+      this(DEFAULT_DIRECTORY, DEFAULT_DISK_BUDGET);
+   }
+   
+   /**
+    * @param directory Folder to keep the results in.  Created if it doesn't exist.
+    * @param diskBudget Most bytes of results to keep.  The least recently used are deleted past this.
+    */
+   public ResultCache(String directory, long diskBudget) {
+      if (diskBudget < 0) throw new IllegalArgumentException("Disk budget cannot be negative, got " + diskBudget);
+      this.directory = directory;
+      this.diskBudget = diskBudget;
+   }
+   
+   /**
+    * Works out the fingerprint of a set of sources, that results for them are saved under.
+    *
+    * @return The fingerprint, or null if the sources can't be cached (standard input)
+    */
+   String fingerprint(List<DataSource> sources) throws IOException {
+      List<DataSource> sorted = new ArrayList<>(sources);
+      sorted.sort(Comparator.comparing(DataSource::path));
+      
+      Map<String, String> hashes = loadHashIndex();
+      boolean hashesChanged = false;
+      StringBuilder fingerprint = new StringBuilder();
+      for (DataSource source: sorted) {
+         if (source.isStdin()) return null;
+         File file = new File(source.path());
+         String stamp = file.length() + "," + file.lastModified();
+         String hash = "missing";
+         if (file.isFile()) {
+            String known = hashes.get(file.getAbsolutePath());
+            if (known != null && known.startsWith(stamp + ",")) {
+               hash = known.substring(stamp.length() + 1);
+            } else {
+               hash = hex(hash(file));
+               hashes.put(file.getAbsolutePath(), stamp + "," + hash);
+               hashesChanged = true;
+            }
+         }
+         fingerprint.append(source.path()).append(',').append(source.system()).append(',').append(source.withDeaths())
+                    .append(',').append(stamp).append(',').append(hash).append('\n');
+      }
+      if (hashesChanged) saveHashIndex(hashes);
+      return fingerprint.toString();
+   }
+   
+   /**
+    * Loads the saved sums for the given report into it, if there are any for its parameters and
+    * the given sources.  The report must be empty.
+    *
+    * @param report Report to load into
+    * @param fingerprint Fingerprint of the sources, from {@link #fingerprint(List)}
+    * @return True if the report was loaded
+    */
+   boolean load(Report report, String fingerprint) {
+      File file = resultFile(report, fingerprint);
+      if (!file.isFile()) return false;
+      
+      //Loaded into a copy first, so a result that can't be read leaves the report empty
+      Report loaded = report.newPartial();
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+         if (!in.readUTF().equals(report.stateKey())) return false;
+         loaded.readState(in);
+      } catch (IOException e) {
+         System.out.println("Could not use cached result " + file + ", rebuilding \"" + report.name() + "\".\n" + e.getMessage());
+         return false;
+      }
+      report.merge(loaded);
+      //The last modified time marks when each result was last used, for evicting them
+      file.setLastModified(System.currentTimeMillis());
+      return true;
+   }
+   
+   /**
+    * Saves the sums of the given report, then evicts the least recently used results if the cache
+    * is over its disk budget.
+    *
+    * @param report Finished report to save
+    * @param fingerprint Fingerprint of the sources it was built from, from {@link #fingerprint(List)}
+    */
+   void store(Report report, String fingerprint) {
+      File file = resultFile(report, fingerprint);
+      File tempFile = new File(file.getPath() + ".tmp");
+      try {
+         Files.createDirectories(new File(directory).toPath());
+         try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(report.stateKey());
+            report.writeState(out);
+         }
+         Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+         System.out.println("Exception occured during caching result of \"" + report.name() + "\"!\n" + e.getMessage());
+         tempFile.delete();
+         return;
+      }
+      evict();
+   }
+   
+   /**
+    * Deletes the least recently used results until the cache fits in its disk budget.
+    */
+   private void evict() {
+      File[] results = new File(directory).listFiles((dir, name) -> name.endsWith(RESULT_EXTENSION));
+      if (results == null) return;
+      
+      long total = 0;
+      for (File result: results) {
+         total += result.length();
+      }
+      if (total <= diskBudget) return;
+      
+      Arrays.sort(results, Comparator.comparingLong(File::lastModified));
+      for (File result: results) {
+         if (total <= diskBudget) break;
+         long length = result.length();
+         if (result.delete()) total -= length;
+      }
+   }
+   
+   /**
+    * @return File holding the result of the report over sources with the given fingerprint
+    */
+   private File resultFile(Report report, String fingerprint) {
+      byte[] key = sha256().digest((VERSION + "\n" + report.name() + "\n" + report.stateKey() + "\n" + fingerprint)
+                                         .getBytes(StandardCharsets.UTF_8));
+      return new File(directory, report.name() + "-" + hex(key).substring(0, 32) + RESULT_EXTENSION);
+   }
+   
+   /**
+    * @return Hashes of the sources seen before, by absolute path, as "size,lastModified,hash"
+    */
+   private Map<String, String> loadHashIndex() throws IOException {
+      Map<String, String> hashes = new HashMap<>();
+      File index = new File(directory, HASH_INDEX);
+      if (!index.isFile()) return hashes;
+      try (BufferedReader reader = new BufferedReader(new FileReader(index, StandardCharsets.UTF_8))) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            int tab = line.lastIndexOf('\t');
+            if (tab > 0) hashes.put(line.substring(0, tab), line.substring(tab + 1));
+         }
+      }
+      return hashes;
+   }
+   
+   private void saveHashIndex(Map<String, String> hashes) throws IOException {
+      Files.createDirectories(new File(directory).toPath());
+      File index = new File(directory, HASH_INDEX);
+      File tempFile = new File(index.getPath() + ".tmp");
+      try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile, StandardCharsets.UTF_8))) {
+         for (Map.Entry<String, String> entry: hashes.entrySet()) {
+            writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+         }
+      }
+      Files.move(tempFile.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+   
+   private static byte[] hash(File file) throws IOException {
+      MessageDigest digest = sha256();
+      byte[] buffer = new byte[1 << 16];
+      try (InputStream in = new FileInputStream(file)) {
+         int count;
+         while ((count = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, count);
+         }
+      }
+      return digest.digest();
+   }
+   
+   private static MessageDigest sha256() {
+      try {
+         return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         //Every Java platform is required to have SHA-256
+         throw new IllegalStateException(e);
+      }
+   }
+   
+   private static String hex(byte[] bytes) {
+      StringBuilder hex = new StringBuilder(bytes.length * 2);
+      for (byte b: bytes) {
+         hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+   }
+}
@@ -0,0 +1,33 @@
+package com.matt;
+
+/**
+ * A batch of rows held column by column, so reports that can count many rows at once don't
+ * have to go through a {@link SearchRecord} per row (see {@link Report#acceptBatch(DataSource, RowBatch)}).
+ * Batches are read out of {@link ColumnarCache} files, so every year is a star, a missing end
+ * year, or between 0 and {@link Short#MAX_VALUE}.
+ */
+final class RowBatch {
+   static final int CAPACITY = 1 << 12;
+   /** Slot in place of a type ordinal for rows whose type wasn't recognized */
+   static final int UNKNOWN_SLOT = DateType.values().length;
+   
+   /** Date type ordinal of each row, or UNKNOWN_SLOT */
+   final int[] slots = new int[CAPACITY];
+   final int[] starts = new int[CAPACITY];
+   final int[] ends = new int[CAPACITY];
+   final long[] counts = new long[CAPACITY];
+   /** Number of rows in the batch */
+   int size = 0;
+   
+   /**
+    * Copies one row of the batch into the given record, for reports that read a row at a time.
+    */
+   void copyRow(int row, SearchRecord record) {
+      int slot = slots[row];
+      record.type = (slot == UNKNOWN_SLOT ? null : DateType.fromOrdinal(slot));
+      record.start = starts[row];
+      record.end = ends[row];
+      record.count = counts[row];
+      record.buffer = null;
+   }
+}
@@ -0,0 +1,437 @@
+package com.matt;
+
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Counts and timings for a single run of a {@link ReportPlan}: rows, bytes, and skipped rows for
+ * each source, the time spent parsing each source and summing it into each report, and the time
+ * spent writing each report out.  These can be written to a summary file at the end of the run.
+ * <br><br>
+ * Every read of a source (or of a chunk of one), every report write, and the run as a whole are
+ * also sent out as Flight Recorder events, so a recording of a run (started with
+ * -XX:StartFlightRecording) shows which source or stage the time went to.  When nothing is
+ * recording, the events cost next to nothing.
+ * <br><br>
+ * Reading the clock can take longer than a report spends on a row, so reports aren't timed row
+ * by row.  Rows read one at a time are timed a block of {@link #SAMPLE_BLOCK} rows at a time for
+ * each report, on one block out of every {@link #SAMPLE_INTERVAL}, and scaled up to every row
+ * read.  (The first block timed starts partway in, so a source of only a couple thousand rows
+ * isn't timed at all.)  Rows read in batches are timed a whole batch at a time.  Parse time is the rest of the
+ * time spent reading the source.  Both are estimates, and named that way in the summary.
+ */
+final class RunMetrics {
+   static final int SAMPLE_BLOCK = 64;
+   static final int SAMPLE_INTERVAL = 64;
+   
+   private final List<Report> reports;
+   private final Map<DataSource, SourceTotals> sources = new LinkedHashMap<>();
+   private final long[] writeNanos;
+   //Files each report handed off to be written, and its write event, sent out once they're written
+   private final List<List<Future<Long>>> fileWrites = new ArrayList<>();
+   private final ReportWriteEvent[] writeEvents;
+   private final long started = System.nanoTime();
+   private long runNanos = 0;
+   private final ReportRunEvent runEvent = new ReportRunEvent();
+   
+   /**
+    * @param reports Reports in the plan being run.  Partial copies read into must be in the same order.
+    */
+   RunMetrics(List<Report> reports) {
+      this.reports = reports;
+      this.writeNanos = new long[reports.size()];
+      this.writeEvents = new ReportWriteEvent[reports.size()];
+      for (int i = 0; i < reports.size(); i++) {
+         fileWrites.add(new ArrayList<>());
+      }
+      runEvent.begin();
+   }
+   
+   /**
+    * Starts timing a read of the given source into the given reports.
+    */
+   Read startRead(DataSource source, List<Report> targets) {
+      return new Read(source, targets);
+   }
+   
+   /**
+    * Runs the report's write, timing it.  Its files are written in the background (see
+    * {@link TableWriter}), so the time spent writing them is added in by {@link #finishWrites()}.
+    *
+    * @param reportIndex Index of the report within the plan
+    * @param tracked Writes being tracked for the run (see {@link TableWriter#track()}), which the report's are added to
+    */
+   void timeWrite(int reportIndex, List<Future<Long>> tracked) {
+      Report report = reports.get(reportIndex);
+      ReportWriteEvent event = new ReportWriteEvent();
+      event.begin();
+      int firstFile = tracked.size();
+      long before = System.nanoTime();
+      try {
+         report.write();
+      } finally {
+         writeNanos[reportIndex] = System.nanoTime() - before;
+         fileWrites.get(reportIndex).addAll(tracked.subList(firstFile, tracked.size()));
+         event.end();
+         writeEvents[reportIndex] = event;
+      }
+   }
+   
+   /**
+    * Adds the time taken to encode and write each report's files into its write time, and sends
+    * out its write event.  Call once the run's writes have finished.  Files that failed (or
+    * haven't finished) add nothing.
+    */
+   void finishWrites() {
+      for (int i = 0; i < reports.size(); i++) {
+         long fileNanos = 0;
+         for (Future<Long> write: fileWrites.get(i)) {
+            if (!write.isDone()) continue;
+            try {
+               fileNanos += write.get();
+            } catch (InterruptedException | ExecutionException e) {
+               //Failed writes are reported by whoever waits on them
+            }
+         }
+         writeNanos[i] += fileNanos;
+         
+         ReportWriteEvent event = writeEvents[i];
+         if (event != null && event.shouldCommit()) {
+            event.report = reports.get(i).name();
+            event.outputFile = reports.get(i).outputFile;
+            event.fileWriteTime = fileNanos;
+            event.commit();
+         }
+      }
+   }
+   
+   /**
+    * Marks the end of the run.
+    */
+   synchronized void finish() {
+      runNanos = System.nanoTime() - started;
+      runEvent.end();
+      if (runEvent.shouldCommit()) {
+         SourceTotals total = total();
+         runEvent.sources = sources.size();
+         runEvent.reports = reports.size();
+         runEvent.rows = total.rows;
+         runEvent.bytes = total.bytes;
+         runEvent.commit();
+      }
+   }
+   
+   /**
+    * Writes a summary of the run into the output folder: a line for each source, then a line for
+    * each report, then a line for each report, source, and reason that rows were skipped for.
+    * Times for the sources are added up across every thread, so they can come to more than the
+    * run itself took.  Parse and aggregate times are estimated from a sample of the rows (see
+    * above), and the total line adds up each source's, so it matches the lines above it.
+    *
+    * @param outputFile Filename for the summary
+    */
+   synchronized void writeSummary(String outputFile) {
+      try (FileWriter writer = new FileWriter(DataHandler.PATH_TO_OUTPUT_FOLDER + outputFile)) {
+         writer.write("Read " + sources.size() + " sources into " + reports.size() + " reports in "
+                      + seconds(runNanos) + " seconds\n\n");
+         
+         writer.write("source,system,withDeaths,rows,bytes,malformedRows,readSeconds,estimatedParseSeconds,estimatedAggregateSeconds,"
+                      + "rowsPerSecond,megabytesPerSecond\n");
+         for (Map.Entry<DataSource, SourceTotals> entry: sources.entrySet()) {
+            DataSource source = entry.getKey();
+            writer.write(source + "," + source.system().label() + "," + source.withDeaths() + ","
+                         + entry.getValue().summaryColumns() + "\n");
+         }
+         writer.write("total,,," + total().summaryColumns() + "\n\n");
+         
+         writer.write("report,outputFile,estimatedAggregateSeconds,writeSeconds,skippedRows\n");
+         for (int i = 0; i < reports.size(); i++) {
+            long aggregateNanos = 0;
+            long skippedRows = 0;
+            for (SourceTotals totals: sources.values()) {
+               aggregateNanos += totals.reportNanos[i];
+               for (long skipped: totals.skipped[i]) skippedRows += skipped;
+            }
+            writer.write(reports.get(i).name() + "," + outputFileOf(reports.get(i)) + "," + seconds(aggregateNanos) + ","
+                         + seconds(writeNanos[i]) + "," + skippedRows + "\n");
+         }
+         writer.write("\n");
+         
+         writer.write("report,outputFile,source,reason,skippedRows\n");
+         for (Map.Entry<DataSource, SourceTotals> entry: sources.entrySet()) {
+            for (int i = 0; i < reports.size(); i++) {
+               for (SkipReason reason: SkipReason.values()) {
+                  long skipped = entry.getValue().skipped[i][reason.ordinal()];
+                  if (skipped == 0) continue;
+                  writer.write(reports.get(i).name() + "," + outputFileOf(reports.get(i)) + "," + entry.getKey() + ","
+                               + reason.label() + "," + skipped + "\n");
+               }
+            }
+         }
+      } catch (Exception e) {
+         System.out.println("Exception occured during writing run summary to file " + outputFile
+                            + "!\n" + e.getMessage());
+      }
+   }
+   
+   private synchronized void add(DataSource source, SourceTotals read) {
+      sources.computeIfAbsent(source, s -> new SourceTotals(reports.size())).add(read);
+   }
+   
+   private SourceTotals total() {
+      SourceTotals total = new SourceTotals(reports.size());
+      long aggregateNanos = 0;
+      for (SourceTotals totals: sources.values()) {
+         total.add(totals);
+         aggregateNanos += totals.aggregateNanos();
+      }
+      //Each source's estimate is kept within its own read time, so the total is too
+      total.aggregateLimit = aggregateNanos;
+      return total;
+   }
+   
+   private static String outputFileOf(Report report) {
+      return (report.outputFile == null ? "" : report.outputFile);
+   }
+   
+   private static String seconds(long nanos) {
+      return String.format("%.3f", nanos / 1e9);
+   }
+   
+   /**
+    * One read of a source (or of a chunk of one) in progress.  Made by {@link #startRead(DataSource, List)}.
+    */
+   final class Read {
+      private final DataSource source;
+      private final List<Report> targets;
+      private final long[][] skippedBefore;
+      private final long started;
+      private final SourceReadEvent event = new SourceReadEvent();
+      
+      private Read(DataSource source, List<Report> targets) {
+         this.source = source;
+         this.targets = targets;
+         this.skippedBefore = new long[targets.size()][];
+         for (int i = 0; i < targets.size(); i++) {
+            skippedBefore[i] = targets.get(i).skipCounts().clone();
+         }
+         event.begin();
+         this.started = System.nanoTime();
+      }
+      
+      /**
+       * Adds the finished read into the run's totals.
+       *
+       * @param reader Reader the rows were read from
+       * @param rows Number of rows handed to the reports
+       * @param timedRows Number of those rows the reports were timed on
+       * @param reportNanos Time spent in each target report on the timed rows, in target order
+       */
+      void finish(RecordSource reader, long rows, long timedRows, long[] reportNanos) {
+         SourceTotals read = new SourceTotals(targets.size());
+         read.rows = rows;
+         read.bytes = reader.bytesRead();
+         read.malformedRows = reader.malformedRows();
+         read.readNanos = System.nanoTime() - started;
+         for (int i = 0; i < targets.size(); i++) {
+            read.reportNanos[i] = (timedRows == 0 ? 0 : Math.round(reportNanos[i] * ((double) rows / timedRows)));
+            long[] skipCounts = targets.get(i).skipCounts();
+            for (int r = 0; r < SkipReason.COUNT; r++) {
+               read.skipped[i][r] = skipCounts[r] - skippedBefore[i][r];
+            }
+         }
+         add(source, read);
+         commitEvents(read);
+      }
+      
+      private void commitEvents(SourceTotals read) {
+         event.end();
+         if (event.shouldCommit()) {
+            event.source = source.toString();
+            event.system = source.system().label();
+            event.withDeaths = source.withDeaths();
+            event.rows = read.rows;
+            event.bytes = read.bytes;
+            event.malformedRows = read.malformedRows;
+            event.parseTime = read.parseNanos();
+            event.aggregateTime = read.aggregateNanos();
+            event.commit();
+         }
+         
+         for (int i = 0; i < targets.size(); i++) {
+            for (SkipReason reason: SkipReason.values()) {
+               long skipped = read.skipped[i][reason.ordinal()];
+               if (skipped == 0) continue;
+               RowsSkippedEvent skippedEvent = new RowsSkippedEvent();
+               if (!skippedEvent.shouldCommit()) return;
+               skippedEvent.report = targets.get(i).name();
+               skippedEvent.outputFile = targets.get(i).outputFile;
+               skippedEvent.source = source.toString();
+               skippedEvent.reason = reason.label();
+               skippedEvent.rows = skipped;
+               skippedEvent.commit();
+            }
+         }
+      }
+   }
+   
+   /**
+    * Counts and times for one or more reads of a single source.
+    */
+   private static final class SourceTotals {
+      long rows;
+      long bytes;
+      long malformedRows;
+      long readNanos;
+      final long[] reportNanos;
+      //Most the aggregate time can be, besides the read time
+      long aggregateLimit = Long.MAX_VALUE;
+      final long[][] skipped;
+      
+      SourceTotals(int reportCount) {
+         reportNanos = new long[reportCount];
+         skipped = new long[reportCount][SkipReason.COUNT];
+      }
+      
+      void add(SourceTotals other) {
+         rows += other.rows;
+         bytes += other.bytes;
+         malformedRows += other.malformedRows;
+         readNanos += other.readNanos;
+         for (int i = 0; i < reportNanos.length; i++) {
+            reportNanos[i] += other.reportNanos[i];
+            for (int r = 0; r < SkipReason.COUNT; r++) {
+               skipped[i][r] += other.skipped[i][r];
+            }
+         }
+      }
+      
+      long aggregateNanos() {
+         long total = 0;
+         for (long nanos: reportNanos) total += nanos;
+         //The scaled up estimate can overshoot a little on small sources
+         return Math.min(aggregateLimit, Math.min(total, readNanos));
+      }
+      
+      long parseNanos() {
+         return readNanos - aggregateNanos();
+      }
+      
+      /**
+       * @return "rows,bytes,malformedRows,readSeconds,parseSeconds,aggregateSeconds,rowsPerSecond,megabytesPerSecond"
+       */
+      String summaryColumns() {
+         double readSeconds = Math.max(readNanos, 1) / 1e9;
+         return rows + "," + bytes + "," + malformedRows + "," + seconds(readNanos) + "," + seconds(parseNanos()) + ","
+                + seconds(aggregateNanos()) + "," + Math.round(rows / readSeconds) + ","
+                + String.format("%.1f", bytes / readSeconds / (1 << 20));
+      }
+   }
+   
+   //----------------[ Flight Recorder Events ]-------------------------
+   
+   @Name("com.matt.SourceRead")
+   @Label("Source Read")
+   @Category({"FS Search Data Handler", "Reading"})
+   @Description("One read through a data source, or through a chunk of one")
+   static final class SourceReadEvent extends Event {
+      @Label("Source")
+      String source;
+      
+      @Label("System")
+      String system;
+      
+      @Label("With Deaths")
+      boolean withDeaths;
+      
+      @Label("Rows")
+      long rows;
+      
+      @Label("Bytes")
+      @DataAmount
+      long bytes;
+      
+      @Label("Malformed Rows")
+      long malformedRows;
+      
+      @Label("Parse Time")
+      @Description("Estimated as the read time less the aggregate time")
+      @Timespan
+      long parseTime;
+      
+      @Label("Aggregate Time")
+      @Description("Estimated from a sample of the rows")
+      @Timespan
+      long aggregateTime;
+   }
+   
+   @Name("com.matt.RowsSkipped")
+   @Label("Rows Skipped")
+   @Category({"FS Search Data Handler", "Reading"})
+   @Description("Rows a report left out during one read of a source, for one reason")
+   static final class RowsSkippedEvent extends Event {
+      @Label("Report")
+      String report;
+      
+      @Label("Output File")
+      String outputFile;
+      
+      @Label("Source")
+      String source;
+      
+      @Label("Reason")
+      String reason;
+      
+      @Label("Rows")
+      long rows;
+   }
+   
+   @Name("com.matt.ReportWrite")
+   @Label("Report Write")
+   @Category({"FS Search Data Handler", "Writing"})
+   @Description("A report handing its files off to be written, along with how long they then took to write")
+   static final class ReportWriteEvent extends Event {
+      @Label("Report")
+      String report;
+      
+      @Label("Output File")
+      String outputFile;
+      
+      @Label("File Write Time")
+      @Description("Time spent encoding and writing the report's files in the background")
+      @Timespan
+      long fileWriteTime;
+   }
+   
+   @Name("com.matt.ReportRun")
+   @Label("Report Run")
+   @Category("FS Search Data Handler")
+   @Description("A whole run of a report plan, from the first read to the last write")
+   static final class ReportRunEvent extends Event {
+      @Label("Sources")
+      int sources;
+      
+      @Label("Reports")
+      int reports;
+      
+      @Label("Rows")
+      long rows;
+      
+      @Label("Bytes")
+      @DataAmount
+      long bytes;
+   }
+}
@@ -0,0 +1,54 @@
+package com.matt;
+
+/**
+ * Counts batches of rows one row at a time, the same way {@link CompiledReport} counts single
+ * rows.  Used wherever the Vector API isn't available (see {@link BucketKernel#create()}).
+ */
+final class ScalarBucketKernel implements BucketKernel {
+   private final int[] startOffsets = new int[RowBatch.CAPACITY];
+   private final int[] endOffsets = new int[RowBatch.CAPACITY];
+   
+   @Override
+   public void addYearBuckets(RowBatch batch, int[] columnOfSlot, int bucketSize, int stop, int starRow, int columnCount, long[] cells) {
+      for (int i = 0; i < batch.size; i++) {
+         int start = batch.starts[i];
+         startOffsets[i] = (start == SearchRecord.STAR_YEAR ? starRow : Math.min(start, stop) / bucketSize) * columnCount;
+         int end = batch.ends[i];
+         endOffsets[i] = (end == SearchRecord.STAR_YEAR ? starRow : Math.min(end, stop) / bucketSize) * columnCount;
+      }
+      addAtOffsets(batch, columnOfSlot, startOffsets, endOffsets, columnCount, cells);
+   }
+   
+   /**
+    * Adds the count of each row in the batch at the given offsets (where the rows of its start and
+    * end years begin in the table), in the column for its type.  Every offset that will be used is
+    * checked before anything is added, so a batch that doesn't fit leaves the table as it was.
+    *
+    * @param startOffsets Offset of the row of each start year
+    * @param endOffsets Offset of the row of each end year.  Not read for rows without an end year.
+    * @throws IllegalArgumentException If any row would be counted outside the table
+    */
+   static void addAtOffsets(RowBatch batch, int[] columnOfSlot, int[] startOffsets, int[] endOffsets, int columnCount, long[] cells) {
+      int lastRowOffset = cells.length - columnCount;
+      for (int row = 0; row < batch.size; row++) {
+         int column = columnOfSlot[batch.slots[row]];
+         if (column < 0) continue;
+         boolean hasEnd = (batch.ends[row] != SearchRecord.NO_YEAR);
+         if (column >= columnCount || startOffsets[row] < 0 || startOffsets[row] > lastRowOffset
+             || (hasEnd && (endOffsets[row] < 0 || endOffsets[row] > lastRowOffset))) {
+            throw new IllegalArgumentException("Row " + row + " of the batch (" + batch.starts[row] + " to " + batch.ends[row]
+                                               + ") has no place in the table");
+         }
+      }
+      
+      for (int row = 0; row < batch.size; row++) {
+         int column = columnOfSlot[batch.slots[row]];
+         if (column < 0) continue;
+         long count = batch.counts[row];
+         cells[startOffsets[row] + column] += count;
+         if (batch.ends[row] != SearchRecord.NO_YEAR) {
+            cells[endOffsets[row] + column] += count;
+         }
+      }
+   }
+}
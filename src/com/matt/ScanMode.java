@@ -0,0 +1,27 @@
+package com.matt;
+
+/**
+ * How much of the sources a {@link DataHandler} report reads before it is written.  See
+ * {@link ReportPlan#preview(double, boolean)}.  Only reports whose counts are plain sums of
+ * searches can be previewed, so there's no preview of the top patterns or of searchCountsBy.
+ */
+public enum ScanMode {
+   /** Read every row, and write the exact counts (the default) */
+   EXACT,
+   /** Read about 2% of each source, and write estimated counts with a 95% confidence interval next to each */
+   PREVIEW,
+   /** Write a preview first, then read every row and write the exact counts over it before returning */
+   PREVIEW_THEN_EXACT;
+   
+   /**
+    * Runs the given plan this way, and waits for any exact reports it goes on to read, so every
+    * report is written (or has failed) by the time this returns.
+    */
+   void run(ReportPlan plan) {
+      if (this != EXACT) {
+         plan.preview(SampledScanner.DEFAULT_FRACTION, this == PREVIEW_THEN_EXACT);
+      }
+      plan.run();
+      plan.awaitExact();
+   }
+}
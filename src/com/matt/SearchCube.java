@@ -0,0 +1,398 @@
+package com.matt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts at the finest grain the reports need, so that every report (with any bucket size,
+ * stop year, or cutoffs) can be rolled up from it afterwards without reading the sources again.
+ * Built by {@link ReportPlan#buildCube()}.
+ * <br><br>
+ * Counts are kept for every variant (with or without deaths), system, and date type (plus one
+ * slot for unknown types), by single year.  Four things are counted:<br>
+ * - rows: the count of each row, for the year type and living person totals<br>
+ * - years: the count of each row added once at its start year and once at its end year<br>
+ * - most recent years: the count of each row at its most recent year searched (for living persons)<br>
+ * - lengths: the count of each row at its range length, end minus start
+ * <br><br>
+ * Years above {@link #MAX_YEAR} are counted as MAX_YEAR, so stop years used for rollups must be below it.
+ */
+public class SearchCube extends Report {
+   public static final int MAX_YEAR = 4095;
+   
+   private static final int VARIANTS = 2;
+   private static final int SYSTEMS = SearchSystem.values().length;
+   private static final int TYPE_SLOTS = DateType.values().length + 1;
+   private static final int UNKNOWN_TYPE_SLOT = TYPE_SLOTS - 1;
+   private static final int CELLS = VARIANTS * SYSTEMS * TYPE_SLOTS;
+   private static final ReportSpec.Dimension SEARCHED_YEAR_TYPES = ReportSpec.Dimension.searchedYearTypes();
+   
+   //Years 0 to MAX_YEAR, then stars
+   private static final int YEAR_SLOTS = MAX_YEAR + 2;
+   private static final int STAR_YEAR_SLOT = MAX_YEAR + 1;
+   //Lengths -MAX_YEAR to MAX_YEAR, then stars
+   private static final int LENGTH_SLOTS = 2 * MAX_YEAR + 2;
+   private static final int STAR_LENGTH_SLOT = 2 * MAX_YEAR + 1;
+   
+   private final long[] rows = new long[CELLS];
+   private final long[] years = new long[CELLS * YEAR_SLOTS];
+   private final long[] mostRecentYears = new long[CELLS * YEAR_SLOTS];
+   private final long[] lengths = new long[CELLS * LENGTH_SLOTS];
+   
+   SearchCube() {
+      super("searchCube", null);
+   }
+   
+   @Override
+   void accept(DataSource source, SearchRecord record) {
+      int cell = cellFor(source.withDeaths(), source.system(), record.type == null ? UNKNOWN_TYPE_SLOT : record.type.ordinal());
+      long count = record.count;
+      
+      rows[cell] += count;
+      
+      years[cell * YEAR_SLOTS + yearSlot(record.start)] += count;
+      if (record.end != SearchRecord.NO_YEAR) {
+         years[cell * YEAR_SLOTS + yearSlot(record.end)] += count;
+      }
+      
+      int mostRecentYear = LivingPersonsBySystemReport.mostRecentYear(record);
+      if (mostRecentYear >= 0) {
+         mostRecentYears[cell * YEAR_SLOTS + Math.min(mostRecentYear, MAX_YEAR)] += count;
+      }
+      
+      if (record.end != SearchRecord.NO_YEAR) {
+         int lengthSlot;
+         if (record.start == SearchRecord.STAR_YEAR || record.end == SearchRecord.STAR_YEAR) {
+            lengthSlot = STAR_LENGTH_SLOT;
+         } else {
+            lengthSlot = Math.max(-MAX_YEAR, Math.min(record.end - record.start, MAX_YEAR)) + MAX_YEAR;
+         }
+         lengths[cell * LENGTH_SLOTS + lengthSlot] += count;
+      }
+   }
+   
+   //----------------[ Rollups ]-------------------------
+   
+   /**
+    * Same as {@link DataHandler#searchedYearsByType(String, int, int)}, rolled up from the cube.
+    */
+   public void searchedYearsByType(String outputFile, int bucketSize, int stopYear) {
+      DataHandler.writeTableToFile(searchedYearsByTypeTable(bucketSize, stopYear), outputFile, "year,birth,death,any,other");
+   }
+   
+   /**
+    * Same as {@link DataHandler#birthYearSearchesBySystem(String, int, int)}, rolled up from the cube.
+    */
+   public void birthYearSearchesBySystem(String outputFile, int bucketSize, int stopYear) {
+      DataHandler.writeTableToFile(birthYearSearchesBySystemTable(bucketSize, stopYear), outputFile, "year,hr,tree,lls");
+   }
+   
+   /**
+    * Same as {@link DataHandler#yearTypesSearchedBySystem(String)}, rolled up from the cube.
+    */
+   public void yearTypesSearchedBySystem(String outputFile) {
+      DataHandler.writeTableToFileWithReplacements(yearTypesSearchedBySystemTable(), outputFile, "yearType,hr,tree,lls", yearTypeLabels());
+   }
+   
+   /**
+    * Same as {@link DataHandler#livingPersonSearchesBySystem(String, int, int, int)}, rolled up from the cube.
+    */
+   public void livingPersonSearchesBySystem(String outputFile, int birthCutoff, int otherCutoff, int stopYear) {
+      DataHandler.writeTableToFileWithReplacements(livingPersonSearchesBySystemTable(birthCutoff, otherCutoff, stopYear),
+                                                   outputFile, "system,total,living", systemLabels());
+   }
+   
+   /**
+    * Same as calling {@link #livingPersonSearchesBySystem(String, int, int, int)} for every
+    * combination of the given cutoffs and stop years, written to a single file.  Each count comes
+    * from a running total over the most recent years searched, so a grid of any size costs next to
+    * nothing on top of building the cube.
+    * <br><br>
+    * The first row holds each system's total, which is the same for every combination.  Then there
+    * is a row of living person counts for each combination, named birthCutoff/otherCutoff/stopYear.
+    * <br><br>
+    * Example:<br>
+    * livingPersonCutoffSweep("cutoffs.csv", new int[] {1960, 1965, 1970}, new int[] {1980, 1990}, new int[] {2024});<br>
+    * Gives rows: total, 1960/1980/2024, 1960/1990/2024, 1965/1980/2024, ...
+    */
+   public void livingPersonCutoffSweep(String outputFile, int[] birthCutoffs, int[] otherCutoffs, int[] stopYears) {
+      DataHandler.writeTableToFileWithReplacements(livingPersonCutoffSweepTable(birthCutoffs, otherCutoffs, stopYears), outputFile,
+                                                   "birthCutoff/otherCutoff/stopYear,hr,tree,lls,total",
+                                                   cutoffSweepLabels(birthCutoffs, otherCutoffs, stopYears));
+   }
+   
+   /**
+    * Same as {@link DataHandler#dateRangeLengths(String, int, int)}, rolled up from the cube.
+    */
+   public void dateRangeLengths(String outputFile, int bucketSize, int stopLength) {
+      DataHandler.writeTableToFile(dateRangeLengthsTable(bucketSize, stopLength), outputFile, "length,count");
+   }
+   
+   CountTable searchedYearsByTypeTable(int bucketSize, int stopYear) {
+      checkStopYear(stopYear);
+      CountTable table = CountTable.yearBuckets(bucketSize, stopYear, 4);
+      for (int variant = 0; variant < VARIANTS; variant++) {
+         for (int system = 0; system < SYSTEMS; system++) {
+            for (DateType type: DateType.values()) {
+               addYears(table, cellFor(variant == 1, system, type.ordinal()), SEARCHED_YEAR_TYPES.indexOf(type), bucketSize, stopYear);
+            }
+         }
+      }
+      return table;
+   }
+   
+   CountTable birthYearSearchesBySystemTable(int bucketSize, int stopYear) {
+      checkStopYear(stopYear);
+      CountTable table = CountTable.yearBuckets(bucketSize, stopYear, SYSTEMS);
+      for (int variant = 0; variant < VARIANTS; variant++) {
+         for (int system = 0; system < SYSTEMS; system++) {
+            addYears(table, cellFor(variant == 1, system, DateType.BIRTH.ordinal()), system, bucketSize, stopYear);
+         }
+      }
+      return table;
+   }
+   
+   CountTable yearTypesSearchedBySystemTable() {
+      CountTable table = new CountTable(DateType.values().length, SYSTEMS);
+      for (int variant = 0; variant < VARIANTS; variant++) {
+         for (int system = 0; system < SYSTEMS; system++) {
+            for (DateType type: DateType.values()) {
+               table.add(type.ordinal(), system, rows[cellFor(variant == 1, system, type.ordinal())]);
+            }
+         }
+      }
+      return table;
+   }
+   
+   /**
+    * Rolls up the living person totals.  Rows with deaths count towards the totals only.  For the
+    * rest, rows are counted by their most recent year, the same way as {@link LivingPersonsBySystemReport}
+    * (including death and unknown types only counting towards the overall total).
+    */
+   CountTable livingPersonSearchesBySystemTable(int birthCutoff, int otherCutoff, int stopYear) {
+      checkStopYear(stopYear);
+      int totalRow = SYSTEMS;
+      CountTable table = new CountTable(SYSTEMS + 1, 2);
+      
+      for (int system = 0; system < SYSTEMS; system++) {
+         for (int typeSlot = 0; typeSlot < TYPE_SLOTS; typeSlot++) {
+            long withDeaths = rows[cellFor(true, system, typeSlot)];
+            table.add(system, 0, withDeaths);
+            table.add(totalRow, 0, withDeaths);
+            
+            int base = cellFor(false, system, typeSlot) * YEAR_SLOTS;
+            long total = 0;
+            long living = 0;
+            int cutoff = (typeSlot == DateType.BIRTH.ordinal() ? birthCutoff : otherCutoff);
+            for (int year = 0; year <= MAX_YEAR; year++) {
+               long count = mostRecentYears[base + year];
+               total += count;
+               if (year >= cutoff && year <= stopYear) living += count;
+            }
+            
+            table.add(totalRow, 0, total);
+            if (typeSlot == UNKNOWN_TYPE_SLOT || typeSlot == DateType.DEATH.ordinal()) continue;
+            table.add(system, 0, total);
+            table.add(system, 1, living);
+            table.add(totalRow, 1, living);
+         }
+      }
+      return table;
+   }
+   
+   /**
+    * Rolls up the living person counts for every combination of cutoffs and stop year, the same
+    * way as {@link #livingPersonSearchesBySystemTable(int, int, int)}.  Rows are in the order of
+    * {@link #cutoffSweepLabels(int[], int[], int[])}, with a column per system then the total.
+    */
+   CountTable livingPersonCutoffSweepTable(int[] birthCutoffs, int[] otherCutoffs, int[] stopYears) {
+      for (int stopYear: stopYears) {
+         checkStopYear(stopYear);
+      }
+      
+      //Running totals of the rows without deaths by most recent year, for each system's birth
+      //types and its other counted types: before[year] is the count of every year below it
+      long[][] birthBefore = new long[SYSTEMS][YEAR_SLOTS];
+      long[][] otherBefore = new long[SYSTEMS][YEAR_SLOTS];
+      for (int system = 0; system < SYSTEMS; system++) {
+         for (int typeSlot = 0; typeSlot < TYPE_SLOTS; typeSlot++) {
+            if (typeSlot == UNKNOWN_TYPE_SLOT || typeSlot == DateType.DEATH.ordinal()) continue;
+            long[] before = (typeSlot == DateType.BIRTH.ordinal() ? birthBefore : otherBefore)[system];
+            int base = cellFor(false, system, typeSlot) * YEAR_SLOTS;
+            for (int year = 0; year <= MAX_YEAR; year++) {
+               before[year + 1] += mostRecentYears[base + year];
+            }
+         }
+         for (int year = 1; year < YEAR_SLOTS; year++) {
+            birthBefore[system][year] += birthBefore[system][year - 1];
+            otherBefore[system][year] += otherBefore[system][year - 1];
+         }
+      }
+      
+      int totalColumn = SYSTEMS;
+      CountTable table = new CountTable(1 + birthCutoffs.length * otherCutoffs.length * stopYears.length, SYSTEMS + 1);
+      CountTable totals = livingPersonSearchesBySystemTable(0, 0, 0);
+      for (int system = 0; system <= SYSTEMS; system++) {
+         table.add(0, system, totals.get(system, 0));
+      }
+      
+      int row = 1;
+      for (int birthCutoff: birthCutoffs) {
+         for (int otherCutoff: otherCutoffs) {
+            for (int stopYear: stopYears) {
+               for (int system = 0; system < SYSTEMS; system++) {
+                  long living = countBetween(birthBefore[system], birthCutoff, stopYear)
+                                + countBetween(otherBefore[system], otherCutoff, stopYear);
+                  table.add(row, system, living);
+                  table.add(row, totalColumn, living);
+               }
+               row++;
+            }
+         }
+      }
+      return table;
+   }
+   
+   /**
+    * @return Labels for the rows of {@link #livingPersonCutoffSweepTable(int[], int[], int[])}
+    */
+   static List<String> cutoffSweepLabels(int[] birthCutoffs, int[] otherCutoffs, int[] stopYears) {
+      List<String> labels = new ArrayList<>();
+      labels.add("total");
+      for (int birthCutoff: birthCutoffs) {
+         for (int otherCutoff: otherCutoffs) {
+            for (int stopYear: stopYears) {
+               labels.add(birthCutoff + "/" + otherCutoff + "/" + stopYear);
+            }
+         }
+      }
+      return labels;
+   }
+   
+   /**
+    * @return Count of the years from the cutoff to the stop year (both included), from running totals
+    */
+   private static long countBetween(long[] before, int cutoff, int stopYear) {
+      int from = Math.max(cutoff, 0);
+      if (from > stopYear) return 0;
+      return before[Math.min(stopYear, MAX_YEAR) + 1] - before[from];
+   }
+   
+   CountTable dateRangeLengthsTable(int bucketSize, int stopLength) {
+      checkStopYear(stopLength);
+      CountTable table = CountTable.yearBuckets(bucketSize, stopLength, 1);
+      for (int cell = 0; cell < CELLS; cell++) {
+         int base = cell * LENGTH_SLOTS;
+         for (int slot = 0; slot < STAR_LENGTH_SLOT; slot++) {
+            long count = lengths[base + slot];
+            if (count == 0) continue;
+            int rowIndex = Math.min(slot - MAX_YEAR, stopLength) / bucketSize;
+            if (rowIndex >= 0) table.add(rowIndex, 0, count);
+         }
+         table.add(table.starRow(), 0, lengths[base + STAR_LENGTH_SLOT]);
+      }
+      return table;
+   }
+   
+   static List<String> yearTypeLabels() {
+      List<String> labels = new ArrayList<>();
+      for (DateType type: DateType.values()) {
+         labels.add(type.label());
+      }
+      return labels;
+   }
+   
+   static List<String> systemLabels() {
+      List<String> labels = new ArrayList<>();
+      for (SearchSystem system: SearchSystem.values()) {
+         labels.add(system.label());
+      }
+      labels.add("total");
+      return labels;
+   }
+   
+   /**
+    * Adds the year counts of one cell into a column of a year bucket table.
+    */
+   private void addYears(CountTable table, int cell, int column, int bucketSize, int stopYear) {
+      int base = cell * YEAR_SLOTS;
+      for (int year = 0; year <= MAX_YEAR; year++) {
+         long count = years[base + year];
+         if (count != 0) table.add(Math.min(year, stopYear) / bucketSize, column, count);
+      }
+      table.add(table.starRow(), column, years[base + STAR_YEAR_SLOT]);
+   }
+   
+   private static void checkStopYear(int stopYear) {
+      if (stopYear >= MAX_YEAR) {
+         throw new IllegalArgumentException("Cube rollups only support stop years below " + MAX_YEAR + ", got " + stopYear);
+      }
+   }
+   
+   private static int cellFor(boolean withDeaths, SearchSystem system, int typeSlot) {
+      return cellFor(withDeaths, system.ordinal(), typeSlot);
+   }
+   
+   private static int cellFor(boolean withDeaths, int system, int typeSlot) {
+      return ((withDeaths ? 1 : 0) * SYSTEMS + system) * TYPE_SLOTS + typeSlot;
+   }
+   
+   private static int yearSlot(int year) {
+      return year == SearchRecord.STAR_YEAR ? STAR_YEAR_SLOT : Math.min(year, MAX_YEAR);
+   }
+   
+   //----------------[ Report ]-------------------------
+   
+   @Override
+   Report newPartial() {
+      return new SearchCube();
+   }
+   
+   @Override
+   void merge(Report partial) {
+      SearchCube other = (SearchCube) partial;
+      addInto(rows, other.rows);
+      addInto(years, other.years);
+      addInto(mostRecentYears, other.mostRecentYears);
+      addInto(lengths, other.lengths);
+   }
+   
+   @Override
+   String stateKey() {
+      return "searchCube(" + MAX_YEAR + ")";
+   }
+   
+   @Override
+   void writeState(DataOutput out) throws IOException {
+      for (long[] counts: new long[][] {rows, years, mostRecentYears, lengths}) {
+         for (long count: counts) {
+            out.writeLong(count);
+         }
+      }
+   }
+   
+   @Override
+   void readState(DataInput in) throws IOException {
+      for (long[] counts: new long[][] {rows, years, mostRecentYears, lengths}) {
+         for (int i = 0; i < counts.length; i++) {
+            counts[i] = in.readLong();
+         }
+      }
+   }
+   
+   /**
+    * The cube isn't written to a file on its own; use the rollup methods to write out reports from it.
+    */
+   @Override
+   void write() {
+   }
+   
+   private static void addInto(long[] target, long[] source) {
+      for (int i = 0; i < target.length; i++) {
+         target[i] += source[i];
+      }
+   }
+}
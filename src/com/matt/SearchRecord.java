@@ -0,0 +1,88 @@
+package com.matt;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single row of a Splunk export, in the format "type;start;end",count.  One instance is
+ * re-used for every line of a scan, so reports must not hold onto it between calls.
+ * <br><br>
+ * Years are stored as plain ints, with {@link #STAR_YEAR} standing in for a "*" and
+ * {@link #NO_YEAR} for an end year that was left off entirely.  Rows summed up from raw search
+ * logs (see {@link RawLogScanner}) also have the hour their searches were made in.
+ */
+final class SearchRecord {
+   static final int STAR_YEAR = -1;
+   static final int NO_YEAR = -2;
+   static final long NO_TIME = Long.MIN_VALUE;
+   
+   /** Type of date searched on, or null if the type name was not recognized */
+   DateType type;
+   int start;
+   int end;
+   long count;
+   /** Start of the hour the searches were made in, in seconds since 1970 (UTC), or NO_TIME for exports */
+   long time = NO_TIME;
+   
+   //Where the raw line (and its type name) sits, so they can be turned into Strings if needed for logging.
+   //The buffer is null for records that were not read from text.
+   byte[] buffer;
+   int lineStart;
+   int lineEnd;
+   int typeStart;
+   int typeEnd;
+   //Holds the line of a record made by copyOf, so it outlives the buffer it was read from
+   private byte[] copiedLine = null;
+   
+   /**
+    * Makes this record a copy of the given one, along with its raw line, so it stays whole after
+    * the reader has moved on and re-used its buffer.
+    */
+   void copyOf(SearchRecord other) {
+      type = other.type;
+      start = other.start;
+      end = other.end;
+      count = other.count;
+      time = other.time;
+      if (other.buffer == null) {
+         buffer = null;
+         return;
+      }
+      
+      int length = other.lineEnd - other.lineStart;
+      if (copiedLine == null || copiedLine.length < length) {
+         copiedLine = new byte[Math.max(length, 64)];
+      }
+      System.arraycopy(other.buffer, other.lineStart, copiedLine, 0, length);
+      buffer = copiedLine;
+      lineStart = 0;
+      lineEnd = length;
+      typeStart = other.typeStart - other.lineStart;
+      typeEnd = other.typeEnd - other.lineStart;
+   }
+   
+   /**
+    * @return The raw line this record was parsed from, or one rebuilt from its fields if it was not
+    *         read from text.  Creates a new String, so only use it off the hot path.
+    */
+   String line() {
+      if (buffer == null) {
+         return "\"" + typeName() + ";" + yearText(start) + (end == NO_YEAR ? "" : ";" + yearText(end)) + "\"," + count;
+      }
+      return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+   }
+   
+   /**
+    * @return The date type name as written in the source (or "unknown" if it was not read from
+    *         text and not a known type).  Creates a new String, so only use it off the hot path.
+    */
+   String typeName() {
+      if (buffer == null) {
+         return type == null ? "unknown" : type.label();
+      }
+      return new String(buffer, typeStart, typeEnd - typeStart, StandardCharsets.UTF_8);
+   }
+   
+   private static String yearText(int year) {
+      return year == STAR_YEAR ? DataHandler.STAR : Integer.toString(year);
+   }
+}
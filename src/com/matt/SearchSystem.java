@@ -0,0 +1,33 @@
+package com.matt;
+
+/**
+ * The search systems that the Splunk exports are pulled from.  Each one gets its own
+ * column (or row) in the reports that split results out by system.
+ */
+public enum SearchSystem {
+   HR("hr", "HR"),
+   TREE("tree", "Tree"),
+   LLS("lls", "LLS");
+   
+   private final String label;
+   private final String fileName;
+   
+   SearchSystem(String label, String fileName) {
+      this.label = label;
+      this.fileName = fileName;
+   }
+   
+   /**
+    * @return Lowercase name used for this system in output headers and rows
+    */
+   public String label() {
+      return label;
+   }
+   
+   /**
+    * @return Name used for this system in the data source file names (allSearchYearsHR.csv, etc)
+    */
+   public String fileName() {
+      return fileName;
+   }
+}
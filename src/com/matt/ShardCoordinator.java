@@ -0,0 +1,350 @@
+package com.matt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reads a plan's sources in several worker processes instead of on threads in this one, for
+ * source sets too big for a single JVM to keep up with.  The sources are split into shards of
+ * about equal size, and a worker process is launched for each.  Every worker sums its shard into
+ * its own copy of the plan's reports and saves those sums to a partial file, which is then merged
+ * into the plan here, the same way the partials from each thread are.
+ * <br><br>
+ * A worker is launched with the same command line as this process, plus a system property
+ * naming its shard's manifest.  So it runs the same main method and builds the same plan, but
+ * when it gets to that plan's run, it only reads the sources in its manifest, saves its partial
+ * file, and exits.  Workers never write out reports (see {@link TableWriter}).  Any worker that
+ * fails (or whose partial file can't be read) is launched again, up to {@link #MAX_ATTEMPTS} times.
+ * A worker that couldn't read part of its shard still saves what it did read, the same way a
+ * plan run in one process carries on, but its partial file says so, and the plan's run is
+ * marked as failed (see {@link ReportPlan#readFailed(String, Exception)}).
+ * <br><br>
+ * The manifests, partial files, and a log for each worker are kept in one folder.  They are all
+ * a worker needs, so with that folder (and the sources) on a shared filesystem, a worker could
+ * just as well be run on another machine.
+ */
+final class ShardCoordinator {
+   static final String DEFAULT_DIRECTORY = "shards/";
+   static final int MAX_ATTEMPTS = 3;
+   
+   //Set on worker processes to the path of their manifest
+   static final String SHARD_PROPERTY = "fssearch.shard";
+   
+   private static final int MANIFEST_MAGIC = 0x46535348; //"FSSH"
+   private static final int PARTIAL_MAGIC = 0x46535041; //"FSPA"
+   private static final int VERSION = 3;
+   
+   private final String directory;
+   private final int workers;
+   
+   /**
+    * @param directory Folder to keep the manifests, partial files, and worker logs in.  Created if it doesn't exist.
+    * @param workers Number of worker processes to split the sources between
+    */
+   ShardCoordinator(String directory, int workers) {
+      this.directory = directory;
+      this.workers = workers;
+   }
+   
+   /**
+    * @return True if this process is a worker launched by a coordinator
+    */
+   static boolean isWorker() {
+      return System.getProperty(SHARD_PROPERTY) != null;
+   }
+   
+   //----------------[ Coordinator ]-------------------------
+   
+   /**
+    * Reads the given sources in worker processes, and merges the sums from each into the plan's
+    * reports.  Standard input can't be handed to another process, so it is left for this one.
+    *
+    * @param plan Plan being run
+    * @param runIndex Which of this program's plan runs it is (see {@link ReportPlan#run()})
+    * @param threads Number of threads the plan would read on, shared out between the workers
+    * @param sources Sources to read, largest first
+    * @return The sources that still need to be read in this process
+    */
+   List<DataSource> run(ReportPlan plan, int runIndex, int threads, List<DataSource> sources) {
+      List<DataSource> local = new ArrayList<>();
+      List<List<DataSource>> shards = new ArrayList<>();
+      long[] shardBytes = new long[workers];
+      for (int i = 0; i < workers; i++) {
+         shards.add(new ArrayList<>());
+      }
+      //Largest sources first, each into the shard with the fewest bytes so far
+      for (DataSource source: sources) {
+         if (source.isStdin()) {
+            local.add(source);
+            continue;
+         }
+         int smallest = 0;
+         for (int i = 1; i < workers; i++) {
+            if (shardBytes[i] < shardBytes[smallest]) smallest = i;
+         }
+         shards.get(smallest).add(source);
+         shardBytes[smallest] += new File(source.path()).length();
+      }
+      shards.removeIf(List::isEmpty);
+      if (shards.isEmpty()) return local;
+      
+      try {
+         Files.createDirectories(new File(directory).toPath());
+         long token = new Random().nextLong();
+         int workerThreads = Math.max(1, threads / shards.size());
+         for (int shard = 0; shard < shards.size(); shard++) {
+            writeManifest(manifestFile(shard), token, runIndex, shard, workerThreads, plan.readingIndexes(), shards.get(shard));
+         }
+         runWorkers(plan, shards.size(), token);
+      } catch (IOException e) {
+         throw new UncheckedIOException("Failed setting up shards in " + directory, e);
+      }
+      return local;
+   }
+   
+   /**
+    * Launches a worker for every shard, relaunching any that fail, and merges each one's partial
+    * file into the plan as soon as it finishes.
+    */
+   private void runWorkers(ReportPlan plan, int shardCount, long token) throws IOException {
+      BlockingQueue<Integer> finished = new LinkedBlockingQueue<>();
+      Map<Integer, Process> running = new HashMap<>();
+      int[] attempts = new int[shardCount];
+      
+      try {
+         for (int shard = 0; shard < shardCount; shard++) {
+            running.put(shard, launch(shard, ++attempts[shard], finished));
+         }
+         while (!running.isEmpty()) {
+            int shard = finished.take();
+            int exitCode = running.remove(shard).exitValue();
+            
+            String problem;
+            if (exitCode == 0) {
+               try {
+                  List<Report> partials = plan.newPartials();
+                  boolean incomplete = loadPartial(partialFile(shard), partials, token);
+                  plan.mergePartials(partials);
+                  if (incomplete) {
+                     plan.readFailed("shard " + shard, new IOException("Part of the shard could not be read.  See " + logFile(shard)));
+                  }
+                  continue;
+               } catch (IOException e) {
+                  problem = "its partial file could not be read (" + e.getMessage() + ")";
+               }
+            } else {
+               problem = "it exited with code " + exitCode;
+            }
+            
+            if (attempts[shard] >= MAX_ATTEMPTS) {
+               throw new IllegalStateException("Shard " + shard + " failed " + MAX_ATTEMPTS + " times; the last time "
+                                               + problem + ".  See " + logFile(shard));
+            }
+            System.out.println("Shard " + shard + " failed because " + problem + ", retrying.  See " + logFile(shard));
+            running.put(shard, launch(shard, ++attempts[shard], finished));
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted while waiting for shard workers", e);
+      } finally {
+         for (Process process: running.values()) {
+            process.destroyForcibly();
+         }
+      }
+   }
+   
+   /**
+    * Starts a worker for the given shard, which adds the shard to the finished queue when it exits.
+    */
+   private Process launch(int shard, int attempt, BlockingQueue<Integer> finished) throws IOException {
+      Files.deleteIfExists(partialFile(shard).toPath());
+      File log = logFile(shard);
+      ProcessBuilder builder = new ProcessBuilder(workerCommand(manifestFile(shard)))
+            .redirectErrorStream(true)
+            .redirectOutput(attempt == 1 ? ProcessBuilder.Redirect.to(log) : ProcessBuilder.Redirect.appendTo(log));
+      Process process = builder.start();
+      process.getOutputStream().close();
+      process.onExit().thenRun(() -> finished.add(shard));
+      return process;
+   }
+   
+   /**
+    * @return The command line this process was started with, with the worker's manifest set on it
+    */
+   private static List<String> workerCommand(File manifest) {
+      String shardOption = "-D" + SHARD_PROPERTY + "=" + manifest.getAbsolutePath();
+      List<String> command = new ArrayList<>();
+      ProcessHandle.Info info = ProcessHandle.current().info();
+      if (info.command().isPresent() && info.arguments().isPresent()) {
+         command.add(info.command().get());
+         command.add(shardOption);
+         command.addAll(Arrays.asList(info.arguments().get()));
+         return command;
+      }
+      
+      //Not every platform gives the full command line, so build it back up from what this JVM was told
+      command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(shardOption);
+      command.addAll(Arrays.asList(System.getProperty("sun.java.command").split(" ")));
+      return command;
+   }
+   
+   //----------------[ Worker ]-------------------------
+   
+   /**
+    * Runs on a worker process, in place of each of its plan runs.  Only the run the worker was
+    * launched for does anything: its shard is read, the sums are saved to the partial file, and
+    * the process exits.
+    *
+    * @param plan Plan being run
+    * @param runIndex Which of this program's plan runs it is
+    */
+   static void work(ReportPlan plan, int runIndex) {
+      File manifest = new File(System.getProperty(SHARD_PROPERTY));
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)))) {
+         if (in.readInt() != MANIFEST_MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a shard manifest");
+         }
+         long token = in.readLong();
+         if (in.readInt() != runIndex) return;
+         int shard = in.readInt();
+         int threads = in.readInt();
+         int[] reportIndexes = new int[in.readInt()];
+         for (int i = 0; i < reportIndexes.length; i++) {
+            reportIndexes[i] = in.readInt();
+         }
+         List<DataSource> sources = new ArrayList<>();
+         for (int i = in.readInt(); i > 0; i--) {
+            String path = in.readUTF();
+            sources.add(in.readBoolean() ? DataSource.rawLog(path)
+                                         : new DataSource(path, SearchSystem.valueOf(in.readUTF()), in.readBoolean()));
+         }
+         
+         plan.runShard(shard, threads, sources, reportIndexes);
+         savePartial(partialFile(manifest.getParent(), shard), plan.reading(), token, plan.anyReadFailed());
+      } catch (IOException | RuntimeException e) {
+         System.out.println("Shard worker failed with manifest " + manifest + "!\n" + e.getMessage());
+         e.printStackTrace();
+         System.exit(1);
+      }
+      System.exit(0);
+   }
+   
+   /**
+    * @return Name of a file this plan writes besides its reports (such as its summary), made
+    *         unique to the given shard so that workers don't write over each other
+    */
+   static String shardFileName(String file, int shard) {
+      int extension = file.lastIndexOf('.');
+      if (extension <= 0) return file + "-shard" + shard;
+      return file.substring(0, extension) + "-shard" + shard + file.substring(extension);
+   }
+   
+   //----------------[ Files ]-------------------------
+   
+   private File manifestFile(int shard) {
+      return new File(directory, "shard-" + shard + ".manifest");
+   }
+   
+   private File partialFile(int shard) {
+      return partialFile(directory, shard);
+   }
+   
+   private static File partialFile(String directory, int shard) {
+      return new File(directory, "partial-" + shard + ".bin");
+   }
+   
+   private File logFile(int shard) {
+      return new File(directory, "shard-" + shard + ".log");
+   }
+   
+   private static void writeManifest(File file, long token, int runIndex, int shard, int threads, int[] reportIndexes,
+                                     List<DataSource> sources) throws IOException {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+         out.writeInt(MANIFEST_MAGIC);
+         out.writeInt(VERSION);
+         out.writeLong(token);
+         out.writeInt(runIndex);
+         out.writeInt(shard);
+         out.writeInt(threads);
+         out.writeInt(reportIndexes.length);
+         for (int index: reportIndexes) {
+            out.writeInt(index);
+         }
+         out.writeInt(sources.size());
+         for (DataSource source: sources) {
+            out.writeUTF(source.path());
+            out.writeBoolean(source.isRawLog());
+            if (!source.isRawLog()) {
+               out.writeUTF(source.system().name());
+               out.writeBoolean(source.withDeaths());
+            }
+         }
+      }
+   }
+   
+   /**
+    * Saves the sums of each report, under a temporary name that is moved into place once it is
+    * complete, so a worker that dies part way through never leaves a partial file behind.
+    *
+    * @param readFailed True if part of the shard couldn't be read, so the sums are incomplete
+    */
+   private static void savePartial(File file, List<Report> reports, long token, boolean readFailed) throws IOException {
+      File tempFile = new File(file.getPath() + ".tmp");
+      try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+         out.writeInt(PARTIAL_MAGIC);
+         out.writeInt(VERSION);
+         out.writeLong(token);
+         out.writeBoolean(readFailed);
+         out.writeInt(reports.size());
+         for (Report report: reports) {
+            out.writeUTF(report.stateKey());
+            report.writeState(out);
+         }
+         out.flush();
+         fileOut.getFD().sync();
+      }
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+   
+   /**
+    * Loads a partial file into the given partial reports, checking that it was saved for this
+    * run, by a plan with the same reports.
+    *
+    * @return True if the worker couldn't read part of its shard, so the sums are incomplete
+    */
+   private static boolean loadPartial(File file, List<Report> partials, long token) throws IOException {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+         if (in.readInt() != PARTIAL_MAGIC || in.readInt() != VERSION) throw new IOException("Not a partial file");
+         if (in.readLong() != token) throw new IOException("Saved for a different run");
+         boolean readFailed = in.readBoolean();
+         if (in.readInt() != partials.size()) throw new IOException("Saved by a plan with different reports");
+         for (Report partial: partials) {
+            String key = in.readUTF();
+            if (!key.equals(partial.stateKey())) throw new IOException("Saved " + key + " in place of " + partial.stateKey());
+            partial.readState(in);
+         }
+         return readFailed;
+      }
+   }
+}
@@ -0,0 +1,28 @@
+package com.matt;
+
+/**
+ * Reasons a row can be left out, either by the readers (for lines that can't be parsed) or by
+ * a report (for rows it has no place to count).  Used to break down the skipped rows in the
+ * run's metrics.
+ */
+enum SkipReason {
+   MALFORMED("malformed line"),
+   UNKNOWN_TYPE("unknown date type"),
+   UNCOUNTED_TYPE("date type not counted"),
+   NO_YEAR("no year to count"),
+   NEGATIVE_RANGE("range ends before it starts"),
+   NO_TIME("no time searched"),
+   REPORT_FAILURE("report failed on the row");
+   
+   static final int COUNT = values().length;
+   
+   private final String label;
+   
+   SkipReason(String label) {
+      this.label = label;
+   }
+   
+   String label() {
+      return label;
+   }
+}
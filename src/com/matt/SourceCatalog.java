@@ -0,0 +1,169 @@
+package com.matt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The set of data source files that a {@link ReportPlan} reads from.  There can be any number
+ * of files for each system and variant (with or without deaths), such as one file per day.
+ * <br><br>
+ * Files found in a directory are matched by name, in the same format as the default sources,
+ * with an optional shard suffix:<br>
+ * allSearchYearsHR.csv, allSearchYearsTreeWithDeaths-2023-06-14.csv, allSearchYearsLLS_0003.csv.gz
+ */
+public final class SourceCatalog {
+   private static final Pattern SOURCE_FILE_NAME = Pattern.compile("allSearchYears(HR|Tree|LLS)(WithDeaths)?([-_.].*)?\\.csv(\\.gz)?");
+   
+   private final List<DataSource> sources;
+   private final String description;
+   private final boolean needsEveryVariant;
+   
+   private SourceCatalog(List<DataSource> sources, String description, boolean needsEveryVariant) {
+      this.sources = Collections.unmodifiableList(new ArrayList<>(sources));
+      this.description = description;
+      this.needsEveryVariant = needsEveryVariant;
+   }
+   
+   /**
+    * @return Catalog of the six default sources set in {@link DataHandler}
+    */
+   public static SourceCatalog defaults() {
+      return new SourceCatalog(Arrays.asList(DataHandler.ALL_DATA_SOURCES), "the default sources", true);
+   }
+   
+   /**
+    * Finds every data source file in the given directory (not including subdirectories).
+    * Files whose names don't match the data source format are ignored.
+    *
+    * @param directory Directory to look through
+    * @return Catalog of the sources found, sorted by file name
+    */
+   public static SourceCatalog fromDirectory(String directory) {
+      List<DataSource> found = new ArrayList<>();
+      File[] files = new File(directory).listFiles();
+      if (files != null) {
+         Arrays.sort(files);
+         for (File file: files) {
+            DataSource source = fromFile(file);
+            if (source != null) found.add(source);
+         }
+      }
+      return new SourceCatalog(found, directory, true);
+   }
+   
+   /**
+    * Creates a catalog of raw search logs (see {@link RawLogScanner}) instead of exports.
+    *
+    * @param path A log file, a directory holding them (every file ending in .log or .log.gz
+    *             in it is read), or "-" to read a log piped in through standard input
+    */
+   public static SourceCatalog rawLogs(String path) {
+      List<DataSource> found = new ArrayList<>();
+      File[] files = new File(path).listFiles();
+      if (files == null) {
+         found.add(DataSource.rawLog(path));
+      } else {
+         Arrays.sort(files);
+         for (File file: files) {
+            if (file.isFile() && (file.getName().endsWith(".log") || file.getName().endsWith(".log.gz"))) {
+               found.add(DataSource.rawLog(file.getPath()));
+            }
+         }
+      }
+      return new SourceCatalog(found, path, false);
+   }
+   
+   /**
+    * Creates a catalog with a single source that is piped in through standard input.
+    *
+    * @param name Which system and variant the piped source is for, in the same format as
+    *             the source file names (HR, Tree, LLS, HRWithDeaths, TreeWithDeaths, or LLSWithDeaths)
+    */
+   public static SourceCatalog stdin(String name) {
+      Matcher matcher = SOURCE_FILE_NAME.matcher("allSearchYears" + name + ".csv");
+      if (!matcher.matches()) {
+         throw new IllegalArgumentException("Unknown source name " + name + ", expected something like HR or TreeWithDeaths");
+      }
+      DataSource source = new DataSource(DataSource.STDIN_PATH, systemNamed(matcher.group(1)), matcher.group(2) != null);
+      return new SourceCatalog(Collections.singletonList(source), "standard input", false);
+   }
+   
+   /**
+    * @return Data source for the given file, or null if its name is not in the data source format
+    */
+   static DataSource fromFile(File file) {
+      Matcher matcher = SOURCE_FILE_NAME.matcher(file.getName());
+      if (!file.isFile() || !matcher.matches()) return null;
+      
+      return new DataSource(file.getPath(), systemNamed(matcher.group(1)), matcher.group(2) != null);
+   }
+   
+   private static SearchSystem systemNamed(String fileName) {
+      for (SearchSystem system: SearchSystem.values()) {
+         if (system.fileName().equals(fileName)) return system;
+      }
+      throw new IllegalArgumentException("Unknown system " + fileName);
+   }
+   
+   public List<DataSource> sources() {
+      return sources;
+   }
+   
+   /**
+    * @return The sources, largest file first
+    */
+   List<DataSource> sourcesLargestFirst() {
+      List<DataSource> sorted = new ArrayList<>(sources);
+      sorted.sort(Comparator.comparingLong((DataSource source) -> new File(source.path()).length()).reversed());
+      return sorted;
+   }
+   
+   /**
+    * Verifies that all the data source files exist, and (unless this catalog is for standard input)
+    * that there is at least one for every system, both with and without deaths.  If not, the ones that are missing will be printed
+    * to the console and the system will exit with code 7.  If all exist, then no action is taken.
+    */
+   void verify() {
+      List<String> missing = missing();
+      for (String problem: missing) {
+         System.out.println(problem);
+      }
+      if (!missing.isEmpty()) System.exit(7);
+   }
+   
+   /**
+    * @return A message for each data source file that {@link #verify()} would find missing
+    */
+   List<String> missing() {
+      List<String> missing = new ArrayList<>();
+      for (DataSource source: sources) {
+         if (!source.isStdin() && !(new File(source.path()).exists())) {
+            missing.add("Cannot find " + (source.isRawLog() ? "raw search log" : describe(source.system(), source.withDeaths()))
+                        + " at " + source.path());
+         }
+      }
+      for (boolean withDeaths: new boolean[] {false, true}) {
+         if (!needsEveryVariant) break;
+         for (SearchSystem system: SearchSystem.values()) {
+            boolean present = false;
+            for (DataSource source: sources) {
+               if (source.system() == system && source.withDeaths() == withDeaths) present = true;
+            }
+            if (!present) {
+               missing.add("Cannot find " + describe(system, withDeaths) + " in " + description);
+            }
+         }
+      }
+      return missing;
+   }
+   
+   private static String describe(SearchSystem system, boolean withDeaths) {
+      return system.fileName() + " file" + (withDeaths ? " B" : "");
+   }
+}
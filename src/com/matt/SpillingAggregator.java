@@ -0,0 +1,546 @@
+package com.matt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sums counts by key, for keys with far too many values to give each one a row in a dense
+ * {@link CountTable}.  Keys are a pair of longs.
+ * <br><br>
+ * Sums are kept in an open addressing hash table that grows up to a memory budget.  Once it is
+ * full, its sums are sorted by key and spilled to a run file on disk, and the table starts over
+ * empty.  When every row has been added, {@link #finish()} merges the runs (and whatever is still
+ * in memory) into a single sorted run, adding up the sums of matching keys as it goes.  Merging
+ * only reads a small buffer from each run at a time, at most {@link #MAX_MERGE_WIDTH} runs at
+ * once, so any number of keys can be summed on a fixed size heap.
+ * <br><br>
+ * Not thread safe.  Each thread sums into its own copy, and the copies are combined with
+ * {@link #merge(SpillingAggregator)}.
+ */
+final class SpillingAggregator {
+   //Bytes each key takes in memory: its key, its sum, and its share of the hash index
+   static final int BYTES_PER_KEY = 8 + 8 + 8 + 2 * 4;
+   static final int MAX_MERGE_WIDTH = 64;
+   
+   private static final int MIN_CAPACITY = 1 << 10;
+   private static final int RUN_BUFFER_SIZE = 1 << 16;
+   
+   private final File spillDirectory;
+   private final int maxCapacity;
+   
+   //Sums in memory, by slot, with slots filled in order
+   private long[] highKeys;
+   private long[] lowKeys;
+   private long[] sums;
+   private int size = 0;
+   
+   //Open addressing hash index from key to slot + 1 (0 for an empty entry)
+   private int[] index;
+   private int mask;
+   
+   //Sorted runs already spilled to disk
+   private final List<Run> runs = new ArrayList<>();
+   //Set once everything is merged into a single sorted run (or the sorted sums in memory), until more is added
+   private boolean finished = false;
+   
+   /**
+    * @param memoryBudget Most bytes to hold sums in before spilling them to disk
+    * @param spillDirectory Folder to write runs to.  Created if needed.
+    */
+   SpillingAggregator(long memoryBudget, File spillDirectory) {
+      long capacity = Long.highestOneBit(Math.max(memoryBudget / BYTES_PER_KEY, MIN_CAPACITY));
+      this.maxCapacity = (int) Math.min(capacity, 1 << 28);
+      this.spillDirectory = spillDirectory;
+      allocate(MIN_CAPACITY);
+   }
+   
+   /**
+    * Adds to the sum for the given key.
+    */
+   void add(long highKey, long lowKey, long amount) {
+      finished = false;
+      int i = hash(highKey, lowKey);
+      while (true) {
+         int entry = index[i];
+         if (entry == 0) break;
+         int slot = entry - 1;
+         if (lowKeys[slot] == lowKey && highKeys[slot] == highKey) {
+            sums[slot] += amount;
+            return;
+         }
+         i = (i + 1) & mask;
+      }
+      
+      if (size == highKeys.length) {
+         if (highKeys.length < maxCapacity) {
+            grow();
+         } else {
+            spill();
+         }
+         add(highKey, lowKey, amount);
+         return;
+      }
+      int slot = size++;
+      highKeys[slot] = highKey;
+      lowKeys[slot] = lowKey;
+      sums[slot] = amount;
+      index[i] = slot + 1;
+   }
+   
+   /**
+    * Adds every sum from the other aggregator into this one.  Its runs are taken over by this one,
+    * so the other must not be used again.
+    */
+   void merge(SpillingAggregator other) {
+      finished = false;
+      runs.addAll(other.runs);
+      other.runs.clear();
+      for (int slot = 0; slot < other.size; slot++) {
+         add(other.highKeys[slot], other.lowKeys[slot], other.sums[slot]);
+      }
+      other.clear();
+   }
+   
+   /**
+    * Merges every sum into a single sorted run, with one entry per key.  Nothing is done if
+    * nothing was added since the last time.
+    *
+    * @return Number of distinct keys
+    */
+   long finish() {
+      if (!finished) {
+         if (runs.isEmpty()) {
+            sortMemory();
+         } else {
+            spill();
+            while (runs.size() > 1) {
+               //Merge the smallest runs first, so each key is read back as few times as possible
+               runs.sort((a, b) -> Long.compare(a.keys, b.keys));
+               List<Run> merging = new ArrayList<>(runs.subList(0, Math.min(MAX_MERGE_WIDTH, runs.size())));
+               runs.removeAll(merging);
+               runs.add(mergeRuns(merging));
+            }
+         }
+         finished = true;
+      }
+      return (runs.isEmpty() ? size : runs.get(0).keys);
+   }
+   
+   /**
+    * @return A cursor over every key and its sum, in key order.  Call {@link #finish()} first.
+    */
+   Cursor cursor() throws IOException {
+      if (!finished) throw new IllegalStateException("Sums must be finished before they are read");
+      return (runs.isEmpty() ? new MemoryCursor() : new RunCursor(runs.get(0)));
+   }
+   
+   /**
+    * Writes every key and its sum, in key order, to be read back with {@link #readFrom(DataInput)}.
+    */
+   void writeTo(DataOutput out) throws IOException {
+      out.writeLong(finish());
+      try (Cursor cursor = cursor()) {
+         while (cursor.next()) {
+            out.writeLong(cursor.highKey());
+            out.writeLong(cursor.lowKey());
+            out.writeLong(cursor.sum());
+         }
+      }
+   }
+   
+   /**
+    * Replaces the sums in this aggregator with ones written by {@link #writeTo(DataOutput)}.
+    */
+   void readFrom(DataInput in) throws IOException {
+      clear();
+      long keys = in.readLong();
+      for (long i = 0; i < keys; i++) {
+         add(in.readLong(), in.readLong(), in.readLong());
+      }
+   }
+   
+   /**
+    * Drops every sum, deleting any runs.
+    */
+   void clear() {
+      for (Run run: runs) {
+         run.file.delete();
+      }
+      runs.clear();
+      allocate(MIN_CAPACITY);
+      finished = false;
+   }
+   
+   private void allocate(int capacity) {
+      highKeys = new long[capacity];
+      lowKeys = new long[capacity];
+      sums = new long[capacity];
+      index = new int[capacity * 2];
+      mask = index.length - 1;
+      size = 0;
+   }
+   
+   private void grow() {
+      long[] oldHighKeys = highKeys;
+      long[] oldLowKeys = lowKeys;
+      long[] oldSums = sums;
+      int oldSize = size;
+      allocate(highKeys.length * 2);
+      System.arraycopy(oldHighKeys, 0, highKeys, 0, oldSize);
+      System.arraycopy(oldLowKeys, 0, lowKeys, 0, oldSize);
+      System.arraycopy(oldSums, 0, sums, 0, oldSize);
+      size = oldSize;
+      reindex();
+   }
+   
+   private void reindex() {
+      Arrays.fill(index, 0);
+      for (int slot = 0; slot < size; slot++) {
+         int i = hash(highKeys[slot], lowKeys[slot]);
+         while (index[i] != 0) i = (i + 1) & mask;
+         index[i] = slot + 1;
+      }
+   }
+   
+   private int hash(long highKey, long lowKey) {
+      return (int) (DistinctSketch.mix(highKey * 0x9E3779B97F4A7C15L + lowKey) >>> 32) & mask;
+   }
+   
+   /**
+    * Sorts the sums in memory by key, writes them out as a new run, and empties the table
+    * (keeping its size, since it will fill up again).
+    */
+   private void spill() {
+      if (size == 0) return;
+      sortMemory();
+      try {
+         Files.createDirectories(spillDirectory.toPath());
+         Run run = new Run(File.createTempFile("sums", ".run", spillDirectory), size);
+         run.file.deleteOnExit();
+         try (DataOutputStream out = openRun(run.file)) {
+            for (int slot = 0; slot < size; slot++) {
+               out.writeLong(highKeys[slot]);
+               out.writeLong(lowKeys[slot]);
+               out.writeLong(sums[slot]);
+            }
+         }
+         runs.add(run);
+      } catch (IOException e) {
+         throw new UncheckedIOException("Failed spilling sums to " + spillDirectory, e);
+      }
+      size = 0;
+      Arrays.fill(index, 0);
+   }
+   
+   /**
+    * Merges the given runs into one new run, adding up the sums of matching keys, then deletes them.
+    */
+   private Run mergeRuns(List<Run> merging) {
+      File file = null;
+      try {
+         file = File.createTempFile("sums", ".run", spillDirectory);
+         file.deleteOnExit();
+         long keys = 0;
+         try (MergeCursor cursor = new MergeCursor(merging); DataOutputStream out = openRun(file)) {
+            while (cursor.next()) {
+               out.writeLong(cursor.highKey());
+               out.writeLong(cursor.lowKey());
+               out.writeLong(cursor.sum());
+               keys++;
+            }
+         }
+         for (Run run: merging) {
+            run.file.delete();
+         }
+         return new Run(file, keys);
+      } catch (IOException e) {
+         if (file != null) file.delete();
+         throw new UncheckedIOException("Failed merging runs in " + spillDirectory, e);
+      }
+   }
+   
+   private static DataOutputStream openRun(File file) throws IOException {
+      return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), RUN_BUFFER_SIZE));
+   }
+   
+   //----------------[ Sorting ]-------------------------
+   
+   /**
+    * Sorts the sums in memory by key (in place, so nothing is allocated), then rebuilds the index.
+    */
+   private void sortMemory() {
+      quickSort(0, size - 1);
+      reindex();
+   }
+   
+   private void quickSort(int from, int to) {
+      while (to - from > 16) {
+         //Median of three as the pivot, moved to the end
+         int middle = (from + to) >>> 1;
+         if (compare(middle, from) < 0) swap(middle, from);
+         if (compare(to, from) < 0) swap(to, from);
+         if (compare(to, middle) < 0) swap(to, middle);
+         swap(middle, to);
+         int store = from;
+         for (int i = from; i < to; i++) {
+            if (compare(i, to) < 0) swap(i, store++);
+         }
+         swap(store, to);
+         //Recurse into the smaller side, and loop on the larger, so the stack stays shallow
+         if (store - from < to - store) {
+            quickSort(from, store - 1);
+            from = store + 1;
+         } else {
+            quickSort(store + 1, to);
+            to = store - 1;
+         }
+      }
+      for (int i = from + 1; i <= to; i++) {
+         for (int j = i; j > from && compare(j, j - 1) < 0; j--) {
+            swap(j, j - 1);
+         }
+      }
+   }
+   
+   private int compare(int a, int b) {
+      return compareKeys(highKeys[a], lowKeys[a], highKeys[b], lowKeys[b]);
+   }
+   
+   private void swap(int a, int b) {
+      long high = highKeys[a];
+      long low = lowKeys[a];
+      long sum = sums[a];
+      highKeys[a] = highKeys[b];
+      lowKeys[a] = lowKeys[b];
+      sums[a] = sums[b];
+      highKeys[b] = high;
+      lowKeys[b] = low;
+      sums[b] = sum;
+   }
+   
+   private static int compareKeys(long highA, long lowA, long highB, long lowB) {
+      return (highA != highB ? Long.compare(highA, highB) : Long.compare(lowA, lowB));
+   }
+   
+   //----------------[ Reading ]-------------------------
+   
+   /**
+    * Reads keys and their sums in key order, one at a time.
+    */
+   interface Cursor extends AutoCloseable {
+      /**
+       * Moves to the next key.
+       *
+       * @return False once there are no keys left
+       */
+      boolean next() throws IOException;
+      
+      long highKey();
+      
+      long lowKey();
+      
+      long sum();
+      
+      @Override
+      void close() throws IOException;
+   }
+   
+   /**
+    * A sorted run written to disk, with the number of keys in it.
+    */
+   private static final class Run {
+      final File file;
+      final long keys;
+      
+      Run(File file, long keys) {
+         this.file = file;
+         this.keys = keys;
+      }
+   }
+   
+   private final class MemoryCursor implements Cursor {
+      private int slot = -1;
+      
+      @Override
+      public boolean next() {
+         return ++slot < size;
+      }
+      
+      @Override
+      public long highKey() {
+         return highKeys[slot];
+      }
+      
+      @Override
+      public long lowKey() {
+         return lowKeys[slot];
+      }
+      
+      @Override
+      public long sum() {
+         return sums[slot];
+      }
+      
+      @Override
+      public void close() {}
+   }
+   
+   private static final class RunCursor implements Cursor {
+      private final DataInputStream in;
+      private long remaining;
+      private long highKey;
+      private long lowKey;
+      private long sum;
+      
+      RunCursor(Run run) throws IOException {
+         this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), RUN_BUFFER_SIZE));
+         this.remaining = run.keys;
+      }
+      
+      @Override
+      public boolean next() throws IOException {
+         if (remaining == 0) return false;
+         try {
+            highKey = in.readLong();
+            lowKey = in.readLong();
+            sum = in.readLong();
+         } catch (EOFException e) {
+            throw new IOException("Run ended " + remaining + " keys early", e);
+         }
+         remaining--;
+         return true;
+      }
+      
+      @Override
+      public long highKey() {
+         return highKey;
+      }
+      
+      @Override
+      public long lowKey() {
+         return lowKey;
+      }
+      
+      @Override
+      public long sum() {
+         return sum;
+      }
+      
+      @Override
+      public void close() throws IOException {
+         in.close();
+      }
+   }
+   
+   /**
+    * Reads several runs at once in key order, adding up the sums of keys found in more than one.
+    */
+   private static final class MergeCursor implements Cursor {
+      //Runs that still have keys, in a min-heap by their current key
+      private final RunCursor[] heap;
+      private int heapSize = 0;
+      private long highKey;
+      private long lowKey;
+      private long sum;
+      
+      MergeCursor(List<Run> runs) throws IOException {
+         heap = new RunCursor[runs.size()];
+         try {
+            for (Run run: runs) {
+               RunCursor cursor = new RunCursor(run);
+               heap[heapSize++] = cursor;
+               if (!cursor.next()) {
+                  cursor.close();
+                  heapSize--;
+               }
+            }
+         } catch (IOException e) {
+            close();
+            throw e;
+         }
+         for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+         }
+      }
+      
+      @Override
+      public boolean next() throws IOException {
+         if (heapSize == 0) return false;
+         highKey = heap[0].highKey();
+         lowKey = heap[0].lowKey();
+         sum = 0;
+         while (heapSize > 0 && heap[0].highKey() == highKey && heap[0].lowKey() == lowKey) {
+            RunCursor top = heap[0];
+            sum += top.sum();
+            if (!top.next()) {
+               top.close();
+               heap[0] = heap[--heapSize];
+            }
+            siftDown(0);
+         }
+         return true;
+      }
+      
+      private void siftDown(int i) {
+         while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && less(heap[left], heap[smallest])) smallest = left;
+            if (right < heapSize && less(heap[right], heap[smallest])) smallest = right;
+            if (smallest == i) return;
+            RunCursor cursor = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = cursor;
+            i = smallest;
+         }
+      }
+      
+      private static boolean less(RunCursor a, RunCursor b) {
+         return compareKeys(a.highKey(), a.lowKey(), b.highKey(), b.lowKey()) < 0;
+      }
+      
+      @Override
+      public long highKey() {
+         return highKey;
+      }
+      
+      @Override
+      public long lowKey() {
+         return lowKey;
+      }
+      
+      @Override
+      public long sum() {
+         return sum;
+      }
+      
+      @Override
+      public void close() throws IOException {
+         IOException failure = null;
+         for (int i = 0; i < heapSize; i++) {
+            try {
+               heap[i].close();
+            } catch (IOException e) {
+               if (failure == null) failure = e;
+            }
+         }
+         heapSize = 0;
+         if (failure != null) throw failure;
+      }
+   }
+}
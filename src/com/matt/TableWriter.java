@@ -0,0 +1,259 @@
+package com.matt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Writes tables out to files on a background thread, so the next report can be worked out while
+ * the last one is still being written.  Each file is encoded into one re-used buffer (see
+ * {@link ByteOutput}) and written through a file channel, in the {@link OutputFormat} picked by
+ * its extension.
+ * <br><br>
+ * Writes are only started here.  Call {@link #awaitAll()} to wait for them to finish; that is
+ * also where any write that failed is reported.  A table must not be changed after it is handed
+ * off to be written.  A {@link ReportPlan} waits on just the writes it started itself (see
+ * {@link #track()}), so it doesn't take on the writes, or the failures, of anything else running.
+ */
+final class TableWriter {
+   private static final int BUFFER_SIZE = 1 << 16;
+   
+   //One thread, so files are written in the order they were handed off and the buffer can be shared.
+   // It isn't a daemon, so the program won't end with writes still waiting, but it stops once idle.
+   private static final ThreadPoolExecutor WRITER = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+         new LinkedBlockingQueue<>(), runnable -> new Thread(runnable, "table-writer"));
+   private static final ByteOutput OUTPUT = new ByteOutput(BUFFER_SIZE);
+   private static final List<Future<?>> PENDING = new ArrayList<>();
+   //Writes started on each thread since it called track(), if it did
+   private static final ThreadLocal<List<Future<Long>>> TRACKED = new ThreadLocal<>();
+   
+   static {
+      WRITER.allowCoreThreadTimeOut(true);
+   }
+   
+   private TableWriter() {}
+   
+   /**
+    * Starts writing the given table to a file.
+    *
+    * @param table Table of counts to write.  Must not be changed afterwards.
+    * @param path Path of the file to write
+    * @param header Names of the columns, separated by commas, starting with the column of row names
+    * @param rowLabels Name of each row, or null to name each one after the first year of its bucket
+    */
+   static void submit(CountTable table, String path, String header, List<String> rowLabels) {
+      //Shard workers hand their sums back to the coordinator, which writes the reports
+      if (ShardCoordinator.isWorker()) return;
+      
+      OutputFormat format = OutputFormat.forFile(path);
+      String[] columns = header.split(",");
+      Future<Long> write = WRITER.submit(() -> write(table, path, format, columns, rowLabels));
+      started(write);
+   }
+   
+   /**
+    * Starts writing the given table to a file, one page of rows at a time, so it never has to be
+    * held in memory all at once.  The table is closed once it has been written.
+    *
+    * @param table Table of counts to write
+    * @param path Path of the file to write
+    * @param header Names of the columns, separated by commas, starting with the column of row names
+    */
+   static void submit(PagedTable table, String path, String header) {
+      if (ShardCoordinator.isWorker()) return;
+      
+      OutputFormat format = OutputFormat.forFile(path);
+      String[] columns = header.split(",");
+      Future<Long> write = WRITER.submit(() -> writePaged(table, path, format, columns));
+      started(write);
+   }
+   
+   private static void started(Future<Long> write) {
+      synchronized (PENDING) {
+         PENDING.add(write);
+      }
+      List<Future<Long>> tracked = TRACKED.get();
+      if (tracked != null) tracked.add(write);
+   }
+   
+   /**
+    * Starts keeping track of every write started on this thread from here on, in place of any
+    * being tracked already.
+    *
+    * @return The writes started on this thread, filled in as they are started, to pass to {@link #awaitTracked(List)}.
+    *         Each one gives the time it took to encode and write its file once it's done.
+    */
+   static List<Future<Long>> track() {
+      List<Future<Long>> tracked = new ArrayList<>();
+      TRACKED.set(tracked);
+      return tracked;
+   }
+   
+   /**
+    * Stops keeping track of the writes started on this thread, and waits for the ones that were to finish.
+    *
+    * @param tracked Writes from {@link #track()}
+    * @throws UncheckedIOException If any of them failed.  Any other failures are added to it as suppressed.
+    */
+   static void awaitTracked(List<Future<Long>> tracked) {
+      if (TRACKED.get() == tracked) TRACKED.remove();
+      List<Future<?>> writes = new ArrayList<>(tracked);
+      synchronized (PENDING) {
+         PENDING.removeAll(writes);
+      }
+      await(writes);
+   }
+   
+   /**
+    * Waits for every write started so far to finish.
+    *
+    * @throws UncheckedIOException If any of them failed.  Any other failures are added to it as suppressed.
+    */
+   static void awaitAll() {
+      List<Future<?>> writes;
+      synchronized (PENDING) {
+         writes = new ArrayList<>(PENDING);
+         PENDING.clear();
+      }
+      await(writes);
+   }
+   
+   private static void await(List<Future<?>> writes) {
+      UncheckedIOException failure = null;
+      for (Future<?> write: writes) {
+         try {
+            write.get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for output files to be written", e);
+         } catch (ExecutionException e) {
+            UncheckedIOException wrapped = (e.getCause() instanceof UncheckedIOException
+                                            ? (UncheckedIOException) e.getCause()
+                                            : new UncheckedIOException(new IOException(e.getCause())));
+            if (failure == null) {
+               failure = wrapped;
+            } else {
+               failure.addSuppressed(wrapped);
+            }
+         }
+      }
+      if (failure != null) throw failure;
+   }
+   
+   /**
+    * Runs on the writer thread.
+    *
+    * @return Time taken to encode and write the file
+    */
+   private static long write(CountTable table, String path, OutputFormat format, String[] columns, List<String> rowLabels) {
+      TableWriteEvent event = new TableWriteEvent();
+      event.begin();
+      long started = System.nanoTime();
+      try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                                                  StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+         OUTPUT.open(channel);
+         format.write(table, columns, rowLabels, OUTPUT);
+         OUTPUT.flush();
+      } catch (IOException e) {
+         throw new UncheckedIOException("Failed writing table to file " + path, e);
+      }
+      
+      event.end();
+      if (event.shouldCommit()) {
+         event.outputFile = path;
+         event.format = format.name();
+         event.rows = table.rowCount();
+         event.bytes = OUTPUT.bytesWritten();
+         event.commit();
+      }
+      return System.nanoTime() - started;
+   }
+   
+   /**
+    * Runs on the writer thread.
+    *
+    * @return Time taken to encode and write the file
+    */
+   private static long writePaged(PagedTable table, String path, OutputFormat format, String[] columns) {
+      TableWriteEvent event = new TableWriteEvent();
+      event.begin();
+      long started = System.nanoTime();
+      List<String> rowLabels = new ArrayList<>();
+      try (PagedTable pages = table;
+           FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                                                  StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+         OUTPUT.open(channel);
+         format.writeHeader(columns, pages.rowCount(), OUTPUT);
+         for (CountTable page = pages.nextPage(rowLabels); page != null; page = pages.nextPage(rowLabels)) {
+            format.writeRows(page, columns, rowLabels, OUTPUT);
+         }
+         OUTPUT.flush();
+      } catch (IOException e) {
+         throw new UncheckedIOException("Failed writing table to file " + path, e);
+      }
+      
+      event.end();
+      if (event.shouldCommit()) {
+         event.outputFile = path;
+         event.format = format.name();
+         event.rows = (int) Math.min(table.rowCount(), Integer.MAX_VALUE);
+         event.bytes = OUTPUT.bytesWritten();
+         event.commit();
+      }
+      return System.nanoTime() - started;
+   }
+   
+   /**
+    * A table too big to hold in memory at once, read a page of rows at a time as it is written.
+    */
+   interface PagedTable extends AutoCloseable {
+      /**
+       * @return Number of rows, across every page
+       */
+      long rowCount();
+      
+      /**
+       * Reads the next page of rows.
+       *
+       * @param rowLabels Cleared, then given the name of each row in the page
+       * @return The page, or null once every row has been read
+       */
+      CountTable nextPage(List<String> rowLabels) throws IOException;
+      
+      @Override
+      void close() throws IOException;
+   }
+   
+   @Name("com.matt.TableWrite")
+   @Label("Table Write")
+   @Category({"FS Search Data Handler", "Writing"})
+   static final class TableWriteEvent extends Event {
+      @Label("Output File")
+      String outputFile;
+      
+      @Label("Format")
+      String format;
+      
+      @Label("Rows")
+      int rows;
+      
+      @Label("Bytes")
+      @DataAmount
+      long bytes;
+   }
+}
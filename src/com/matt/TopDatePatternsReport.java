@@ -0,0 +1,93 @@
+package com.matt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the exact date patterns (system, type, start, and end) searched for the most, by summed
+ * count.  See {@link DataHandler#topDatePatterns(String, int)}.
+ * <br><br>
+ * Patterns are counted in a {@link HeavyHitters} summary several times the size of the report,
+ * so memory stays fixed however many distinct patterns the sources have.
+ */
+class TopDatePatternsReport extends Report {
+   static final int MIN_CAPACITY = 1 << 14;
+   
+   private static final int TYPE_SLOTS = DateType.values().length + 1;
+   private static final int UNKNOWN_TYPE_SLOT = TYPE_SLOTS - 1;
+   
+   private final int topCount;
+   private final HeavyHitters patterns;
+   
+   TopDatePatternsReport(String outputFile, int topCount) {
+      super("topDatePatterns", outputFile);
+      if (topCount < 1) throw new IllegalArgumentException("Must ask for at least 1 pattern, got " + topCount);
+      this.topCount = topCount;
+      this.patterns = new HeavyHitters(Math.max(4 * topCount, MIN_CAPACITY));
+   }
+   
+   @Override
+   void accept(DataSource source, SearchRecord record) {
+      int cell = source.system().ordinal() * TYPE_SLOTS + (record.type == null ? UNKNOWN_TYPE_SLOT : record.type.ordinal());
+      patterns.add(cell, ((long) record.start << 32) | (record.end & 0xFFFFFFFFL), record.count);
+   }
+   
+   @Override
+   Report newPartial() {
+      return new TopDatePatternsReport(outputFile, topCount);
+   }
+   
+   @Override
+   void merge(Report partial) {
+      patterns.merge(((TopDatePatternsReport) partial).patterns);
+   }
+   
+   @Override
+   String stateKey() {
+      return "topDatePatterns(" + topCount + "," + patterns.capacity() + ")";
+   }
+   
+   @Override
+   void writeState(DataOutput out) throws IOException {
+      patterns.writeTo(out);
+   }
+   
+   @Override
+   void readState(DataInput in) throws IOException {
+      patterns.readFrom(in);
+   }
+   
+   @Override
+   void write() {
+      int[] slots = patterns.slotsByCount();
+      int rows = Math.min(topCount, slots.length);
+      List<String> labels = new ArrayList<>();
+      CountTable table = new CountTable(rows, 2);
+      for (int row = 0; row < rows; row++) {
+         int slot = slots[row];
+         labels.add(label(patterns.cell(slot), patterns.years(slot)));
+         table.add(row, 0, patterns.count(slot));
+         table.add(row, 1, patterns.error(slot));
+      }
+      DataHandler.writeTableToFileWithReplacements(table, outputFile, "system/dates,count,maxOvercount", labels);
+   }
+   
+   /**
+    * @return The pattern as "system/type;start;end", the same way dates are written in the sources
+    */
+   private static String label(int cell, long years) {
+      SearchSystem system = SearchSystem.values()[cell / TYPE_SLOTS];
+      int typeSlot = cell % TYPE_SLOTS;
+      int start = (int) (years >> 32);
+      int end = (int) years;
+      return system.label() + "/" + (typeSlot == UNKNOWN_TYPE_SLOT ? "unknown" : DateType.fromOrdinal(typeSlot).label())
+             + ";" + yearText(start) + (end == SearchRecord.NO_YEAR ? "" : ";" + yearText(end));
+   }
+   
+   private static String yearText(int year) {
+      return year == SearchRecord.STAR_YEAR ? DataHandler.STAR : Integer.toString(year);
+   }
+}
@@ -0,0 +1,70 @@
+package com.matt;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A {@link BucketKernel} that works out the buckets of many years at once with the Vector API.
+ * Needs --add-modules jdk.incubator.vector both to compile and to run, so it is kept out of src/;
+ * {@link BucketKernel#create()} only loads it when the module is there.
+ * <br><br>
+ * Each batch is counted in two passes.  The first works out where the row of every start and end
+ * year begins in the table, a whole vector of years at a time: clamping to the stop year,
+ * dividing by the bucket size (as a multiply and shift, since there is no vector integer
+ * division), and swapping in the star row for stars.  The second checks that every row lands in
+ * the table, then adds each row's count into its cells one row at a time (see
+ * {@link ScalarBucketKernel#addAtOffsets}).  Keeping the adds out of the vectors means lanes that
+ * land in the same cell never conflict.  (Adding through gathers and scatters instead, into a
+ * private copy of the table for each lane, measured several times slower than plain adds on JDK 17.)
+ */
+final class VectorBucketKernel implements BucketKernel {
+   private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+   //Cached years never have more bits than this, which keeps the multiply for dividing within an int
+   private static final int YEAR_BITS = 15;
+   
+   private final ScalarBucketKernel scalar = new ScalarBucketKernel();
+   private final int[] startOffsets = new int[RowBatch.CAPACITY];
+   private final int[] endOffsets = new int[RowBatch.CAPACITY];
+   
+   @Override
+   public void addYearBuckets(RowBatch batch, int[] columnOfSlot, int bucketSize, int stop, int starRow, int columnCount, long[] cells) {
+      //Every year shares the first bucket once buckets are bigger than any year, which the multiply can't do
+      if (bucketSize > Short.MAX_VALUE) {
+         scalar.addYearBuckets(batch, columnOfSlot, bucketSize, stop, starRow, columnCount, cells);
+         return;
+      }
+      
+      //n / bucketSize == (n * multiplier) >>> shift for every n below 2^YEAR_BITS, and the product fits in an int
+      int shift = YEAR_BITS + (32 - Integer.numberOfLeadingZeros(bucketSize - 1));
+      int multiplier = (int) (((1L << shift) + bucketSize - 1) / bucketSize);
+      IntVector starOffset = IntVector.broadcast(INTS, starRow * columnCount);
+      
+      int size = batch.size;
+      int bound = INTS.loopBound(size);
+      int i = 0;
+      for (; i < bound; i += INTS.length()) {
+         rowOffsets(IntVector.fromArray(INTS, batch.starts, i), stop, multiplier, shift, columnCount, starOffset)
+               .intoArray(startOffsets, i);
+         rowOffsets(IntVector.fromArray(INTS, batch.ends, i), stop, multiplier, shift, columnCount, starOffset)
+               .intoArray(endOffsets, i);
+      }
+      for (; i < size; i++) {
+         startOffsets[i] = rowOffset(batch.starts[i], bucketSize, stop, starRow, columnCount);
+         endOffsets[i] = rowOffset(batch.ends[i], bucketSize, stop, starRow, columnCount);
+      }
+      
+      //Offsets worked out for missing end years are nonsense, but never used
+      ScalarBucketKernel.addAtOffsets(batch, columnOfSlot, startOffsets, endOffsets, columnCount, cells);
+   }
+   
+   private static IntVector rowOffsets(IntVector years, int stop, int multiplier, int shift, int columnCount, IntVector starOffset) {
+      VectorMask<Integer> stars = years.compare(VectorOperators.EQ, SearchRecord.STAR_YEAR);
+      return years.min(stop).mul(multiplier).lanewise(VectorOperators.LSHR, shift).mul(columnCount).blend(starOffset, stars);
+   }
+   
+   private static int rowOffset(int year, int bucketSize, int stop, int starRow, int columnCount) {
+      return (year == SearchRecord.STAR_YEAR ? starRow : Math.min(year, stop) / bucketSize) * columnCount;
+   }
+}